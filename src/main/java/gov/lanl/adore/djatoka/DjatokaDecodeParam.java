@@ -33,6 +33,9 @@ import gov.lanl.adore.djatoka.plugin.ITransformPlugIn;
  */
 public class DjatokaDecodeParam implements DjatokaConstants {
 
+    /** Quality layers value that decodes fewer layers the more the resolution is reduced */
+    public static final int AUTO_QUALITY_LAYERS = -1;
+
     private static final int DEFAULT_LEVEL_REDUCE = 0;
 
     private static final String DEFAULT_EXTRACTION_REGION = null;
@@ -51,6 +54,8 @@ public class DjatokaDecodeParam implements DjatokaConstants {
 
     private int compLayer = 0;
 
+    private int layers = 0;
+
     private ITransformPlugIn transform;
 
     /**
@@ -96,7 +101,7 @@ public class DjatokaDecodeParam implements DjatokaConstants {
     }
 
     /**
-     * Returns the discrete positive degrees the extracted image is to be rotated (e.g. 90, 180, 270)
+     * Returns the degrees, from 0 to 359, the extracted image is to be rotated clockwise (e.g. 90, 180, 270)
      * 
      * @return degrees to rotate image
      */
@@ -105,15 +110,13 @@ public class DjatokaDecodeParam implements DjatokaConstants {
     }
 
     /**
-     * Sets the discrete positive degrees the extracted image is to be rotated (e.g. 90, 180, 270)
+     * Sets the degrees the extracted image is to be rotated clockwise. Any angle is accepted and is normalized to 0 to
+     * 359 degrees; right angles are rotated exactly, and other angles are resampled onto the rotated bounding box.
      * 
      * @param rotate degrees to rotate image
      */
     public void setRotationDegree(int rotate) {
-        if ((rotate % 90) != 0) {
-            rotate = 0;
-        }
-        this.rotate = rotate;
+        this.rotate = (rotate % 360 + 360) % 360;
     }
 
     /**
@@ -170,6 +173,26 @@ public class DjatokaDecodeParam implements DjatokaConstants {
         return compLayer;
     }
 
+    /**
+     * Sets the number of quality layers to decode. Fewer layers decode faster at a lower quality, which suits small
+     * derivatives and previews. Use 0 to decode all the layers or AUTO_QUALITY_LAYERS to decode one fewer layer for
+     * each level the resolution is reduced by.
+     * 
+     * @param layers The number of quality layers to decode
+     */
+    public void setQualityLayers(int layers) {
+        this.layers = layers;
+    }
+
+    /**
+     * Gets the number of quality layers to decode.
+     * 
+     * @return The number of quality layers to decode, 0 for all of them or AUTO_QUALITY_LAYERS
+     */
+    public int getQualityLayers() {
+        return layers;
+    }
+
     /**
      * Gets a positive scaling factor (e.g. 0.85643), where 1.0 is the current size. Value must be greater than 0 and
      * less than 2.
@@ -227,7 +250,8 @@ public class DjatokaDecodeParam implements DjatokaConstants {
         } else if (scalingDims.length == 2) {
             sb.append("\"scalingDims\": \"" + scalingDims[0] + "," + scalingDims[1] + "\", ");
         }
-        sb.append("\"compLayer\": \"" + compLayer + "\" ");
+        sb.append("\"compLayer\": \"" + compLayer + "\", ");
+        sb.append("\"layers\": \"" + layers + "\" ");
         sb.append("}");
         return sb.toString();
     }
@@ -66,7 +66,7 @@ public class DjatokaExtract {
                 + "Option 2. Define absolute w,h values (e.g. 1024,768); "
                 + "Option 3. Define a single dimension (e.g. 1024,0) with " + "or without Level Parameter; "
                 + "Option 4. Use a single decimal scaling factor (e.g. 0.854)");
-        options.addOption("t", "rotate", true, "Number of degrees to rotate image (i.e. 90, 180, 270).");
+        options.addOption("t", "rotate", true, "Number of degrees to rotate image clockwise (e.g. 90, 180, 270).");
         options.addOption("f", "format", true,
                 "Mimetype of the image format to be provided as response. Default: image/jpeg");
         options.addOption("a", "AltImpl", true, "Alternate IExtract Implemenation");
@@ -28,6 +28,7 @@ import gov.lanl.adore.djatoka.io.FormatWriterParams;
 import gov.lanl.adore.djatoka.io.IWriter;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageScaler;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
@@ -58,6 +59,8 @@ public class DjatokaExtractProcessor {
 
     private IExtract extractImpl;
 
+    private ImageScaler.Quality scalingQuality = ImageScaler.Quality.BALANCED;
+
     /**
      * Constructor requiring an IExtract implementation
      * 
@@ -77,6 +80,15 @@ public class DjatokaExtractProcessor {
         fmtFactory = ff;
     }
 
+    /**
+     * Sets the quality preset extracted regions are scaled with
+     * 
+     * @param quality the quality preset used to scale extracted regions
+     */
+    public void setScalingQuality(ImageScaler.Quality quality) {
+        scalingQuality = quality;
+    }
+
     /**
      * Extract region or resolution level from JPEG 2000 image file.
      * 
@@ -166,12 +178,8 @@ public class DjatokaExtractProcessor {
             }
         }
 
-        BufferedImage bi = extractImpl.process(input, params);
+        BufferedImage bi = extract(input, params);
         if (bi != null) {
-            if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null) {
-                bi = applyScaling(bi, params);
-            }
-
             if (params.getTransform() != null) {
                 bi = params.getTransform().run(bi);
             }
@@ -231,13 +239,9 @@ public class DjatokaExtractProcessor {
             }
         }
 
-        BufferedImage bi = extractImpl.process(input, params);
+        BufferedImage bi = extract(input, params);
 
         if (bi != null) {
-            if (params.getScalingFactor() != 1.0 || params.getScalingDimensions() != null) {
-                bi = applyScaling(bi, params);
-            }
-
             if (params.getTransform() != null) {
                 bi = params.getTransform().run(bi);
             }
@@ -275,28 +279,37 @@ public class DjatokaExtractProcessor {
         }
     }
 
+    /**
+     * Extracts a region from a JPEG 2000 image file and applies any scaling. Extractors that can scale a region while
+     * they decode it are asked to, so the full size region isn't held in memory as well as the scaled one.
+     * 
+     * @param input absolute file path for input file.
+     * @param params DjatokaDecodeParam instance containing region, scaling and transform settings.
+     * @return extracted region as a BufferedImage, scaled if requested
+     * @throws DjatokaException
+     */
+    private BufferedImage extract(String input, DjatokaDecodeParam params) throws DjatokaException {
+        if (params.getScalingFactor() == 1.0 && params.getScalingDimensions() == null) {
+            return extractImpl.process(input, params);
+        }
+
+        if (extractImpl instanceof IScalingExtract) {
+            return ((IScalingExtract) extractImpl).process(input, params, scalingQuality);
+        }
+
+        BufferedImage bi = extractImpl.process(input, params);
+        return bi == null ? null : applyScaling(bi, params);
+    }
+
     /**
      * Apply scaling, if Scaling Factor != to 1.0 then check ScalingDimensions for w,h vars. A scaling factor value must
-     * be greater than 0 and less than 2. Note that ScalingFactor overrides ScalingDimensions.
+     * be greater than 0 and less than 3. Note that ScalingFactor overrides ScalingDimensions.
      * 
      * @param bi BufferedImage to be scaled.
      * @param params DjatokaDecodeParam containing ScalingFactor or ScalingDimensions vars
      * @return scaled instance of provided BufferedImage
      */
-    private static BufferedImage applyScaling(BufferedImage bi, DjatokaDecodeParam params) {
-        if (params.getScalingFactor() != 1.0 && params.getScalingFactor() > 0 && params.getScalingFactor() < 3) {
-            bi = ImageProcessingUtils.scale(bi, params.getScalingFactor());
-        } else if (params.getScalingDimensions() != null && params.getScalingDimensions().length == 2) {
-            int width = params.getScalingDimensions()[0];
-            if (width >= 3 * bi.getWidth()) {
-                return bi;
-            }
-            int height = params.getScalingDimensions()[1];
-            if (height >= 3 * bi.getHeight()) {
-                return bi;
-            }
-            bi = ImageProcessingUtils.scale(bi, width, height);
-        }
-        return bi;
+    private BufferedImage applyScaling(BufferedImage bi, DjatokaDecodeParam params) {
+        return ImageProcessingUtils.scale(bi, params, scalingQuality);
     }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2008  Los Alamos National Security, LLC.
+ *
+ * Los Alamos National Laboratory
+ * Research Library
+ * Digital Library Research & Prototyping Team
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA
+ * 
+ */
+
+package gov.lanl.adore.djatoka;
+
+import gov.lanl.adore.djatoka.util.ImageScaler;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Extraction interface for implementations that can scale a region while they decode it, so the full size region
+ * doesn't have to be held in memory before it's scaled. DjatokaExtractProcessor uses it, when it's available, for
+ * requests with a ScalingFactor or ScalingDimensions.
+ */
+public interface IScalingExtract extends IExtract {
+
+    /**
+     * Extracts region defined in DjatokaDecodeParam as BufferedImage, scaled as its ScalingFactor or
+     * ScalingDimensions ask (see ImageProcessingUtils.scale(BufferedImage, DjatokaDecodeParam, ImageScaler.Quality)).
+     * 
+     * @param input absolute file path of JPEG 2000 image file.
+     * @param params DjatokaDecodeParam instance containing region, scaling and transform settings.
+     * @param quality quality preset to scale the region with
+     * @return extracted and scaled region as a BufferedImage
+     * @throws DjatokaException
+     */
+    public BufferedImage process(String input, DjatokaDecodeParam params, ImageScaler.Quality quality)
+            throws DjatokaException;
+
+}
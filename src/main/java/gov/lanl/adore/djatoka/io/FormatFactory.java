@@ -66,7 +66,7 @@ public class FormatFactory implements FormatConstants {
                         fmtImpl.put(k, impl);
                     }
                 } catch (final ClassNotFoundException e) {
-                    System.err.println("Class Not Found for format " + k + ": " + v);
+                    LOGGER.warn("Class Not Found for format {}: {}", k, v);
                 }
             }
         }
@@ -137,6 +137,24 @@ public class FormatFactory implements FormatConstants {
         return formatMap;
     }
 
+    /**
+     * Gets the default format map with any $formatId_writer entries in the provided properties (e.g. those loaded
+     * from djatoka-properties.xml) replacing its writers, so an alternative writer, like TurboJPGWriter for JPEGs, can
+     * be configured for a format without having to list every other format's writer too.
+     * 
+     * @param props Properties that may contain $formatId_writer entries
+     * @return Properties object containing writer implementation instance key/value pairs
+     */
+    public static final Properties getFormatMap(final Properties props) {
+        final Properties formatMap = getDefaultFormatMap();
+        for (final String key : props.stringPropertyNames()) {
+            if (key.endsWith(FORMAT_WRITER_SUFFIX)) {
+                formatMap.put(key, props.getProperty(key).trim());
+            }
+        }
+        return formatMap;
+    }
+
     private IWriter getFormatWriterInstance(String format, final Properties props) {
         format = getFormatSuffix(format);
         IWriter w = null;
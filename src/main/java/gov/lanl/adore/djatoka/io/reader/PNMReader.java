@@ -24,13 +24,15 @@
 package gov.lanl.adore.djatoka.io.reader;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.IReader;
 
-import info.freelibrary.djatoka.io.PNMImage;
+import info.freelibrary.djatoka.io.PNMDecoder;
 
 /**
  * Returns BufferedImage give a PNM image InputStream or file path.
@@ -49,8 +51,8 @@ public class PNMReader implements IReader {
      */
     @Override
     public BufferedImage open(final String aFileName) throws FormatIOException {
-        try {
-            return new PNMImage(aFileName).getBufferedImage();
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(aFileName))) {
+            return new PNMDecoder(stream).decode();
         } catch (final IOException details) {
             throw new FormatIOException(details);
         }
@@ -66,7 +68,7 @@ public class PNMReader implements IReader {
     @Override
     public BufferedImage open(final InputStream aInputStream) throws FormatIOException {
         try {
-            return new PNMImage(aInputStream).getBufferedImage();
+            return new PNMDecoder(aInputStream).decode();
         } catch (final IOException details) {
             throw new FormatIOException(details);
         }
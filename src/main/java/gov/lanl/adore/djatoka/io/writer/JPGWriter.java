@@ -28,17 +28,26 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.IWriter;
 
 /**
  * JPG File Writer. Uses ImageIO to write BufferedImage as JPG
+ * <p/>
+ * ImageIO's JPEG writers are looked up once and kept, with their write params, in a bounded pool that's shared by
+ * all instances, so a request doesn't scan the service registry or build a new native encoder. Images are encoded
+ * through an in-memory stream rather than ImageIO's disk cache.
  * 
  * @author Ryan Chute
  * @author Kevin S. Clarke &lt;<a href="mailto:ksclarke@gmail.com">ksclarke@gmail.com</a>&gt;
@@ -47,6 +56,13 @@ public class JPGWriter implements IWriter {
 
     public static final int DEFAULT_QUALITY_LEVEL = 90;
 
+    /* The most idle writers that are kept for reuse; more are created when they're all busy */
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final BlockingQueue<PooledWriter> POOL = new ArrayBlockingQueue<PooledWriter>(POOL_SIZE);
+
+    private static volatile ImageWriterSpi myProvider;
+
     private int q = DEFAULT_QUALITY_LEVEL;
 
     /**
@@ -58,20 +74,31 @@ public class JPGWriter implements IWriter {
      */
     @Override
     public void write(final BufferedImage aImage, final OutputStream aOutStream) throws FormatIOException {
-        final Iterator<ImageWriter> iterator = ImageIO.getImageWritersByFormatName("jpeg");
+        final PooledWriter writer = getWriter();
+        boolean reusable = false;
 
         try {
-            final ImageWriter jpgWriter = iterator.next();
-            final ImageWriteParam iwp = jpgWriter.getDefaultWriteParam();
+            final ImageOutputStream stream = new MemoryCacheImageOutputStream(aOutStream);
+
+            writer.myParam.setCompressionQuality((float) (q / 100.0));
+            writer.myWriter.setOutput(stream);
 
-            iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            iwp.setCompressionQuality((float) (q / 100.0));
+            try {
+                writer.myWriter.write(null, new IIOImage(aImage, null, null), writer.myParam);
+            } finally {
+                // Flushes what's been encoded to the output stream, which is left open
+                stream.close();
+            }
 
-            jpgWriter.setOutput(ImageIO.createImageOutputStream(aOutStream));
-            jpgWriter.write(null, new IIOImage(aImage, null, null), iwp);
-            jpgWriter.dispose();
+            writer.myWriter.reset();
+            reusable = true;
         } catch (final IOException details) {
             throw new FormatIOException(details);
+        } finally {
+            // A writer that failed part way through is disposed of rather than reused
+            if (!reusable || !POOL.offer(writer)) {
+                writer.myWriter.dispose();
+            }
         }
     }
 
@@ -87,4 +114,57 @@ public class JPGWriter implements IWriter {
             q = Integer.parseInt((String) aProps.get("JPGWriter.quality_level"));
         }
     }
+
+    /**
+     * Gets an idle writer from the pool, or creates one if there isn't one.
+     */
+    private static PooledWriter getWriter() throws FormatIOException {
+        final PooledWriter pooled = POOL.poll();
+
+        if (pooled != null) {
+            return pooled;
+        }
+
+        try {
+            return new PooledWriter(getProvider().createWriterInstance());
+        } catch (final IOException details) {
+            throw new FormatIOException(details);
+        }
+    }
+
+    /**
+     * Gets the provider of ImageIO's first JPEG writer, which is only looked up once.
+     */
+    private static ImageWriterSpi getProvider() throws FormatIOException {
+        if (myProvider == null) {
+            final Iterator<ImageWriter> iterator = ImageIO.getImageWritersByFormatName("jpeg");
+
+            if (!iterator.hasNext()) {
+                throw new FormatIOException("No ImageIO JPEG writer is available");
+            }
+
+            final ImageWriter writer = iterator.next();
+
+            myProvider = writer.getOriginatingProvider();
+            writer.dispose();
+        }
+
+        return myProvider;
+    }
+
+    /**
+     * A JPEG writer and the explicit compression params it writes with.
+     */
+    private static final class PooledWriter {
+
+        private final ImageWriter myWriter;
+
+        private final ImageWriteParam myParam;
+
+        private PooledWriter(final ImageWriter aWriter) {
+            myWriter = aWriter;
+            myParam = aWriter.getDefaultWriteParam();
+            myParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        }
+    }
 }
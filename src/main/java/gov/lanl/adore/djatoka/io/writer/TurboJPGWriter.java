@@ -0,0 +1,175 @@
+
+package gov.lanl.adore.djatoka.io.writer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.io.IWriter;
+
+/**
+ * JPEG writer that encodes with libjpeg-turbo's native SIMD encoder, through the TurboJPEG Java binding that ships
+ * with libjpeg-turbo (<code>turbojpeg.jar</code> and <code>libturbojpeg</code>). The binding is found by reflection,
+ * so it's only needed at runtime; when it isn't on the classpath or its native library can't be loaded, or when an
+ * image's type isn't one TurboJPEG can read directly, images are written with {@link JPGWriter} instead.
+ * <p/>
+ * It's selected per format in djatoka-properties.xml, e.g. <code>jpeg_writer</code> and <code>jpg_writer</code> set
+ * to <code>gov.lanl.adore.djatoka.io.writer.TurboJPGWriter</code>. Like JPGWriter, it supports the
+ * <code>JPGWriter.quality_level</code> property, and it subsamples color images 4:2:0 like ImageIO does.
+ */
+public class TurboJPGWriter implements IWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TurboJPGWriter.class);
+
+    private static final String COMPRESSOR_CLASS = "org.libjpegturbo.turbojpeg.TJCompressor";
+
+    /* TurboJPEG's TJ.SAMP_420 and TJ.SAMP_GRAY chrominance subsampling options */
+    private static final int SAMP_420 = 2;
+
+    private static final int SAMP_GRAY = 3;
+
+    private static final Constructor<?> COMPRESSOR;
+
+    private static final Method SET_SOURCE_IMAGE;
+
+    private static final Method SET_SUBSAMP;
+
+    private static final Method SET_JPEG_QUALITY;
+
+    private static final Method COMPRESS;
+
+    private static final Method GET_COMPRESSED_SIZE;
+
+    private static final Method CLOSE;
+
+    static {
+        Constructor<?> compressor = null;
+        Method[] methods = new Method[6];
+
+        try {
+            final Class<?> type = Class.forName(COMPRESSOR_CLASS);
+
+            methods[0] = type.getMethod("setSourceImage", BufferedImage.class, int.class, int.class, int.class,
+                    int.class);
+            methods[1] = type.getMethod("setSubsamp", int.class);
+            methods[2] = type.getMethod("setJPEGQuality", int.class);
+            methods[3] = type.getMethod("compress", int.class);
+            methods[4] = type.getMethod("getCompressedSize");
+            methods[5] = type.getMethod("close");
+
+            // Creating a compressor loads the native library, so a missing one is found now rather than per image
+            methods[5].invoke(type.getConstructor().newInstance());
+            compressor = type.getConstructor();
+            LOGGER.debug("Writing JPEGs with libjpeg-turbo");
+        } catch (final ReflectiveOperationException | LinkageError details) {
+            LOGGER.info("libjpeg-turbo isn't available, so JPEGs will be written with ImageIO: {}", details
+                    .toString());
+            methods = new Method[6];
+        }
+
+        COMPRESSOR = compressor;
+        SET_SOURCE_IMAGE = methods[0];
+        SET_SUBSAMP = methods[1];
+        SET_JPEG_QUALITY = methods[2];
+        COMPRESS = methods[3];
+        GET_COMPRESSED_SIZE = methods[4];
+        CLOSE = methods[5];
+    }
+
+    private final JPGWriter myFallback = new JPGWriter();
+
+    private int myQuality = JPGWriter.DEFAULT_QUALITY_LEVEL;
+
+    /**
+     * Returns true if libjpeg-turbo is available to write with.
+     * 
+     * @return True if libjpeg-turbo is available; else, false
+     */
+    public static boolean isAvailable() {
+        return COMPRESSOR != null;
+    }
+
+    /**
+     * Write a BufferedImage instance using implementation to the provided OutputStream.
+     * 
+     * @param aImage BufferedImage instance to be serialized
+     * @param aOutStream OutputStream to output the image to
+     * @throws FormatIOException
+     */
+    @Override
+    public void write(final BufferedImage aImage, final OutputStream aOutStream) throws FormatIOException {
+        if (!isAvailable() || !isSupported(aImage.getType())) {
+            myFallback.write(aImage, aOutStream);
+            return;
+        }
+
+        Object compressor = null;
+
+        try {
+            final boolean gray = aImage.getType() == BufferedImage.TYPE_BYTE_GRAY;
+
+            compressor = COMPRESSOR.newInstance();
+            SET_SOURCE_IMAGE.invoke(compressor, aImage, 0, 0, aImage.getWidth(), aImage.getHeight());
+            SET_SUBSAMP.invoke(compressor, gray ? SAMP_GRAY : SAMP_420);
+            SET_JPEG_QUALITY.invoke(compressor, myQuality);
+
+            final byte[] jpeg = (byte[]) COMPRESS.invoke(compressor, 0);
+
+            aOutStream.write(jpeg, 0, (Integer) GET_COMPRESSED_SIZE.invoke(compressor));
+        } catch (final InvocationTargetException details) {
+            throw new FormatIOException(details.getCause());
+        } catch (final ReflectiveOperationException | IOException details) {
+            throw new FormatIOException(details);
+        } finally {
+            close(compressor);
+        }
+    }
+
+    /**
+     * Set the Writer Implementations Serialization properties. Only JPGWriter.quality_level is supported in this
+     * implementation.
+     * 
+     * @param aProps writer serialization properties
+     */
+    @Override
+    public void setWriterProperties(final Properties aProps) {
+        if (aProps.containsKey("JPGWriter.quality_level")) {
+            myQuality = Integer.parseInt((String) aProps.get("JPGWriter.quality_level"));
+        }
+
+        myFallback.setWriterProperties(aProps);
+    }
+
+    /**
+     * Returns true if TurboJPEG can read pixels straight from an image of the supplied type.
+     */
+    private static boolean isSupported(final int aType) {
+        switch (aType) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void close(final Object aCompressor) {
+        if (aCompressor != null) {
+            try {
+                CLOSE.invoke(aCompressor);
+            } catch (final ReflectiveOperationException details) {
+                LOGGER.warn("Unable to close a libjpeg-turbo compressor: {}", details.toString());
+            }
+        }
+    }
+}
@@ -23,14 +23,17 @@ package gov.lanl.adore.djatoka.kdu;
 
 import gov.lanl.adore.djatoka.DjatokaDecodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
-import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.IScalingExtract;
+import gov.lanl.adore.djatoka.io.FormatIOException;
 import gov.lanl.adore.djatoka.io.reader.PNMReader;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageScaler;
 import gov.lanl.adore.djatoka.util.JP2ImageInfo;
 import gov.lanl.util.ExecuteStreamHandler;
 import gov.lanl.util.PumpStreamHandler;
+import info.freelibrary.djatoka.io.PNMDecoder;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
@@ -38,12 +41,18 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,7 +74,7 @@ import kdu_jni.Kdu_params;
  * @author Ryan Chute
  * @author <a href="mailto:ksclarke@gmail.com">Kevin S. Clarke</a>
  */
-public class KduExtractExe implements IExtract {
+public class KduExtractExe implements IScalingExtract {
 
     private static Logger LOGGER = LoggerFactory.getLogger(KduExtractExe.class);
 
@@ -86,6 +95,13 @@ public class KduExtractExe implements IExtract {
 
     public final static String STDIN = "/dev/stdin";
 
+    /** Default nominal code-block height, for images whose code-block size isn't known */
+    private static final int DEFAULT_CODE_BLOCK_HEIGHT = 64;
+
+    private final ForkJoinPool stripePool;
+
+    private final long stripeMinPixels;
+
     static {
         env = System.getProperty("kakadu.home") + System.getProperty("file.separator");
         exe = env + ((System.getProperty("os.name").contains("Win")) ? KDU_EXPAND_EXE + ".exe" : KDU_EXPAND_EXE);
@@ -103,6 +119,26 @@ public class KduExtractExe implements IExtract {
         LOGGER.debug("envParams: " + ((envParams != null) ? envParams[0] + " | " : "") + exe);
     }
 
+    /**
+     * Creates a kdu_expand bridge that decodes each request with a single kdu_expand process.
+     */
+    public KduExtractExe() {
+        this(1, 0);
+    }
+
+    /**
+     * Creates a kdu_expand bridge that splits large region requests into horizontal stripes, which are decoded by
+     * parallel kdu_expand processes and stitched back together. Stripes break on codestream tile boundaries, or on
+     * code-block rows in untiled images, so the stripes don't decode the same compressed data twice.
+     * 
+     * @param stripeThreads the number of kdu_expand processes that may decode stripes at once; 1 disables striping
+     * @param stripeMinPixels the number of decoded pixels a region must have to be split into stripes
+     */
+    public KduExtractExe(int stripeThreads, long stripeMinPixels) {
+        this.stripePool = stripeThreads > 1 ? new ForkJoinPool(stripeThreads) : null;
+        this.stripeMinPixels = stripeMinPixels;
+    }
+
     /**
      * Extracts region defined in DjatokaDecodeParam as BufferedImage
      * 
@@ -112,32 +148,27 @@ public class KduExtractExe implements IExtract {
      * @throws DjatokaException
      */
     public BufferedImage processUsingTemp(InputStream input, DjatokaDecodeParam params) throws DjatokaException {
-        File in;
+        File in = null;
 
-        // Copy to tmp file
         try {
+            // Spool to a temp file in one pass; kdu_expand then reads only the parts of it the region needs
             in = File.createTempFile("tmp", ".jp2");
-            FileOutputStream fos = new FileOutputStream(in);
-            in.deleteOnExit();
-            IOUtils.copyStream(input, fos);
+            Files.copy(input, in.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            return process(in.getAbsolutePath(), params);
         } catch (IOException e) {
             LOGGER.error(e.getMessage(), e);
             throw new DjatokaException(e.getMessage(), e);
-        }
-
-        BufferedImage bi = process(in.getAbsolutePath(), params);
-
-        if (in != null) {
-            if (!in.delete() && LOGGER.isWarnEnabled()) {
+        } finally {
+            if (in != null && !in.delete() && LOGGER.isWarnEnabled()) {
                 LOGGER.warn("File not deleted: {}", in);
             }
         }
-
-        return bi;
     }
 
     /**
-     * Extracts region defined in DjatokaDecodeParam as BufferedImage
+     * Extracts region defined in DjatokaDecodeParam as BufferedImage. Requests for a region, a level or a scaled
+     * image are spooled to a temporary file, which is used both to read the image's metadata and to decode it.
      * 
      * @param is InputStream containing a JPEG 2000 image bitstream.
      * @param params DjatokaDecodeParam instance containing region and transform settings.
@@ -145,22 +176,12 @@ public class KduExtractExe implements IExtract {
      * @throws DjatokaException
      */
     public BufferedImage process(InputStream is, DjatokaDecodeParam params) throws DjatokaException {
-        if (isWindows) {
+        if (isWindows || params.getRegion() != null || params.getLevel() >= 0 || params.getScalingFactor() != 1.0 ||
+                params.getScalingDimensions() != null) {
             return processUsingTemp(is, params);
         }
 
-        ArrayList<Double> dims = null;
-
-        if (params.getRegion() != null) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            IOUtils.copyStream(is, baos);
-            byte[] bytes = baos.toByteArray();
-            dims = getRegionMetadata(new ByteArrayInputStream(bytes), params);
-
-            return process(new ByteArrayInputStream(baos.toByteArray()), dims, params);
-        } else {
-            return process(is, dims, params);
-        }
+        return process(is, null, params);
     }
 
     /**
@@ -182,13 +203,12 @@ public class KduExtractExe implements IExtract {
             String command = getKduExtractCommand(input, output, dims, params);
             String[] cmdParts = CommandLineTokenizer.tokenize(command);
             Process process = Runtime.getRuntime().exec(cmdParts, envParams, new File(env));
-            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
             ByteArrayOutputStream stderr = new ByteArrayOutputStream();
-            ExecuteStreamHandler streamHandler = new PumpStreamHandler(stdout, stderr, is);
+            // Standard output isn't pumped; it's decoded below as kdu_expand writes it
+            ExecuteStreamHandler streamHandler = new PumpStreamHandler(null, stderr, is);
 
             try {
                 streamHandler.setProcessInputStream(process.getOutputStream());
-                streamHandler.setProcessOutputStream(process.getInputStream());
                 streamHandler.setProcessErrorStream(process.getErrorStream());
             } catch (IOException e) {
                 LOGGER.error(e.getMessage(), e);
@@ -203,9 +223,22 @@ public class KduExtractExe implements IExtract {
             streamHandler.start();
 
             try {
+                try {
+                    bi = new PNMReader().open(new BufferedInputStream(process.getInputStream()));
+                } catch (FormatIOException details) {
+                    // Let kdu_expand finish writing its error message before reporting it
+                    close(process.getInputStream());
+                    waitFor(process);
+                    streamHandler.stop();
+
+                    if (stderr.size() > 0) {
+                        throw new DjatokaException(stderr.toString().trim(), details);
+                    }
+
+                    throw details;
+                }
+
                 waitFor(process);
-                final ByteArrayInputStream bais = new ByteArrayInputStream(stdout.toByteArray());
-                bi = new PNMReader().open(bais);
                 streamHandler.stop();
             } catch (ThreadDeath t) {
                 LOGGER.error(t.getMessage(), t);
@@ -233,6 +266,61 @@ public class KduExtractExe implements IExtract {
      * @throws DjatokaException
      */
     public BufferedImage process(String input, DjatokaDecodeParam params) throws DjatokaException {
+        return extract(input, params, null);
+    }
+
+    /**
+     * Extracts region defined in DjatokaDecodeParam as BufferedImage, scaled as its ScalingFactor or
+     * ScalingDimensions ask. When a single kdu_expand process decodes the region, which is already rotated by any
+     * right angle, its output is scaled row by row as it's read, so the full size region is never held in memory;
+     * striped regions and other angles are scaled once they've been decoded and rotated.
+     * 
+     * @param input absolute file path of JPEG 2000 image file.
+     * @param params DjatokaDecodeParam instance containing region, scaling and transform settings.
+     * @param quality quality preset to scale the region with
+     * @return extracted and scaled region as a BufferedImage
+     * @throws DjatokaException
+     */
+    public BufferedImage process(String input, DjatokaDecodeParam params, ImageScaler.Quality quality)
+            throws DjatokaException {
+        return extract(input, params, quality);
+    }
+
+    /**
+     * Extracts a region, scaling it with the supplied quality preset if there is one.
+     */
+    private BufferedImage extract(String input, DjatokaDecodeParam params, ImageScaler.Quality quality)
+            throws DjatokaException {
+        ImageRecord r = getMetadata(new ImageRecord(input));
+        ArrayList<Double> dims = getRegionMetadata(r, params);
+        int[] stripes = stripePool != null && !isWindows ? getStripes(r, dims, params) : null;
+        boolean rightAngle = params.getRotationDegree() % 90 == 0;
+        BufferedImage bi;
+
+        if (stripes != null) {
+            bi = processStripes(input, dims, stripes, r.getHeight(), params);
+        } else {
+            bi = expand(input, dims, params, rightAngle ? quality : null);
+        }
+
+        // Stripes are decoded unrotated, and kdu_expand only rotates by right angles; anything else is rotated here
+        if ((stripes != null || !rightAngle) && params.getRotationDegree() > 0 && bi != null && bi != OOB) {
+            bi = ImageProcessingUtils.rotate(bi, params.getRotationDegree());
+        }
+
+        // Anything that wasn't scaled as it was read is scaled now
+        if (quality != null && bi != null && (stripes != null || !rightAngle || bi == OOB)) {
+            bi = ImageProcessingUtils.scale(bi, params, quality);
+        }
+
+        return bi;
+    }
+
+    /**
+     * Decodes a region with a single kdu_expand process, scaling it as it's read if there's a quality preset.
+     */
+    private BufferedImage expand(String input, ArrayList<Double> dims, DjatokaDecodeParam params,
+            ImageScaler.Quality quality) throws DjatokaException {
         String output = STDOUT;
         File winOut = null;
         BufferedImage bi = null;
@@ -252,7 +340,6 @@ public class KduExtractExe implements IExtract {
         Runtime rt = Runtime.getRuntime();
 
         try {
-            ArrayList<Double> dims = getRegionMetadata(input, params);
             String command = getKduExtractCommand(input, output, dims, params);
             String[] cmdParts = CommandLineTokenizer.tokenize(command);
             final Process process = rt.exec(cmdParts, envParams, new File(env));
@@ -260,12 +347,12 @@ public class KduExtractExe implements IExtract {
             if (output != null) {
                 try {
                     if (output.equals(STDOUT)) {
-                        bi = new PNMReader().open(new BufferedInputStream(process.getInputStream()));
+                        bi = read(new BufferedInputStream(process.getInputStream()), params, quality);
                     } else if (isWindows) {
                         process.waitFor();
 
                         try {
-                            bi = new PNMReader().open(new BufferedInputStream(new FileInputStream(new File(output))));
+                            bi = read(new BufferedInputStream(new FileInputStream(new File(output))), params, quality);
                         } catch (Exception e) {
                             LOGGER.error(e.getMessage(), e);
 
@@ -315,6 +402,173 @@ public class KduExtractExe implements IExtract {
         return bi;
     }
 
+    /**
+     * Reads kdu_expand's PNM output. If there's a quality preset, the rows are pushed through a scaler as they're
+     * decoded, so only the scaled image is created.
+     */
+    private static BufferedImage read(InputStream stream, DjatokaDecodeParam params, ImageScaler.Quality quality)
+            throws FormatIOException {
+        if (quality == null) {
+            return new PNMReader().open(stream);
+        }
+
+        try {
+            PNMDecoder decoder = new PNMDecoder(stream);
+            int[] size = ImageProcessingUtils.getScaledSize(decoder.getWidth(), decoder.getHeight(), params);
+
+            if (size == null) {
+                return decoder.decode();
+            }
+
+            int type = decoder.isGray() ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+            ImageScaler.RowScaler scaler = new ImageScaler.RowScaler(decoder.getWidth(), decoder.getHeight(), type,
+                    size[0], size[1], quality);
+
+            decoder.decode(scaler);
+
+            // Gray rows are scaled as gray, but regions are returned as RGB images like PNMReader returns them
+            return ImageProcessingUtils.toRGB(scaler.getImage());
+        } catch (IOException details) {
+            throw new FormatIOException(details);
+        }
+    }
+
+    /**
+     * Gets the rows of the full resolution image at which a large region should be split into stripes, starting
+     * with the region's top and ending with its bottom, or null if the region isn't large enough to split. Interior
+     * breaks are multiples of the stripe unit, which is a multiple of the reduction's scale, so the stripes decode to
+     * exactly the rows that the whole region would.
+     */
+    int[] getStripes(ImageRecord r, ArrayList<Double> dims, DjatokaDecodeParam params) {
+        int reduce = params.getLevelReductionFactor();
+        int height = r.getHeight();
+        int width = r.getWidth();
+        double top = dims.isEmpty() ? 0.0 : dims.get(0);
+        double left = dims.isEmpty() ? 0.0 : dims.get(1);
+
+        // kdu_expand rounds a region out to whole pixels like this
+        int y0 = (int) Math.floor(height * top);
+        int y1 = Math.min(height, y0 + (int) Math.ceil(height * (dims.isEmpty() ? 1.0 : dims.get(2))));
+        int x0 = (int) Math.floor(width * left);
+        int x1 = Math.min(width, x0 + (int) Math.ceil(width * (dims.isEmpty() ? 1.0 : dims.get(3))));
+
+        if ((long) ((y1 - y0) >> reduce) * ((x1 - x0) >> reduce) < stripeMinPixels) {
+            return null;
+        }
+
+        int unit = getStripeUnit(r, reduce);
+        int first = y0 / unit + 1;
+        int breaks = (y1 - 1) / unit - first + 1;
+        int count = Math.min(stripePool.getParallelism(), breaks + 1);
+
+        if (count < 2) {
+            return null;
+        }
+
+        int[] stripes = new int[count + 1];
+
+        stripes[0] = y0;
+        stripes[count] = y1;
+
+        // Spread the interior breaks evenly over the unit boundaries inside the region
+        for (int i = 1; i < count; i++) {
+            stripes[i] = (first - 1 + (i * (breaks + 1)) / count) * unit;
+        }
+
+        return stripes;
+    }
+
+    /**
+     * Gets the number of full resolution rows that stripes are made of: a tile when the image is tiled, or else two
+     * code-blocks' worth of rows at the decoded resolution (its highest subbands are half its height).
+     */
+    static int getStripeUnit(ImageRecord r, int reduce) {
+        int tile = r.getTileHeight();
+        int block = r.getCodeBlockHeight() > 0 ? r.getCodeBlockHeight() : DEFAULT_CODE_BLOCK_HEIGHT;
+
+        if (tile > 0 && tile < r.getHeight() && tile % (1 << reduce) == 0) {
+            return tile;
+        }
+
+        return (2 * block) << reduce;
+    }
+
+    /**
+     * Decodes the stripes of a large region in parallel and stitches them together. The stripes are decoded without
+     * rotation, so the stitched image is left for the caller to rotate.
+     */
+    private BufferedImage processStripes(final String input, ArrayList<Double> dims, int[] stripes, int height,
+            DjatokaDecodeParam params) throws DjatokaException {
+        final DjatokaDecodeParam stripeParams = new DjatokaDecodeParam();
+        List<Callable<BufferedImage>> tasks = new ArrayList<Callable<BufferedImage>>();
+        List<BufferedImage> images = new ArrayList<BufferedImage>();
+        double left = dims.isEmpty() ? 0.0 : dims.get(1);
+        double width = dims.isEmpty() ? 1.0 : dims.get(3);
+        int stitchedHeight = 0;
+
+        stripeParams.setLevelReductionFactor(params.getLevelReductionFactor());
+        stripeParams.setQualityLayers(params.getQualityLayers());
+        stripeParams.setCompositingLayer(params.getCompositingLayer());
+
+        for (int i = 0; i < stripes.length - 1; i++) {
+            final ArrayList<Double> stripe = new ArrayList<Double>(4);
+
+            // Half a row in from each break so kdu_expand's rounding lands on it
+            stripe.add(i == 0 && !dims.isEmpty() ? dims.get(0) : (stripes[i] + 0.5) / height);
+            stripe.add(left);
+            stripe.add((stripes[i + 1] - stripes[i] - 0.5) / height);
+            stripe.add(width);
+
+            tasks.add(new Callable<BufferedImage>() {
+
+                @Override
+                public BufferedImage call() throws DjatokaException {
+                    return expand(input, stripe, stripeParams, null);
+                }
+            });
+        }
+
+        try {
+            for (Future<BufferedImage> future : stripePool.invokeAll(tasks)) {
+                images.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DjatokaException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DjatokaException) {
+                throw (DjatokaException) e.getCause();
+            }
+
+            throw new DjatokaException(e.getCause().getMessage(), e.getCause());
+        }
+
+        for (BufferedImage image : images) {
+            // Fall back to a single decode for anything we can't stitch
+            if (image == null || image == OOB || image.getType() == BufferedImage.TYPE_CUSTOM ||
+                    image.getWidth() != images.get(0).getWidth() || image.getType() != images.get(0).getType()) {
+                LOGGER.debug("Unable to stitch stripes; decoding the region with a single process");
+                return expand(input, dims, stripeParams, null);
+            }
+
+            stitchedHeight += image.getHeight();
+        }
+
+        BufferedImage bi = new BufferedImage(images.get(0).getWidth(), stitchedHeight, images.get(0).getType());
+        int y = 0;
+
+        for (BufferedImage image : images) {
+            bi.getRaster().setRect(0, y, image.getRaster());
+            y += image.getHeight();
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Stitched {} stripes into a {}x{} image", images.size(), bi.getWidth(), bi.getHeight());
+        }
+
+        return bi;
+    }
+
     /**
      * Extracts region defined in DjatokaDecodeParam as BufferedImage
      * 
@@ -462,8 +716,18 @@ public class KduExtractExe implements IExtract {
                 if (v[0] > 0) {
                     r.setQualityLayers(v[0]);
                 }
+
+                p.Get(Kdu_global.Cblk, 0, 0, v, true, true, true);
+
+                if (v[0] > 0) {
+                    r.setCodeBlockHeight(v[0]);
+                }
             }
 
+            Kdu_dims tiles = new Kdu_dims();
+            codestream.Get_tile_partition(tiles);
+            r.setTileHeight(tiles.Access_size().Get_y());
+
             if (codestream.Exists()) {
                 codestream.Destroy();
             }
@@ -550,12 +814,6 @@ public class KduExtractExe implements IExtract {
         return getRegionMetadata(r, params);
     }
 
-    private final ArrayList<Double> getRegionMetadata(String input, DjatokaDecodeParam params)
-            throws DjatokaException {
-        ImageRecord r = getMetadata(new ImageRecord(input));
-        return getRegionMetadata(r, params);
-    }
-
     private final ArrayList<Double> getRegionMetadata(ImageRecord r, DjatokaDecodeParam params)
             throws DjatokaException {
         if (params.getLevel() >= 0) {
@@ -563,14 +821,6 @@ public class KduExtractExe implements IExtract {
             levels = (r.getDWTLevels() < levels) ? r.getDWTLevels() : levels;
             int reduce = levels - params.getLevel();
             params.setLevelReductionFactor((reduce >= 0) ? reduce : 0);
-        } else if (params.getLevel() == -1 && params.getRegion() == null && params.getScalingDimensions() != null) {
-            int width = params.getScalingDimensions()[0];
-            int height = params.getScalingDimensions()[1];
-            int levels = ImageProcessingUtils.getLevelCount(r.getWidth(), r.getHeight());
-            int scale_level = ImageProcessingUtils.getScalingLevel(r.getWidth(), r.getHeight(), width, height);
-            levels = (r.getDWTLevels() < levels) ? r.getDWTLevels() : levels;
-            int reduce = levels - scale_level;
-            params.setLevelReductionFactor((reduce >= 0) ? reduce : 0);
         }
 
         int reduce = 1 << params.getLevelReductionFactor();
@@ -621,6 +871,12 @@ public class KduExtractExe implements IExtract {
             }
         }
 
+        // Decode scaled requests at the smallest resolution that's still at least the requested size
+        double width = (dims.isEmpty() ? 1.0 : dims.get(3)) * r.getWidth() / reduce;
+        double height = (dims.isEmpty() ? 1.0 : dims.get(2)) * r.getHeight() / reduce;
+        ImageProcessingUtils.setScalingReduction(params, width, height, r.getDWTLevels());
+        ImageProcessingUtils.setQualityLayers(params, r.getQualityLayers());
+
         return dims;
     }
 
@@ -639,7 +895,11 @@ public class KduExtractExe implements IExtract {
             sb.append("-reduce ").append(params.getLevelReductionFactor()).append(" ");
         }
 
-        if (params.getRotationDegree() > 0) {
+        if (params.getQualityLayers() > 0) {
+            sb.append("-layers ").append(params.getQualityLayers()).append(" ");
+        }
+
+        if (params.getRotationDegree() > 0 && params.getRotationDegree() % 90 == 0) {
             sb.append("-rotate ").append(params.getRotationDegree()).append(" ");
         }
 
@@ -0,0 +1,364 @@
+
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import kdu_jni.Jp2_family_src;
+import kdu_jni.Jp2_locator;
+import kdu_jni.Jp2_source;
+import kdu_jni.KduException;
+import kdu_jni.Kdu_channel_mapping;
+import kdu_jni.Kdu_codestream;
+import kdu_jni.Kdu_coords;
+import kdu_jni.Kdu_dims;
+
+/**
+ * A bounded cache of opened JP2 codestreams, so the tiles of an image that's being panned don't each pay for opening
+ * the file, parsing its headers and building a codestream. Handles are keyed by the JP2's path and last modified
+ * time, and are opened in persistent mode so they can be decoded from repeatedly.
+ * <p/>
+ * A region decompressor changes a codestream's input restrictions, so a handle is leased exclusively to one decode
+ * at a time; concurrent decodes of the same image get handles of their own. When its lease is released a handle is
+ * made idle again, or destroyed if its file has changed. Idle handles are evicted least recently used first when
+ * there are too many of them, or when the native memory held by all the handles, leased and idle, grows past the
+ * configured limit. Handles that are leased can't be evicted, so under memory pressure the idle ones go first.
+ * Closing the cache destroys the idle handles and any that are released afterwards.
+ */
+public class CodestreamCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CodestreamCache.class);
+
+    private final Map<String, Deque<Handle>> myIdleHandles = new HashMap<String, Deque<Handle>>();
+
+    /* Idle handles, least recently used first */
+    private final Set<Handle> myLRU = new LinkedHashSet<Handle>();
+
+    private final int myMaxHandles;
+
+    private final long myMaxMemory;
+
+    /* Native memory held by idle handles */
+    private long myMemory;
+
+    /* Native memory held by leased handles, as of when they were last idle */
+    private long myLeasedMemory;
+
+    private boolean isClosed;
+
+    private long myHitCount;
+
+    private long myMissCount;
+
+    /**
+     * Creates a codestream cache.
+     *
+     * @param aMaxHandles The maximum number of idle handles to keep
+     * @param aMaxMemory The maximum number of bytes of native memory all the handles may hold before idle ones are
+     *        evicted
+     */
+    public CodestreamCache(final int aMaxHandles, final long aMaxMemory) {
+        myMaxHandles = aMaxHandles;
+        myMaxMemory = aMaxMemory;
+    }
+
+    /**
+     * Leases a handle on the supplied JP2, reusing an idle one if the file hasn't changed since it was opened. The
+     * handle must be given back with {@link #release(Handle, boolean)}.
+     *
+     * @param aPath The path of a JP2 file
+     * @return A handle on the JP2's codestream
+     * @throws KduException If the JP2 can't be opened
+     */
+    public Handle acquire(final String aPath) throws KduException {
+        final long lastModified = new File(aPath).lastModified();
+
+        synchronized (this) {
+            final Deque<Handle> idle = myIdleHandles.get(aPath);
+
+            while (idle != null && !idle.isEmpty()) {
+                final Handle handle = idle.pollLast();
+
+                remove(handle, idle);
+
+                if (handle.myLastModified == lastModified) {
+                    handle.isLeased = true;
+                    myLeasedMemory += handle.myMemory;
+                    myHitCount++;
+                    return handle;
+                }
+
+                // The file has changed since this handle was opened
+                handle.destroy();
+            }
+
+            myMissCount++;
+        }
+
+        final Handle handle = new Handle(aPath, lastModified);
+
+        handle.isLeased = true;
+        return handle;
+    }
+
+    /**
+     * Gives back a leased handle. A handle that was used in a failed decode should be discarded, since the state of
+     * its codestream is unknown.
+     *
+     * @param aHandle A leased handle
+     * @param aDiscard True if the handle shouldn't be reused
+     */
+    public synchronized void release(final Handle aHandle, final boolean aDiscard) {
+        if (!aHandle.isLeased) {
+            throw new IllegalStateException("Codestream handle for " + aHandle.myPath + " isn't leased");
+        }
+
+        aHandle.isLeased = false;
+        myLeasedMemory -= aHandle.myMemory;
+
+        if (aDiscard || isClosed || myMaxHandles <= 0 || new File(aHandle.myPath).lastModified() != aHandle
+                .myLastModified) {
+            aHandle.destroy();
+            return;
+        }
+
+        Deque<Handle> idle = myIdleHandles.get(aHandle.myPath);
+
+        if (idle == null) {
+            idle = new ArrayDeque<Handle>();
+            myIdleHandles.put(aHandle.myPath, idle);
+        }
+
+        aHandle.myMemory = aHandle.getMemory();
+        idle.addLast(aHandle);
+        myLRU.add(aHandle);
+        myMemory += aHandle.myMemory;
+
+        trim(myMaxHandles, myMaxMemory);
+    }
+
+    /**
+     * Evicts idle handles, least recently used first, until the cache is within the supplied bounds.
+     *
+     * @param aMaxHandles The number of idle handles to keep at most
+     * @param aMaxMemory The number of bytes of native memory all the handles may hold at most
+     */
+    public synchronized void trim(final int aMaxHandles, final long aMaxMemory) {
+        final Iterator<Handle> iterator = myLRU.iterator();
+
+        while (iterator.hasNext() && (myLRU.size() > aMaxHandles || myMemory + myLeasedMemory > aMaxMemory)) {
+            final Handle handle = iterator.next();
+            final Deque<Handle> idle = myIdleHandles.get(handle.myPath);
+
+            iterator.remove();
+            idle.remove(handle);
+            myMemory -= handle.myMemory;
+
+            if (idle.isEmpty()) {
+                myIdleHandles.remove(handle.myPath);
+            }
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Evicting codestream for {} ({} bytes)", handle.myPath, handle.myMemory);
+            }
+
+            handle.destroy();
+        }
+    }
+
+    /**
+     * Evicts all the idle handles.
+     */
+    public void clear() {
+        trim(0, 0);
+    }
+
+    /**
+     * Closes the cache, destroying the idle handles now and leased handles as they're released. Handles can still
+     * be leased from a closed cache, but they aren't kept once they're released.
+     */
+    public synchronized void close() {
+        isClosed = true;
+        clear();
+    }
+
+    /**
+     * Gets the number of idle handles in the cache.
+     *
+     * @return The number of idle handles
+     */
+    public synchronized int size() {
+        return myLRU.size();
+    }
+
+    /**
+     * Gets the number of bytes of native memory the idle handles hold.
+     *
+     * @return The native memory held by idle handles
+     */
+    public synchronized long getMemory() {
+        return myMemory;
+    }
+
+    /**
+     * Gets the number of leases that reused an already opened codestream.
+     *
+     * @return The number of cache hits
+     */
+    public synchronized long getHitCount() {
+        return myHitCount;
+    }
+
+    /**
+     * Gets the number of leases that had to open a codestream.
+     *
+     * @return The number of cache misses
+     */
+    public synchronized long getMissCount() {
+        return myMissCount;
+    }
+
+    private void remove(final Handle aHandle, final Deque<Handle> aIdle) {
+        myLRU.remove(aHandle);
+        myMemory -= aHandle.myMemory;
+
+        if (aIdle.isEmpty()) {
+            myIdleHandles.remove(aHandle.myPath);
+        }
+    }
+
+    /**
+     * An opened JP2 codestream and the header information decodes need from it.
+     */
+    public static final class Handle {
+
+        private final Jp2_family_src myFamily = new Jp2_family_src();
+
+        private final Jp2_source mySource = new Jp2_source();
+
+        private final Kdu_codestream myCodestream = new Kdu_codestream();
+
+        private final Kdu_channel_mapping myChannels = new Kdu_channel_mapping();
+
+        private final String myPath;
+
+        private final long myLastModified;
+
+        private final Kdu_coords myExpansion;
+
+        private final int myWidth;
+
+        private final int myHeight;
+
+        /* Guarded by the cache */
+        private boolean isLeased;
+
+        private long myMemory;
+
+        private Handle(final String aPath, final long aLastModified) throws KduException {
+            myPath = aPath;
+            myLastModified = aLastModified;
+
+            try {
+                myFamily.Open(aPath, true);
+                mySource.Open(myFamily, new Jp2_locator());
+                mySource.Read_header();
+                myCodestream.Create(mySource);
+                myCodestream.Set_persistent();
+
+                if (mySource.Exists()) {
+                    myChannels.Configure(mySource, false);
+                } else {
+                    myChannels.Configure(myCodestream);
+                }
+
+                final int component = myChannels.Get_source_component(0);
+                final Kdu_dims dims = new Kdu_dims();
+
+                myExpansion = KduExtractProcessorJNI.getReferenceExpansion(component, myChannels, myCodestream);
+                myCodestream.Get_dims(component, dims);
+                myWidth = dims.Access_size().Get_x();
+                myHeight = dims.Access_size().Get_y();
+            } catch (final KduException details) {
+                destroy();
+                throw details;
+            }
+        }
+
+        /**
+         * Gets the handle's codestream.
+         *
+         * @return The codestream
+         */
+        public Kdu_codestream getCodestream() {
+            return myCodestream;
+        }
+
+        /**
+         * Gets the handle's channel mapping.
+         *
+         * @return The channel mapping
+         */
+        public Kdu_channel_mapping getChannels() {
+            return myChannels;
+        }
+
+        /**
+         * Gets the expansion factors that map the first channel's component onto the reference grid.
+         *
+         * @return The reference expansion
+         */
+        public Kdu_coords getExpansion() {
+            return myExpansion;
+        }
+
+        /**
+         * Gets the full resolution width of the first channel's component.
+         *
+         * @return The image width
+         */
+        public int getWidth() {
+            return myWidth;
+        }
+
+        /**
+         * Gets the full resolution height of the first channel's component.
+         *
+         * @return The image height
+         */
+        public int getHeight() {
+            return myHeight;
+        }
+
+        private long getMemory() {
+            try {
+                return myCodestream.Get_compressed_data_memory() + myCodestream.Get_compressed_state_memory();
+            } catch (final KduException details) {
+                return 0;
+            }
+        }
+
+        private void destroy() {
+            try {
+                if (myCodestream.Exists()) {
+                    myCodestream.Destroy();
+                }
+            } catch (final KduException details) {
+                LOGGER.warn("Unable to destroy codestream for {}: {}", myPath, details.getMessage());
+            }
+
+            myChannels.Native_destroy();
+            mySource.Native_destroy();
+            myFamily.Native_destroy();
+        }
+    }
+}
@@ -0,0 +1,461 @@
+
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.DjatokaException;
+import gov.lanl.adore.djatoka.IExtract;
+import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+import kdu_jni.KduException;
+import kdu_jni.Kdu_channel_mapping;
+import kdu_jni.Kdu_codestream;
+import kdu_jni.Kdu_coords;
+import kdu_jni.Kdu_dims;
+import kdu_jni.Kdu_global;
+import kdu_jni.Kdu_region_decompressor;
+
+/**
+ * Extracts JP2 regions in-process with the Kakadu region decompressor, so a tile doesn't cost a fork and exec of
+ * <code>kdu_expand</code>, a pipe copy and a PNM parse. Decodes run on a bounded pool of decoder contexts; a request
+ * waits for a free context rather than starting another decode, which keeps native memory use predictable under
+ * load. Opened codestreams are kept in a {@link CodestreamCache}, so panning across an image doesn't reopen and
+ * reparse it for every tile. Inputs this extractor doesn't handle (streams, JPX compositing layers) and decodes that
+ * fail in the native layer are passed to {@link KduExtractExe}, as is everything if the Kakadu JNI library can't be
+ * loaded. {@link #close()} releases the native resources kept between decodes.
+ */
+public class KduExtractPooledJNI implements IExtract {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KduExtractPooledJNI.class);
+
+    private static final boolean JNI_AVAILABLE = loadLibrary();
+
+    /* The number of pixels the decompressor is asked to produce per call */
+    private static final int INCREMENT_PIXELS = 1 << 18;
+
+    /*
+     * The largest region that's decoded straight into its image. The JNI layer copies the whole destination array in
+     * and out of every call and the decompressor returns after each row of tiles, so larger regions are decoded in
+     * increments through a scratch buffer instead.
+     */
+    private static final int DIRECT_PIXELS = 1 << 20;
+
+    private static final int MAX_LAYERS = 16384;
+
+    /* The default number of idle codestreams that are kept open per decoder context */
+    private static final int CODESTREAMS_PER_DECODER = 8;
+
+    private static final long DEFAULT_CODESTREAM_MEMORY = 256L * 1024 * 1024;
+
+    private final KduExtractExe myFallback = new KduExtractExe();
+
+    private final BlockingQueue<Decoder> myDecoders;
+
+    private final CodestreamCache myCodestreams;
+
+    /**
+     * Creates an extractor with one decoder context per available processor.
+     */
+    public KduExtractPooledJNI() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an extractor with the supplied number of decoder contexts.
+     *
+     * @param aPoolSize The maximum number of concurrent decodes
+     */
+    public KduExtractPooledJNI(final int aPoolSize) {
+        this(aPoolSize, Math.max(1, aPoolSize) * CODESTREAMS_PER_DECODER, DEFAULT_CODESTREAM_MEMORY);
+    }
+
+    /**
+     * Creates an extractor with the supplied number of decoder contexts and the supplied bounds on the opened
+     * codestreams that are kept for reuse between decodes.
+     *
+     * @param aPoolSize The maximum number of concurrent decodes
+     * @param aCacheSize The maximum number of idle codestreams to keep open
+     * @param aCacheMemory The maximum number of bytes of native memory opened codestreams may hold before idle ones
+     *        are closed
+     */
+    public KduExtractPooledJNI(final int aPoolSize, final int aCacheSize, final long aCacheMemory) {
+        this(aPoolSize, aCacheSize, aCacheMemory, DIRECT_PIXELS);
+    }
+
+    /**
+     * Creates an extractor that decodes regions of up to the supplied number of pixels straight into their images
+     * and larger ones in increments; tests use it to compare the two.
+     */
+    KduExtractPooledJNI(final int aPoolSize, final int aCacheSize, final long aCacheMemory, final int aDirectPixels) {
+        final int poolSize = Math.max(1, aPoolSize);
+
+        myCodestreams = new CodestreamCache(aCacheSize, aCacheMemory);
+
+        myDecoders = new ArrayBlockingQueue<Decoder>(poolSize);
+
+        for (int index = 0; index < poolSize; index++) {
+            myDecoders.add(new Decoder(aDirectPixels));
+        }
+
+        if (!JNI_AVAILABLE && LOGGER.isWarnEnabled()) {
+            LOGGER.warn("Kakadu JNI library isn't available; extracting with {}", KduExtractExe.KDU_EXPAND_EXE);
+        }
+    }
+
+    /**
+     * Returns true if the Kakadu JNI library was loaded and decodes can be done in-process.
+     *
+     * @return True if in-process decoding is available; else, false
+     */
+    public static boolean isAvailable() {
+        return JNI_AVAILABLE;
+    }
+
+    /**
+     * Gets the cache of opened codestreams this extractor decodes from.
+     *
+     * @return The codestream cache
+     */
+    public CodestreamCache getCodestreamCache() {
+        return myCodestreams;
+    }
+
+    /**
+     * Releases the native resources held for reuse between decodes: the opened codestreams and the region
+     * decompressors of the contexts that aren't decoding. Decodes that are running finish normally and the extractor
+     * can still be used, but it won't keep codestreams open afterwards.
+     */
+    public void close() {
+        final List<Decoder> idle = new ArrayList<Decoder>();
+
+        myCodestreams.close();
+        myDecoders.drainTo(idle);
+
+        for (final Decoder decoder : idle) {
+            decoder.reset();
+            myDecoders.add(decoder);
+        }
+    }
+
+    @Override
+    public BufferedImage process(final InputStream aInput, final DjatokaDecodeParam aParams)
+            throws DjatokaException {
+        return myFallback.process(aInput, aParams);
+    }
+
+    @Override
+    public BufferedImage process(final String aInput, final DjatokaDecodeParam aParams) throws DjatokaException {
+        if (!JNI_AVAILABLE || aParams.getCompositingLayer() > 0) {
+            return myFallback.process(aInput, aParams);
+        }
+
+        final Decoder decoder;
+
+        try {
+            decoder = myDecoders.take();
+        } catch (final InterruptedException details) {
+            Thread.currentThread().interrupt();
+            throw new DjatokaException("Interrupted while waiting for a decoder", details);
+        }
+
+        // The decode sets the reduction and layers and may convert the scaling; the fallback starts from the request
+        final int reduce = aParams.getLevelReductionFactor();
+        final double scalingFactor = aParams.getScalingFactor();
+        final int[] scalingDims = aParams.getScalingDimensions();
+        final int layers = aParams.getQualityLayers();
+        CodestreamCache.Handle handle = null;
+        boolean failed = false;
+
+        try {
+            handle = myCodestreams.acquire(aInput);
+            return decoder.decode(handle, aParams);
+        } catch (final KduException details) {
+            failed = true;
+
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("In-process decode of {} failed; trying {}: {}", aInput, KduExtractExe.KDU_EXPAND_EXE,
+                        details.getMessage());
+            }
+
+            decoder.reset();
+        } finally {
+            if (handle != null) {
+                // A codestream that failed in the native layer isn't reused
+                myCodestreams.release(handle, failed);
+            }
+
+            myDecoders.add(decoder);
+        }
+
+        aParams.setLevelReductionFactor(reduce);
+        aParams.setScalingFactor(scalingFactor);
+        aParams.setScalingDimensions(scalingDims);
+        aParams.setQualityLayers(layers);
+
+        return myFallback.process(aInput, aParams);
+    }
+
+    @Override
+    public BufferedImage process(final ImageRecord aInput, final DjatokaDecodeParam aParams)
+            throws DjatokaException {
+        if (aInput.getImageFile() != null) {
+            return process(aInput.getImageFile(), aParams);
+        }
+
+        return myFallback.process(aInput, aParams);
+    }
+
+    @Override
+    public ImageRecord getMetadata(final ImageRecord aInput) throws DjatokaException {
+        return myFallback.getMetadata(aInput);
+    }
+
+    @Override
+    public String[] getXMLBox(final ImageRecord aInput) throws DjatokaException {
+        return myFallback.getXMLBox(aInput);
+    }
+
+    /**
+     * Sets the level reduction factor the same way the <code>kdu_expand</code> bridge does, from the requested level
+     * and, for scaled requests, from the requested output size, and gets the requested region as fractions of the
+     * image (top, left, height, width). The region's top and left are in full resolution pixels and its height and
+     * width in the requested level's pixels, unless they're given as fractions of the image.
+     */
+    private static double[] getRegion(final DjatokaDecodeParam aParams, final int aWidth, final int aHeight,
+            final int aDWTLevels) throws DjatokaException {
+        final int levels = Math.min(ImageProcessingUtils.getLevelCount(aWidth, aHeight), aDWTLevels);
+        final double[] fractions = new double[] { 0, 0, 1, 1 };
+
+        if (aParams.getLevel() >= 0) {
+            aParams.setLevelReductionFactor(Math.max(levels - aParams.getLevel(), 0));
+        }
+
+        final int scale = 1 << aParams.getLevelReductionFactor();
+
+        if (aParams.getRegion() != null) {
+            final StringTokenizer tokenizer = new StringTokenizer(aParams.getRegion(), "{},");
+            final int[] extents = new int[] { aHeight, aWidth, aHeight / scale, aWidth / scale };
+
+            for (int index = 0; index < fractions.length; index++) {
+                final String token = tokenizer.nextToken();
+
+                if (token.contains(".")) {
+                    fractions[index] = Double.parseDouble(token);
+                } else {
+                    final int value = Integer.parseInt(token);
+
+                    if (index < 2 && value > extents[index]) {
+                        throw new DjatokaException("Region inset out of bounds: " + value + ">" + extents[index]);
+                    }
+
+                    fractions[index] = (double) value / extents[index];
+                }
+            }
+        }
+
+        ImageProcessingUtils.setScalingReduction(aParams, fractions[3] * aWidth / scale, fractions[2] * aHeight /
+                scale, aDWTLevels);
+
+        return fractions;
+    }
+
+    /**
+     * Converts the requested region's fractions into the coordinates of the image at the reduced resolution.
+     */
+    private static Kdu_dims getRegion(final double[] aFractions, final Kdu_dims aImage) throws KduException {
+        final Kdu_coords position = aImage.Access_pos();
+        final Kdu_coords size = aImage.Access_size();
+        final Kdu_dims requested = new Kdu_dims();
+
+        requested.Access_pos().Set_y(position.Get_y() + (int) Math.floor(aFractions[0] * size.Get_y()));
+        requested.Access_pos().Set_x(position.Get_x() + (int) Math.floor(aFractions[1] * size.Get_x()));
+        requested.Access_size().Set_y((int) Math.ceil(aFractions[2] * size.Get_y()));
+        requested.Access_size().Set_x((int) Math.ceil(aFractions[3] * size.Get_x()));
+
+        return requested.Intersection(aImage);
+    }
+
+    private static boolean loadLibrary() {
+        try {
+            System.loadLibrary("kdu_jni");
+            return true;
+        } catch (final UnsatisfiedLinkError details) {
+            LOGGER.debug("Unable to load Kakadu JNI library: {}", details.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * A decoder context: a region decompressor and the scratch buffer it decodes large regions into. Tile sized
+     * regions are decoded straight into their images' data buffers. A context is only ever used by one thread at a
+     * time.
+     */
+    private static class Decoder {
+
+        private final int myDirectPixels;
+
+        private Kdu_region_decompressor myDecompressor;
+
+        private int[] myScratch;
+
+        private Decoder(final int aDirectPixels) {
+            myDirectPixels = aDirectPixels;
+        }
+
+        private BufferedImage decode(final CodestreamCache.Handle aHandle, final DjatokaDecodeParam aParams)
+                throws KduException, DjatokaException {
+            final Kdu_codestream codestream = aHandle.getCodestream();
+            final Kdu_channel_mapping channels = aHandle.getChannels();
+            final Kdu_coords expansion = aHandle.getExpansion();
+            final int width = aHandle.getWidth();
+            final int height = aHandle.getHeight();
+
+            if (myDecompressor == null) {
+                myDecompressor = new Kdu_region_decompressor();
+            }
+
+            final int dwtLevels = codestream.Get_min_dwt_levels();
+            final double[] fractions = getRegion(aParams, width, height, dwtLevels);
+            final int reduce = Math.min(aParams.getLevelReductionFactor(), dwtLevels);
+
+            ImageProcessingUtils.setQualityLayers(aParams, codestream.Get_max_tile_layers());
+
+            final int layers = aParams.getQualityLayers() > 0 ? aParams.getQualityLayers() : MAX_LAYERS;
+            final Kdu_dims image = myDecompressor.Get_rendered_image_dims(codestream, channels, -1, reduce,
+                    expansion, new Kdu_coords(1, 1), Kdu_global.KDU_WANT_OUTPUT_COMPONENTS);
+            final Kdu_dims region = getRegion(fractions, image);
+
+            if (region.Is_empty()) {
+                throw new DjatokaException("Requested region is outside of the image");
+            }
+
+            BufferedImage bi = render(codestream, channels, reduce, layers, expansion, region);
+
+            if (aParams.getRotationDegree() > 0) {
+                bi = ImageProcessingUtils.rotate(bi, aParams.getRotationDegree());
+            }
+
+            return bi;
+        }
+
+        private BufferedImage render(final Kdu_codestream aCodestream, final Kdu_channel_mapping aChannels,
+                final int aReduce, final int aLayers, final Kdu_coords aExpansion, final Kdu_dims aRegion)
+                throws KduException {
+            final int width = aRegion.Access_size().Get_x();
+            final int height = aRegion.Access_size().Get_y();
+            // Gray channels are replicated into each color of the packed pixels, like the other extractors return them
+            final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            final Kdu_dims incomplete = new Kdu_dims();
+            final Kdu_dims decoded = new Kdu_dims();
+            final int pixelCount = width * height;
+
+            if (!myDecompressor.Start(aCodestream, aChannels, -1, aReduce, aLayers, aRegion, aExpansion,
+                    new Kdu_coords(1, 1), false, Kdu_global.KDU_WANT_OUTPUT_COMPONENTS)) {
+                throw new KduException("Unable to start region decompressor");
+            }
+
+            incomplete.Assign(aRegion);
+
+            try {
+                if (pixelCount <= myDirectPixels) {
+                    decodeDirect(image, aRegion, incomplete, decoded);
+                } else {
+                    decodeIncrements(image, aRegion, incomplete, decoded);
+                }
+            } catch (final KduException | RuntimeException details) {
+                // Still finish the decompressor, but don't let a failure to do so hide why the decode failed
+                try {
+                    myDecompressor.Finish();
+                } catch (final KduException finishDetails) {
+                    details.addSuppressed(finishDetails);
+                }
+
+                throw details;
+            }
+
+            if (!myDecompressor.Finish()) {
+                throw new KduException("Region decompression failed");
+            }
+
+            return image;
+        }
+
+        /**
+         * Decodes a region straight into its image. The region's origin is the image's top left corner and its rows
+         * are as wide as the image's, so the decompressor writes pixels into place without a scratch buffer or copy.
+         */
+        private void decodeDirect(final BufferedImage aImage, final Kdu_dims aRegion, final Kdu_dims aIncomplete,
+                final Kdu_dims aDecoded) throws KduException {
+            final Kdu_coords origin = aRegion.Access_pos();
+            final int width = aImage.getWidth();
+            final int pixelCount = width * aImage.getHeight();
+
+            final int[] pixels = ((DataBufferInt) aImage.getRaster().getDataBuffer()).getData();
+
+            // Every call copies the whole image through JNI, so ask for as much of the region as possible each time
+            while (myDecompressor.Process(pixels, origin, width, pixelCount, pixelCount, aIncomplete, aDecoded)
+                    && !aIncomplete.Is_empty()) {
+                // Each call writes more of the region into place, until none of it is left incomplete
+            }
+        }
+
+        /**
+         * Decodes a large region in increments through the context's scratch buffer, which is reused across decodes.
+         */
+        private void decodeIncrements(final BufferedImage aImage, final Kdu_dims aRegion, final Kdu_dims aIncomplete,
+                final Kdu_dims aDecoded) throws KduException {
+            if (myScratch == null) {
+                myScratch = new int[INCREMENT_PIXELS];
+            }
+
+            while (myDecompressor.Process(myScratch, aRegion.Access_pos(), 0, 0, INCREMENT_PIXELS, aIncomplete,
+                    aDecoded)) {
+                copy(aDecoded, aRegion, aImage);
+
+                if (aIncomplete.Is_empty()) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Copies a newly decoded block of packed ARGB pixels from the scratch buffer into the image.
+         */
+        private void copy(final Kdu_dims aDecoded, final Kdu_dims aRegion, final BufferedImage aImage)
+                throws KduException {
+            final int x = aDecoded.Access_pos().Get_x() - aRegion.Access_pos().Get_x();
+            final int y = aDecoded.Access_pos().Get_y() - aRegion.Access_pos().Get_y();
+            final int width = aDecoded.Access_size().Get_x();
+            final int height = aDecoded.Access_size().Get_y();
+            final int stride = aImage.getWidth();
+            final int[] pixels = ((DataBufferInt) aImage.getRaster().getDataBuffer()).getData();
+
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(myScratch, row * width, pixels, (y + row) * stride + x, width);
+            }
+        }
+
+        /**
+         * Discards the decompressor after a native failure, so the next decode starts from a clean state.
+         */
+        private void reset() {
+            if (myDecompressor != null) {
+                myDecompressor.Native_destroy();
+                myDecompressor = null;
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -258,41 +259,25 @@ public class KduExtractProcessorJNI {
             Kdu_coords viewSize = viewDims.Access_size();
             compositor.Set_buffer_surface(viewDims);
 
-            int[] imgBuffer = new int[viewSize.Get_x() * viewSize.Get_y()];
+            // The compositor keeps the composed regions in its buffer, so the finished view is copied straight into
+            // the image's pixels once, rather than copying each region into an intermediate array as it's composed;
+            // the composition is already rotated, so the image takes its size
             Kdu_compositor_buf compositorBuffer = compositor.Get_composition_buffer(viewDims);
-            int regionBufferSize = 0;
-            int[] kduBuffer = null;
             Kdu_dims newRegion = new Kdu_dims();
             while (compositor.Process(100000, newRegion)) {
-                Kdu_coords newOffset = newRegion.Access_pos();
-                Kdu_coords newSize = newRegion.Access_size();
-                newOffset.Subtract(viewDims.Access_pos());
-
-                int newPixels = newSize.Get_x() * newSize.Get_y();
-                if (newPixels == 0) {
-                    continue;
-                }
-                if (newPixels > regionBufferSize) {
-                    regionBufferSize = newPixels;
-                    kduBuffer = new int[regionBufferSize];
-                }
-
-                compositorBuffer.Get_region(newRegion, kduBuffer);
-                int imgBuffereIdx = newOffset.Get_x() + newOffset.Get_y() * viewSize.Get_x();
-                int kduBufferIdx = 0;
-                int xDiff = viewSize.Get_x() - newSize.Get_x();
-                for (int j = 0; j < newSize.Get_y(); j++, imgBuffereIdx += xDiff) {
-                    for (int i = 0; i < newSize.Get_x(); i++) {
-                        imgBuffer[imgBuffereIdx++] = kduBuffer[kduBufferIdx++];
-                    }
-                }
-            }
-            if (params.getRotationDegree() == 90 || params.getRotationDegree() == 270) {
-                image = new BufferedImage(imageSize.Get_y(), imageSize.Get_x(), BufferedImage.TYPE_INT_RGB);
-            } else {
-                image = new BufferedImage(imageSize.Get_x(), imageSize.Get_y(), BufferedImage.TYPE_INT_RGB);
+                continue;
+            }
+
+            image = new BufferedImage(viewSize.Get_x(), viewSize.Get_y(), BufferedImage.TYPE_INT_RGB);
+            newRegion.Access_pos().Set_x(0);
+            newRegion.Access_pos().Set_y(0);
+            newRegion.Access_size().Assign(viewSize);
+            compositorBuffer.Get_region(newRegion, ((DataBufferInt) image.getRaster().getDataBuffer()).getData());
+
+            // The compositor only rotates by right angles; any other angle is resampled here
+            if (params.getRotationDegree() % 90 != 0) {
+                image = ImageProcessingUtils.rotate(image, params.getRotationDegree());
             }
-            image.setRGB(0, 0, viewSize.Get_x(), viewSize.Get_y(), imgBuffer, 0, viewSize.Get_x());
 
             if (compositor != null) {
                 compositor.Native_destroy();
@@ -442,39 +427,23 @@ public class KduExtractProcessorJNI {
             view_dims.Access_size().Set_x(imageSize.Get_x());
             view_dims.Access_size().Set_y(imageSize.Get_y());
 
-            int region_buf_size = imageSize.Get_x() * imageSize.Get_y();
-            int[] region_buf = new int[region_buf_size];
+            // The decompressor writes straight into the image's pixels, so there's no intermediate copy of the region
+            BufferedImage image = new BufferedImage(imageSize.Get_x(), imageSize.Get_y(), BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int pixelCount = pixels.length;
             Kdu_region_decompressor decompressor = new Kdu_region_decompressor();
             decompressor.Start(codestream, channels, -1, params.getLevelReductionFactor(), 16384, image_dims,
                     ref_expansion, new Kdu_coords(1, 1), false, Kdu_global.KDU_WANT_OUTPUT_COMPONENTS);
 
             Kdu_dims new_region = new Kdu_dims();
             Kdu_dims incomplete_region = new Kdu_dims();
-            Kdu_coords viewSize = view_dims.Access_size();
             incomplete_region.Assign(image_dims);
 
-            int[] imgBuffer = new int[viewSize.Get_x() * viewSize.Get_y()];
-            int[] kduBuffer = null;
-            while (decompressor.Process(region_buf, image_dims.Access_pos(), 0, 0, region_buf_size,
-                    incomplete_region, new_region)) {
-                Kdu_coords newOffset = new_region.Access_pos();
-                Kdu_coords newSize = new_region.Access_size();
-                newOffset.Subtract(view_dims.Access_pos());
-
-                kduBuffer = region_buf;
-                int imgBuffereIdx = newOffset.Get_x() + newOffset.Get_y() * viewSize.Get_x();
-                int kduBufferIdx = 0;
-                int xDiff = viewSize.Get_x() - newSize.Get_x();
-                for (int j = 0; j < newSize.Get_y(); j++, imgBuffereIdx += xDiff) {
-                    for (int i = 0; i < newSize.Get_x(); i++) {
-                        imgBuffer[imgBuffereIdx++] = kduBuffer[kduBufferIdx++];
-                    }
-                }
+            while (decompressor.Process(pixels, view_dims.Access_pos(), imageSize.Get_x(), pixelCount, pixelCount,
+                    incomplete_region, new_region) && !incomplete_region.Is_empty()) {
+                continue;
             }
 
-            BufferedImage image = new BufferedImage(imageSize.Get_x(), imageSize.Get_y(), BufferedImage.TYPE_INT_RGB);
-            image.setRGB(0, 0, viewSize.Get_x(), viewSize.Get_y(), imgBuffer, 0, viewSize.Get_x());
-
             if (params.getRotationDegree() > 0) {
                 image = ImageProcessingUtils.rotate(image, params.getRotationDegree());
             }
@@ -498,7 +467,7 @@ public class KduExtractProcessorJNI {
         }
     }
 
-    private static Kdu_coords getReferenceExpansion(int reference_component, Kdu_channel_mapping channels,
+    static Kdu_coords getReferenceExpansion(int reference_component, Kdu_channel_mapping channels,
             Kdu_codestream codestream) throws KduException {
 
         int c;
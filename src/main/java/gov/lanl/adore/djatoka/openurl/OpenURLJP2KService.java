@@ -23,6 +23,8 @@ package gov.lanl.adore.djatoka.openurl;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
@@ -33,6 +35,7 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -43,14 +46,18 @@ import org.slf4j.LoggerFactory;
 import gov.lanl.adore.djatoka.DjatokaDecodeParam;
 import gov.lanl.adore.djatoka.DjatokaException;
 import gov.lanl.adore.djatoka.DjatokaExtractProcessor;
+import gov.lanl.adore.djatoka.IExtract;
 import gov.lanl.adore.djatoka.io.FormatConstants;
+import gov.lanl.adore.djatoka.io.FormatFactory;
 import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+import gov.lanl.adore.djatoka.kdu.jni.KduExtractPooledJNI;
 import gov.lanl.adore.djatoka.plugin.ITransformPlugIn;
 import gov.lanl.adore.djatoka.util.IOUtils;
 import gov.lanl.adore.djatoka.util.ImageRecord;
+import gov.lanl.adore.djatoka.util.ImageScaler;
 import gov.lanl.util.HttpDate;
 
-import info.freelibrary.djatoka.util.CacheUtils;
+import info.freelibrary.djatoka.cache.TileStore;
 import info.freelibrary.djatoka.view.IdentifierResolver;
 
 import info.openurl.oom.ContextObject;
@@ -92,8 +99,24 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 
     private static final String PROPS_KEY_CACHE_SIZE = "OpenURLJP2KService.cacheSize";
 
+    private static final String PROPS_KEY_CACHE_MAX_BYTES = "OpenURLJP2KService.cacheMaxBytes";
+
     private static final String PROP_KEY_CACHE_MAX_PIXELS = "OpenURLJP2KService.cacheImageMaxPixels";
 
+    private static final String PROPS_KEY_EXTRACT_IMPL = "OpenURLJP2KService.extractImpl";
+
+    private static final String PROPS_KEY_EXTRACT_POOL_SIZE = "OpenURLJP2KService.extractPoolSize";
+
+    private static final String PROPS_KEY_CODESTREAM_CACHE_SIZE = "OpenURLJP2KService.codestreamCacheSize";
+
+    private static final String PROPS_KEY_CODESTREAM_CACHE_MAX_BYTES = "OpenURLJP2KService.codestreamCacheMaxBytes";
+
+    private static final String PROPS_KEY_STRIPE_THREADS = "OpenURLJP2KService.stripeThreads";
+
+    private static final String PROPS_KEY_STRIPE_MIN_PIXELS = "OpenURLJP2KService.stripeMinPixels";
+
+    private static final String PROPS_KEY_SCALING_QUALITY = "OpenURLJP2KService.scalingQuality";
+
     private static final String SVC_ID = "info:lanl-repo/svc/getRegion";
 
     private static final String DEFAULT_CACHE_SIZE = "1000";
@@ -116,6 +139,12 @@ public class OpenURLJP2KService implements Service, FormatConstants {
 
     private static TileCacheManager<String, String> tileCache;
 
+    private static final TileRequestCoalescer<String, String> inFlightTiles =
+            new TileRequestCoalescer<String, String>();
+
+    private static final TileRequestCoalescer<String, Boolean> inFlightRenders =
+            new TileRequestCoalescer<String, Boolean>();
+
     private static DjatokaExtractProcessor extractor;
 
     private static int maxPixels = DEFAULT_CACHE_MAXPIXELS;
@@ -132,57 +161,89 @@ public class OpenURLJP2KService implements Service, FormatConstants {
      */
     public OpenURLJP2KService(final OpenURLConfig openURLConfig, final ClassConfig classConfig)
             throws ResolverException {
+        if (!init) {
+            try {
+                init(IOUtils.loadConfigByCP(classConfig.getArg("props")));
+            } catch (final IOException e) {
+                LOGGER.error(e.getMessage(), e);
+                throw new ResolverException("Error attempting to open props file from classpath, disabling " +
+                        SVC_ID + " : " + e.getMessage());
+            } catch (final ResolverException e) {
+                throw e;
+            } catch (final Exception e) {
+                LOGGER.error(e.getMessage(), e);
+                throw new ResolverException("Unable to read service configuration for " + SVC_ID + " - " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Initializes the service's shared state from the supplied properties. Only the first call has any effect. This
+     * is called when the service is constructed, but it's also available so that the view layer can render images
+     * in-process without going through an OpenURL request.
+     * 
+     * @param aProps The djatoka properties
+     * @throws ResolverException If the service's referent resolver or plugins can't be initialized
+     */
+    public static synchronized void init(final Properties aProps) throws ResolverException {
+        if (init) {
+            return;
+        }
+
         try {
-            if (!init) {
-                props = IOUtils.loadConfigByCP(classConfig.getArg("props"));
-                if (!ReferentManager.isInit()) {
-                    implClass = props.getProperty(PROPS_KEY_IMPL_CLASS, DEFAULT_IMPL_CLASS);
-                    ReferentManager.init((IReferentResolver) Class.forName(implClass).newInstance(), props);
-                }
-                cacheDir = props.getProperty(PROPS_KEY_CACHE_TMPDIR);
-                if (props.getProperty(PROPS_KEY_CACHE_ENABLED) != null) {
-                    cacheTiles = Boolean.parseBoolean(props.getProperty(PROPS_KEY_CACHE_ENABLED));
-                }
-                if (cacheTiles) {
-                    final int cacheSize =
-                            Integer.parseInt(props.getProperty(PROPS_KEY_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+            props = aProps;
+            if (!ReferentManager.isInit()) {
+                implClass = props.getProperty(PROPS_KEY_IMPL_CLASS, DEFAULT_IMPL_CLASS);
+                ReferentManager.init((IReferentResolver) Class.forName(implClass).newInstance(), props);
+            }
+            cacheDir = props.getProperty(PROPS_KEY_CACHE_TMPDIR);
+            if (props.getProperty(PROPS_KEY_CACHE_ENABLED) != null) {
+                cacheTiles = Boolean.parseBoolean(props.getProperty(PROPS_KEY_CACHE_ENABLED));
+            }
+            if (cacheTiles) {
+                final int cacheSize =
+                        Integer.parseInt(props.getProperty(PROPS_KEY_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+                final String maxBytes = props.getProperty(PROPS_KEY_CACHE_MAX_BYTES);
+
+                if (maxBytes != null) {
+                    tileCache = new TileCacheManager<String, String>(cacheSize, Long.parseLong(maxBytes));
+                } else {
                     tileCache = new TileCacheManager<String, String>(cacheSize);
                 }
-                if (props.getProperty(PROPS_KEY_TRANSFORM) != null) {
-                    transformCheck = true;
-                    final String transClass = props.getProperty(PROPS_KEY_TRANSFORM);
-                    transform = (ITransformPlugIn) Class.forName(transClass).newInstance();
-                    transform.setup(props);
-                }
-                if (props.getProperty(PROP_KEY_CACHE_MAX_PIXELS) != null) {
-                    maxPixels = Integer.parseInt(props.getProperty(PROP_KEY_CACHE_MAX_PIXELS));
-                }
-                if (props.getProperty(SCALE_CACHE_EXCEPTIONS) != null) {
-                    scaleCacheExceptions = new HashSet<Double>();
+            }
+            if (props.getProperty(PROPS_KEY_TRANSFORM) != null) {
+                transformCheck = true;
+                final String transClass = props.getProperty(PROPS_KEY_TRANSFORM);
+                transform = (ITransformPlugIn) Class.forName(transClass).newInstance();
+                transform.setup(props);
+            }
+            if (props.getProperty(PROP_KEY_CACHE_MAX_PIXELS) != null) {
+                maxPixels = Integer.parseInt(props.getProperty(PROP_KEY_CACHE_MAX_PIXELS));
+            }
+            if (props.getProperty(SCALE_CACHE_EXCEPTIONS) != null) {
+                scaleCacheExceptions = new HashSet<Double>();
 
-                    for (final String exception : props.getProperty(SCALE_CACHE_EXCEPTIONS).split("\\s+")) {
-                        try {
-                            scaleCacheExceptions.add(new Double(exception));
+                for (final String exception : props.getProperty(SCALE_CACHE_EXCEPTIONS).split("\\s+")) {
+                    try {
+                        scaleCacheExceptions.add(new Double(exception));
 
-                            if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("Scale cache exception added: {}", exception);
-                            }
-                        } catch (final NumberFormatException details) {
-                            if (LOGGER.isWarnEnabled()) {
-                                LOGGER.warn("Configured scale cache exception isn't a valid double: {}", exception);
-                            }
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Scale cache exception added: {}", exception);
+                        }
+                    } catch (final NumberFormatException details) {
+                        if (LOGGER.isWarnEnabled()) {
+                            LOGGER.warn("Configured scale cache exception isn't a valid double: {}", exception);
                         }
                     }
-                } else {
-                    scaleCacheExceptions = new HashSet<Double>();
                 }
-                extractor = new DjatokaExtractProcessor(new KduExtractExe());
-                init = true;
+            } else {
+                scaleCacheExceptions = new HashSet<Double>();
             }
-        } catch (final IOException e) {
-            LOGGER.error(e.getMessage(), e);
-            throw new ResolverException("Error attempting to open props file from classpath, disabling " + SVC_ID +
-                    " : " + e.getMessage());
+            extractor = new DjatokaExtractProcessor(getExtractImpl(props));
+            extractor.setScalingQuality(getScalingQuality(props));
+            extractor.setFormatFactory(new FormatFactory(FormatFactory.getFormatMap(props)));
+            init = true;
         } catch (final Exception e) {
             LOGGER.error(e.getMessage(), e);
             throw new ResolverException("Unable to inititalize implementation: " + props.getProperty(implClass) +
@@ -190,6 +251,90 @@ public class OpenURLJP2KService implements Service, FormatConstants {
         }
     }
 
+    /**
+     * Creates the configured extraction implementation, falling back to the kdu_expand bridge if it can't be loaded.
+     * 
+     * @param aProps The djatoka properties
+     * @return An extraction implementation
+     */
+    private static IExtract getExtractImpl(final Properties aProps) {
+        final String extractImpl = aProps.getProperty(PROPS_KEY_EXTRACT_IMPL, KduExtractExe.class.getName()).trim();
+        final String poolSize = aProps.getProperty(PROPS_KEY_EXTRACT_POOL_SIZE);
+        final String cacheSize = aProps.getProperty(PROPS_KEY_CODESTREAM_CACHE_SIZE);
+        final String cacheMaxBytes = aProps.getProperty(PROPS_KEY_CODESTREAM_CACHE_MAX_BYTES);
+        final String stripeThreads = aProps.getProperty(PROPS_KEY_STRIPE_THREADS);
+        final String stripeMinPixels = aProps.getProperty(PROPS_KEY_STRIPE_MIN_PIXELS);
+
+        try {
+            if (extractImpl.equals(KduExtractPooledJNI.class.getName()) && poolSize != null) {
+                if (cacheSize != null && cacheMaxBytes != null) {
+                    return closeOnShutdown(new KduExtractPooledJNI(Integer.parseInt(poolSize), Integer.parseInt(
+                            cacheSize.trim()), Long.parseLong(cacheMaxBytes.trim())));
+                }
+
+                return closeOnShutdown(new KduExtractPooledJNI(Integer.parseInt(poolSize)));
+            }
+
+            if (extractImpl.equals(KduExtractExe.class.getName()) && stripeThreads != null &&
+                    stripeMinPixels != null) {
+                return new KduExtractExe(Integer.parseInt(stripeThreads.trim()), Long.parseLong(stripeMinPixels
+                        .trim()));
+            }
+
+            final IExtract extract = (IExtract) Class.forName(extractImpl).newInstance();
+
+            if (extract instanceof KduExtractPooledJNI) {
+                closeOnShutdown((KduExtractPooledJNI) extract);
+            }
+
+            return extract;
+        } catch (final ClassNotFoundException | InstantiationException | IllegalAccessException |
+                ClassCastException | NumberFormatException details) {
+            LOGGER.error("Unable to load extractor {}; using {}: {}", extractImpl, KduExtractExe.class.getName(),
+                    details.getMessage());
+            return new KduExtractExe();
+        }
+    }
+
+    /**
+     * Closes the in-process extractor's opened codestreams when the JVM shuts down.
+     * 
+     * @param aExtractor An in-process extractor
+     * @return The supplied extractor
+     */
+    private static KduExtractPooledJNI closeOnShutdown(final KduExtractPooledJNI aExtractor) {
+        Runtime.getRuntime().addShutdownHook(new Thread("codestream-cache-shutdown") {
+
+            @Override
+            public void run() {
+                aExtractor.close();
+            }
+        });
+
+        return aExtractor;
+    }
+
+    /**
+     * Gets the configured quality preset for scaling extracted regions, falling back to the balanced preset if it
+     * isn't configured or isn't known.
+     * 
+     * @param aProps The djatoka properties
+     * @return A scaling quality preset
+     */
+    private static ImageScaler.Quality getScalingQuality(final Properties aProps) {
+        final String quality = aProps.getProperty(PROPS_KEY_SCALING_QUALITY);
+
+        if (quality != null) {
+            try {
+                return ImageScaler.Quality.fromString(quality);
+            } catch (final IllegalArgumentException details) {
+                LOGGER.warn("Unknown scaling quality {}; using {}", quality, ImageScaler.Quality.BALANCED);
+            }
+        }
+
+        return ImageScaler.Quality.BALANCED;
+    }
+
     /**
      * Returns the OpenURL service identifier for this implementation of info.openurl.oom.Service
      */
@@ -199,41 +344,179 @@ public class OpenURLJP2KService implements Service, FormatConstants {
     }
 
     /**
-     * Removes a tile from the tile cache.
+     * Returns the OpenURL layer's tile cache, or null if tile caching is disabled or the service hasn't been
+     * initialized yet.
      * 
-     * @param aCacheID The ID of the tile in the cache
-     * @return True if the tile was successfully removed; else, false
+     * @return The tile cache
      */
-    public static boolean removeFromTileCache(final String aCacheID) {
-        return tileCache.remove(aCacheID) != null;
+    public static TileCacheManager<String, String> getTileCache() {
+        return tileCache;
     }
 
     /**
-     * Returns the OpenURLResponse consisting of an image bitstream to be rendered on the client. Having obtained a
-     * result, this method is then responsible for transforming it into an OpenURLResponse that acts as a proxy for
-     * HttpServletResponse.
+     * Returns decode parameters for the supplied image request values, parsed the same way as the values of an
+     * OpenURL getRegion request.
+     * 
+     * @param aLevel A resolution level or null
+     * @param aRegion A region (in Y,X,H,W order) or null
+     * @param aScale A scaling factor (e.g. 0.5) or scaling dimensions (e.g. 256 or 256,256) or null
+     * @param aRotation A rotation in degrees
+     * @return The decode parameters
      */
-    @Override
-    public OpenURLResponse resolve(final ServiceType serviceType, final ContextObject contextObject,
-            final OpenURLRequest openURLRequest, final OpenURLRequestProcessor processor) {
-        String djatokaCacheFile = null;
-        String responseFormat = null;
-        String format = "image/jpeg";
-        int status = HttpServletResponse.SC_OK;
-        final HashMap<String, String> kev = setServiceValues(contextObject);
+    public static DjatokaDecodeParam getDecodeParams(final String aLevel, final String aRegion, final String aScale,
+            final int aRotation) {
+        return getDecodeParams(aLevel, aRegion, aScale, aRotation, null);
+    }
+
+    /**
+     * Returns decode parameters for the supplied image request values, parsed the same way as the values of an
+     * OpenURL getRegion request.
+     * 
+     * @param aLevel A resolution level or null
+     * @param aRegion A region (in Y,X,H,W order) or null
+     * @param aScale A scaling factor (e.g. 0.5) or scaling dimensions (e.g. 256 or 256,256) or null
+     * @param aRotation A rotation in degrees
+     * @param aLayers A number of quality layers, "auto" or null
+     * @return The decode parameters
+     */
+    public static DjatokaDecodeParam getDecodeParams(final String aLevel, final String aRegion, final String aScale,
+            final int aRotation, final String aLayers) {
+        final Map<String, String> kev = new HashMap<String, String>();
+
+        if (aLayers != null && !aLayers.isEmpty()) {
+            kev.put("layers", aLayers);
+        }
+
+        if (aLevel != null && !aLevel.isEmpty()) {
+            kev.put("level", aLevel);
+        }
+
+        if (aRegion != null && !aRegion.isEmpty()) {
+            kev.put("region", aRegion);
+        }
+
+        if (aScale != null && !aScale.isEmpty()) {
+            kev.put("scale", aScale);
+        }
+
+        kev.put("rotate", Integer.toString(aRotation));
+
+        return getDecodeParams(kev);
+    }
+
+    /**
+     * Renders an image straight into the supplied tile store for callers in the same webapp that keep their own cache
+     * of rendered images. The image is written to a file in the store's scratch directory and then put in the store,
+     * so a partially written image is never visible in the store. Concurrent requests to render the same tile share a
+     * single rendering.
+     * 
+     * @param aID The identifier of the image to render
+     * @param aParams The decode parameters
+     * @param aFormat The mime-type of the rendered image
+     * @param aStore The tile store to put the rendered image in
+     * @param aName The name to store the rendered image under
+     * @return True if the image was rendered; false if it shouldn't be cached or the service isn't initialized
+     * @throws Exception If the image can't be resolved or rendered
+     */
+    public static boolean renderImage(final String aID, final DjatokaDecodeParam aParams, final String aFormat,
+            final TileStore aStore, final String aName) throws Exception {
+        final ImageRecord record = getImageRecord(aID, aParams);
+
+        if (record == null || !isCacheable(aParams)) {
+            return false;
+        }
+
+        return inFlightRenders.execute(aID + "_" + aName, new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                final File tmpFile;
+
+                // Another request may have just finished rendering it
+                if (aStore.stat(aID, aName) != null) {
+                    return true;
+                }
+
+                tmpFile = File.createTempFile(".render-", ".tmp", aStore.getScratchDir());
+
+                try {
+                    extractor.extractImage(record.getImageFile(), tmpFile.getAbsolutePath(), aParams, aFormat);
+                    aStore.put(aID, aName, tmpFile);
+
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Rendered {} for {} [{}]", aName, aID, aParams);
+                    }
+                } finally {
+                    if (tmpFile.exists() && !tmpFile.delete() && LOGGER.isWarnEnabled()) {
+                        LOGGER.warn("File not deleted: {}", tmpFile);
+                    }
+                }
+
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Renders an image into memory for callers in the same webapp that serve it themselves rather than caching it,
+     * like the previews that are sent in answer to progressive tile requests.
+     * 
+     * @param aID The identifier of the image to render
+     * @param aParams The decode parameters
+     * @param aFormat The mime-type of the rendered image
+     * @return The rendered image or null if the service isn't initialized or the request can't be rendered
+     * @throws Exception If the image can't be resolved or rendered
+     */
+    public static byte[] renderImage(final String aID, final DjatokaDecodeParam aParams, final String aFormat)
+            throws Exception {
+        final ImageRecord record = getImageRecord(aID, aParams);
+        final ByteArrayOutputStream baos;
+
+        if (record == null) {
+            return null;
+        }
+
+        baos = new ByteArrayOutputStream();
+        extractor.extractImage(record.getImageFile(), baos, aParams, aFormat);
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * Gets the image record for an in-process rendering, setting the transform on the supplied parameters. Returns
+     * null if the service isn't initialized or the region can't be rendered.
+     */
+    private static ImageRecord getImageRecord(final String aID, final DjatokaDecodeParam aParams)
+            throws ResolverException {
+        final String region = aParams.getRegion();
+
+        if (!init || region != null && region.contains("-")) {
+            return null;
+        }
+
+        final ImageRecord record = ReferentManager.getImageRecord(aID);
+
+        if (record == null) {
+            throw new ResolverException("Unable to retrieve ImageRecord for: " + aID);
+        }
+
+        if (transformCheck && transform != null) {
+            if (record.getInstProps() != null) {
+                transform.setInstanceProps(new HashMap<String, String>(record.getInstProps()));
+            }
+
+            aParams.setTransform(transform);
+        }
+
+        return record;
+    }
+
+    private static DjatokaDecodeParam getDecodeParams(final Map<String, String> kev) {
         final DjatokaDecodeParam params = new DjatokaDecodeParam();
-        String id = null;
 
         if (kev.containsKey("region")) {
             params.setRegion(kev.get("region"));
         }
-        if (kev.containsKey("format")) {
-            format = kev.get("format");
-            if (!format.startsWith("image")) {
-                // ignoring invalid format identifier
-                format = "image/jpeg";
-            }
-        }
         if (kev.containsKey("level")) {
             params.setLevel(Integer.parseInt(kev.get("level")));
         }
@@ -254,15 +537,51 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                 params.setScalingDimensions(dims);
             }
         }
+        if (kev.containsKey("layers") && kev.get("layers") != null) {
+            final String layers = kev.get("layers");
+
+            if (layers.equals("auto")) {
+                params.setQualityLayers(DjatokaDecodeParam.AUTO_QUALITY_LAYERS);
+            } else {
+                params.setQualityLayers(Math.max(0, Integer.parseInt(layers)));
+            }
+        }
         if (kev.containsKey("clayer") && kev.get("clayer") != null) {
             final int clayer = Integer.parseInt(kev.get("clayer"));
             if (clayer > 0) {
                 params.setCompositingLayer(clayer);
             }
         }
+
+        return params;
+    }
+
+    /**
+     * Returns the OpenURLResponse consisting of an image bitstream to be rendered on the client. Having obtained a
+     * result, this method is then responsible for transforming it into an OpenURLResponse that acts as a proxy for
+     * HttpServletResponse.
+     */
+    @Override
+    public OpenURLResponse resolve(final ServiceType serviceType, final ContextObject contextObject,
+            final OpenURLRequest openURLRequest, final OpenURLRequestProcessor processor) {
+        String djatokaCacheFile = null;
+        String responseFormat = null;
+        String format = "image/jpeg";
+        int status = HttpServletResponse.SC_OK;
+        final HashMap<String, String> kev = setServiceValues(contextObject);
+        final DjatokaDecodeParam params = getDecodeParams(kev);
+
+        if (kev.containsKey("format")) {
+            format = kev.get("format");
+            if (!format.startsWith("image")) {
+                // ignoring invalid format identifier
+                format = "image/jpeg";
+            }
+        }
         responseFormat = format;
 
         byte[] bytes = null;
+        FileInputStream tileStream = null;
 
         if (params.getRegion() != null && params.getRegion().contains("-")) {
             try {
@@ -324,65 +643,37 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                     } else {
                         final String ext = getExtension(format);
                         final String hash = getTileHash(r, params);
-                        String file = tileCache.get(hash + ext);
-                        File f;
-
-                        id = r.getIdentifier();
-
-                        if (file == null || !(f = new File(file)).exists() && f.length() > 0) {
-                            if (cacheDir != null) {
-                                final File cacheDirFile = new File(cacheDir);
-
-                                // If our cache dir doesn't exist, create it
-                                if (!cacheDirFile.exists()) {
-                                    if (!cacheDirFile.mkdirs() && LOGGER.isWarnEnabled()) {
-                                        LOGGER.warn("Dirs not created: {}", cacheDirFile);
-                                    }
-                                }
-
-                                f = File.createTempFile("cache" + hash.hashCode() + "-", "." + ext, cacheDirFile);
-                            } else {
-                                f = File.createTempFile("cache" + hash.hashCode() + "-", "." + ext);
-                            }
+                        final String cacheKey = hash + ext;
+                        final String file = tileCache.get(cacheKey);
 
+                        if (file != null && new File(file).length() > 0) {
                             if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("Temp file created: {}", f);
+                                LOGGER.debug("tileCache: {}", file);
                             }
 
-                            f.deleteOnExit();
-                            file = f.getAbsolutePath();
                             djatokaCacheFile = file;
-
-                            extractor.extractImage(r.getImageFile(), file, params, format);
-
-                            if (tileCache.get(hash + ext) == null) {
-                                tileCache.put(hash + ext, file);
-                                bytes = IOUtils.getBytesFromFile(f);
-
-                                if (LOGGER.isDebugEnabled()) {
-                                    LOGGER.debug("makingTile: " + file + " " + bytes.length + " params: " + params);
-                                }
-                            } else {
-                                // Handles simultaneous request on separate
-                                // thread, ignores cache.
-                                bytes = IOUtils.getBytesFromFile(f);
-
-                                if (!f.delete() && LOGGER.isWarnEnabled()) {
-                                    LOGGER.warn("File not deleted: {}", f);
-                                }
-
-                                if (LOGGER.isDebugEnabled()) {
-                                    LOGGER.debug("tempTile: " + file + " " + bytes.length + " params: " + params);
-                                }
-                            }
                         } else {
-                            bytes = IOUtils.getBytesFromFile(new File(file));
+                            // Identical requests that arrive while this tile is being made wait for its result
+                            djatokaCacheFile =
+                                    inFlightTiles.execute(cacheKey, new TileMaker(r, params, format, hash, ext));
+                        }
 
+                        // Open the tile now; once open, it can be served even if it's moved to the view cache
+                        try {
+                            tileStream = new FileInputStream(djatokaCacheFile);
+                        } catch (final FileNotFoundException details) {
                             if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("tileCache: {} {}", file, bytes.length);
+                                LOGGER.debug("Tile {} was moved before it could be read", djatokaCacheFile);
                             }
 
-                            djatokaCacheFile = file;
+                            // Extracting sets the resolution reduction on the params, so start from fresh ones
+                            final DjatokaDecodeParam retryParams = getDecodeParams(kev);
+                            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+                            retryParams.setTransform(params.getTransform());
+                            extractor.extractImage(r.getImageFile(), baos, retryParams, format);
+                            bytes = baos.toByteArray();
+                            djatokaCacheFile = null;
                         }
                     }
                 } else if (LOGGER.isWarnEnabled()) {
@@ -406,84 +697,118 @@ public class OpenURLJP2KService implements Service, FormatConstants {
             }
         }
 
-        if (bytes == null || bytes.length == 0) {
+        final HashMap<String, String> header_map = new HashMap<String, String>();
+        final OpenURLResponse response;
+
+        header_map.put("Date", HttpDate.getHttpDate());
+
+        if (tileStream != null) {
+            try {
+                header_map.put("Content-Length", Long.toString(tileStream.getChannel().size()));
+            } catch (final IOException details) {
+                LOGGER.error(details.getMessage(), details);
+            }
+
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("No bytes found!");
+                LOGGER.debug("Getting OpenURLResponse...");
             }
 
-            bytes = "".getBytes();
-            responseFormat = "text/plain";
-            status = HttpServletResponse.SC_NOT_FOUND;
+            response = new OpenURLResponse(status, responseFormat, tileStream, null, header_map);
+        } else {
+            if (bytes == null || bytes.length == 0) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("No bytes found!");
+                }
+
+                bytes = "".getBytes();
+                responseFormat = "text/plain";
+                status = HttpServletResponse.SC_NOT_FOUND;
+            }
+
+            header_map.put("Content-Length", bytes.length + "");
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Getting OpenURLResponse...");
+            }
+
+            response = new OpenURLResponse(status, responseFormat, bytes, null, header_map);
         }
 
-        final HashMap<String, String> header_map = new HashMap<String, String>();
-        header_map.put("Content-Length", bytes.length + "");
-        header_map.put("Date", HttpDate.getHttpDate());
+        return response;
+    }
+
+    /**
+     * Makes a tile, writing it into the OpenURL layer's tile cache. This is run by the first of any concurrent
+     * requests for the same tile.
+     */
+    private static class TileMaker implements Callable<String> {
+
+        private final ImageRecord myRecord;
+
+        private final DjatokaDecodeParam myParams;
 
-        if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Getting OpenURLResponse...");
+        private final String myFormat;
+
+        private final String myHash;
+
+        private final String myExt;
+
+        private TileMaker(final ImageRecord aRecord, final DjatokaDecodeParam aParams, final String aFormat,
+                final String aHash, final String aExt) {
+            myRecord = aRecord;
+            myParams = aParams;
+            myFormat = aFormat;
+            myHash = aHash;
+            myExt = aExt;
         }
 
-        final OpenURLResponse response = new OpenURLResponse(status, responseFormat, bytes, header_map);
+        @Override
+        public String call() throws Exception {
+            final String cacheKey = myHash + myExt;
+            final String cachedFile = tileCache.get(cacheKey);
+            final File f;
 
-        // Record where our cache file was (if we had/created one)
-        if (djatokaCacheFile != null) {
-            final StringBuilder dimBuilder = new StringBuilder();
-            final int[] dims = params.getScalingDimensions();
-            final String level = Integer.toString(params.getLevel());
-            final String region = params.getRegion();
-            final int rotation = params.getRotationDegree();
-            final String ext = getExtension(format);
-            String scale;
-            String hash;
-
-            if (dims != null) {
-                if (dims.length == 2) {
-                    dimBuilder.append(dims[0]).append(',').append(dims[1]);
-                } else {
-                    dimBuilder.append(dims[0]);
-                }
+            // The tile may have been finished just before we became the leader
+            if (cachedFile != null && new File(cachedFile).length() > 0) {
+                return cachedFile;
             }
 
-            scale = dimBuilder.toString();
+            if (cacheDir != null) {
+                final File cacheDirFile = new File(cacheDir);
 
-            try {
-                hash = getTileHash(id, params);
-            } catch (final Exception details) {
-                if (LOGGER.isErrorEnabled()) {
-                    LOGGER.error(details.getMessage(), details);
+                // If our cache dir doesn't exist, create it
+                if (!cacheDirFile.exists()) {
+                    if (!cacheDirFile.mkdirs() && LOGGER.isWarnEnabled()) {
+                        LOGGER.warn("Dirs not created: {}", cacheDirFile);
+                    }
                 }
 
-                hash = null;
+                f = File.createTempFile("cache" + myHash.hashCode() + "-", "." + myExt, cacheDirFile);
+            } else {
+                f = File.createTempFile("cache" + myHash.hashCode() + "-", "." + myExt);
             }
 
-            final String f = CacheUtils.getFileName(level, scale, region, rotation);
-            id = id + "_" + f;
-
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("OpenURL service: [ {} | {} | {} | {} ] = {}", new Object[] { level, scale, region,
-                    rotation, id });
+                LOGGER.debug("Temp file created: {}", f);
             }
 
-            if (hash != null) {
-                final Map sessionMap = response.getSessionMap();
-                final String cacheName = hash + ext;
+            f.deleteOnExit();
 
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Setting cache session data [ {} | {} ]", new Object[] { id, djatokaCacheFile });
-                }
+            final String file = f.getAbsolutePath();
+
+            extractor.extractImage(myRecord.getImageFile(), file, myParams, myFormat);
 
-                sessionMap.put(id, djatokaCacheFile);
-                sessionMap.put(djatokaCacheFile, cacheName);
+            tileCache.put(cacheKey, file);
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("makingTile: " + file + " " + f.length() + " params: " + myParams);
             }
-        } else if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("djatokaCacheFile variable is null");
-        }
 
-        return response;
+            return file;
+        }
     }
 
-    private boolean isCacheable(final DjatokaDecodeParam params) {
+    private static boolean isCacheable(final DjatokaDecodeParam params) {
         final double scale = params.getScalingFactor();
         boolean exception;
 
@@ -522,9 +847,13 @@ public class OpenURLJP2KService implements Service, FormatConstants {
             scale = scalingDims[0] + "," + scalingDims[1];
         }
         final int clayer = params.getCompositingLayer();
-        final String rft_id =
+        String rft_id =
                 id + "|" + level + "|" + region + "|" + rotateDegree + "|" + scalingFactor + "|" + scale + "|" +
                         clayer;
+        // Only layer-limited tiles get a different hash, so existing cached tiles stay valid
+        if (params.getQualityLayers() != 0) {
+            rft_id = rft_id + "|" + params.getQualityLayers();
+        }
         final MessageDigest complete = MessageDigest.getInstance("SHA1");
         return new String(complete.digest(rft_id.getBytes()));
     }
@@ -580,6 +909,10 @@ public class OpenURLJP2KService implements Service, FormatConstants {
                                 ((String[]) kev.getFieldMap().get("svc.scale"))[0] != "") {
                             map.put("scale", ((String[]) kev.getFieldMap().get("svc.scale"))[0]);
                         }
+                        if (kev.getFieldMap().containsKey("svc.layers") &&
+                                ((String[]) kev.getFieldMap().get("svc.layers"))[0] != "") {
+                            map.put("layers", ((String[]) kev.getFieldMap().get("svc.layers"))[0]);
+                        }
                         if (kev.getFieldMap().containsKey("svc.clayer") &&
                                 ((String[]) kev.getFieldMap().get("svc.clayer"))[0] != "") {
                             map.put("clayer", ((String[]) kev.getFieldMap().get("svc.clayer"))[0]);
@@ -11,6 +11,7 @@
 
 package gov.lanl.adore.djatoka.openurl;
 
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
@@ -31,6 +32,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import gov.lanl.util.AccessManager;
+import info.freelibrary.djatoka.util.ResponseUtils;
+import info.freelibrary.util.IOUtils;
 import info.openurl.oom.ContextObject;
 import info.openurl.oom.OpenURLRequest;
 import info.openurl.oom.OpenURLRequestProcessor;
@@ -99,6 +102,8 @@ public class OpenURLServlet extends HttpServlet {
      */
     @Override
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException {
+        OpenURLResponse result = null;
+
         try {
             // Try each Transport until someone takes responsibility
             OpenURLRequest openURLRequest = null;
@@ -147,7 +152,7 @@ public class OpenURLServlet extends HttpServlet {
             coa[0].getRequesters()[0].addDescriptor(req.getRemoteAddr());
 
             // Process the ContextObjects
-            final OpenURLResponse result = processor.resolve(openURLRequest);
+            result = processor.resolve(openURLRequest);
 
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("OpenURLRequestProcessor resolving to a result");
@@ -235,11 +240,17 @@ public class OpenURLServlet extends HttpServlet {
                     resp.setContentType(result.getContentType());
 
                     final InputStream is = result.getInputStream();
-                    final byte[] bytes = new byte[1024];
-                    int len;
 
-                    while ((len = is.read(bytes)) != -1) {
-                        out.write(bytes, 0, len);
+                    if (is instanceof FileInputStream) {
+                        // Files are sent without being copied through a buffer on the heap
+                        ResponseUtils.send(((FileInputStream) is).getChannel(), out);
+                    } else {
+                        final byte[] bytes = new byte[1024];
+                        int len;
+
+                        while ((len = is.read(bytes)) != -1) {
+                            out.write(bytes, 0, len);
+                        }
                     }
 
                     out.close();
@@ -252,6 +263,11 @@ public class OpenURLServlet extends HttpServlet {
 
             // throw new ServletException(e.getMessage(), e);
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } finally {
+            // A tile that was opened for the response is closed whether or not it was sent
+            if (result != null) {
+                IOUtils.closeQuietly(result.getInputStream());
+            }
         }
     }
 
@@ -23,119 +23,496 @@ package gov.lanl.adore.djatoka.openurl;
 
 import java.io.File;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Implements an Least Recently Used (LRU) cache Manager.
- * 
- * @param max_cache the maximum cache size that will be kept in the cache.
+ * Implements a segmented Least Recently Used (SLRU) cache manager. The cache is split into lock-striped segments so
+ * that concurrent requests for different tiles don't contend on a single monitor; keys are spread over the segments
+ * by hash, so each segment is bounded by an even share of the maximum number of entries and the maximum number of
+ * bytes. Within a segment, new entries are admitted to a probationary LRU and are promoted to a protected LRU, which
+ * may hold most of the segment, when they're requested again. Entries are evicted from the probationary LRU first,
+ * so a scan of tiles that are only requested once can't push out the tiles that are requested over and over.
+ * <p/>
+ * When a value is a file path, the size of the file is used as the entry's weight and evicted files are deleted by
+ * the caller once it's released the segment lock, so other requests for the segment don't wait on the file system.
  */
 public class TileCacheManager<K, V> {
 
-    private static Logger LOGGER = LoggerFactory.getLogger(TileCacheManager.class);
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileCacheManager.class);
 
-    private LinkedHashMap<K, V> cacheMap; // For fast search/remove
+    private static final int MAX_SEGMENTS = 16;
 
-    private final int max_cache;
+    /* The share of each segment's entries and bytes that entries which have been requested again may take up */
+    private static final double PROTECTED_SHARE = 0.8;
 
     private static final float loadFactor = 0.75F;
 
     private static final boolean accessOrder = true;
 
-    /** The class constructor */
+    private final Segment<K, V>[] segments;
+
+    private final int max_cache;
+
+    private final long max_bytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Creates a tile cache that's only bounded by the number of entries it holds.
+     *
+     * @param max_cache The maximum number of entries that will be kept in the cache
+     */
     public TileCacheManager(int max_cache) {
-        this.max_cache = max_cache;
-        this.cacheMap = new LinkedHashMap<K, V>(max_cache, loadFactor, accessOrder) {
+        this(max_cache, Long.MAX_VALUE);
+    }
 
-            private static final long serialVersionUID = 1;
+    /**
+     * Creates a tile cache that's bounded by both the number of entries it holds and the total size of their files.
+     *
+     * @param max_cache The maximum number of entries that will be kept in the cache
+     * @param max_bytes The maximum number of bytes the cached files may take up
+     */
+    @SuppressWarnings("unchecked")
+    public TileCacheManager(int max_cache, long max_bytes) {
+        if (max_cache < 1 || max_bytes < 1) {
+            throw new IllegalArgumentException("Tile cache bounds must be positive: " + max_cache + " / " + max_bytes);
+        }
 
-            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("cacheSize: " + size());
-                }
+        int count = 1;
 
-                boolean d = size() > TileCacheManager.this.max_cache;
-                if (d) {
-                    File f = new File((String) eldest.getValue());
+        // Keep a power of two segments, but don't split a small cache into slivers
+        while (count < MAX_SEGMENTS && count * 2 <= max_cache / 8) {
+            count *= 2;
+        }
 
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("deletingTile: " + eldest.getValue());
-                    }
+        this.max_cache = max_cache;
+        this.max_bytes = max_bytes;
 
-                    if (f.exists()) {
-                        f.delete();
-                    }
+        segments = new Segment[count];
 
-                    remove(eldest.getKey());
-                }
+        for (int index = 0; index < count; index++) {
+            final int entries = max_cache / count + (index < max_cache % count ? 1 : 0);
+            final long bytes = max_bytes == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, max_bytes / count);
 
-                return false;
-            };
-        };
+            segments[index] = new Segment<K, V>(entries, bytes);
+        }
     }
 
     /**
      * Puts the key and value into the tile cache.
-     * 
+     *
      * @param key The tile cache key
      * @param val The tile cache value
      * @return The older value if any
      */
-    public synchronized V put(K key, V val) {
-        return cacheMap.put(key, val);
+    public V put(K key, V val) {
+        final Segment<K, V> segment = segmentFor(key);
+        final long weight = weigh(val);
+        final List<V> evicted = new ArrayList<V>();
+        final Node<V> old;
+
+        segment.lock.lock();
+
+        try {
+            old = segment.remove(key);
+
+            // A replaced entry keeps its place in the protected LRU; anything else starts out on probation
+            if (old != null && old.isProtected) {
+                segment.addProtected(key, new Node<V>(val, weight));
+            } else {
+                segment.addProbation(key, new Node<V>(val, weight));
+            }
+
+            segment.evict(key, evicted);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (!evicted.isEmpty()) {
+            evictionCount.addAndGet(evicted.size());
+
+            for (final V value : evicted) {
+                discard(value);
+            }
+        }
+
+        return old == null ? null : old.value;
     }
 
     /**
      * Removes value of supplied key from tile cache.
-     * 
+     *
      * @param key The key of the value to be removed
      * @return The value of the supplied key
      */
-    public synchronized V remove(K key) {
-        if (get(key) instanceof String) {
-            new File((String) get(key)).delete();
+    public V remove(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        final Node<V> node;
+
+        segment.lock.lock();
+
+        try {
+            node = segment.remove(key);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (node == null) {
+            return null;
         }
-        return cacheMap.remove(key);
+
+        discard(node.value);
+        return node.value;
     }
 
     /**
      * Gets the value of supplied key from tile cache.
-     * 
+     *
      * @param key The key of the value to be retrieved
      * @return The value of the supplied key
      */
-    public synchronized V get(K key) {
-        return cacheMap.get(key);
+    public V get(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        final Node<V> node;
+
+        // A lookup reorders the LRUs, and may promote the entry, so this needs the lock too
+        segment.lock.lock();
+
+        try {
+            node = segment.get(key);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        if (node == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return node.value;
     }
 
     /**
-     * Returns true if the supplied key exists in the cache; else, false.
-     * 
+     * Returns true if the supplied key exists in the cache; else, false. This doesn't count as an access.
+     *
      * @param key The key to query the cache about
      * @return True if the key is found; else, false
      */
-    public synchronized boolean containsKey(K key) {
-        return cacheMap.containsKey(key);
+    public boolean containsKey(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+
+        segment.lock.lock();
+
+        try {
+            return segment.probation.containsKey(key) || segment.protectedMap.containsKey(key);
+        } finally {
+            segment.lock.unlock();
+        }
     }
 
     /**
      * Gets the size of the tile cache.
-     * 
+     *
      * @return The size of the tile cache
      */
-    public synchronized int size() {
-        return cacheMap.size();
+    public int size() {
+        int size = 0;
+
+        for (final Segment<K, V> segment : segments) {
+            segment.lock.lock();
+
+            try {
+                size += segment.probation.size() + segment.protectedMap.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the total weight, in bytes, of the values in the tile cache.
+     *
+     * @return The number of bytes used by the cached tiles
+     */
+    public long getWeightedSize() {
+        long bytes = 0;
+
+        for (final Segment<K, V> segment : segments) {
+            segment.lock.lock();
+
+            try {
+                bytes += segment.probationBytes + segment.protectedBytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Gets the maximum number of entries the tile cache will hold.
+     *
+     * @return The maximum number of entries
+     */
+    public int getMaxSize() {
+        return max_cache;
+    }
+
+    /**
+     * Gets the maximum number of bytes the tile cache will hold.
+     *
+     * @return The maximum number of bytes, or <code>Long.MAX_VALUE</code> if the cache isn't bounded by bytes
+     */
+    public long getMaxBytes() {
+        return max_bytes;
+    }
+
+    /**
+     * Gets the number of lookups that found a value in the tile cache.
+     *
+     * @return The number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of lookups that didn't find a value in the tile cache.
+     *
+     * @return The number of cache misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the number of entries that have been evicted to keep the tile cache within its bounds.
+     *
+     * @return The number of cache evictions
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
     }
 
     /**
      * Clears the tile cache.
      */
-    public synchronized void clear() {
-        cacheMap.clear();
+    public void clear() {
+        for (final Segment<K, V> segment : segments) {
+            segment.lock.lock();
+
+            try {
+                segment.probation.clear();
+                segment.protectedMap.clear();
+                segment.probationBytes = 0;
+                segment.protectedBytes = 0;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the weight of the supplied value. File paths are weighed by the size of the file they point to; other
+     * values are unweighted.
+     *
+     * @param val The value to weigh
+     * @return The weight of the value in bytes
+     */
+    protected long weigh(V val) {
+        if (val instanceof String) {
+            return new File((String) val).length();
+        } else if (val instanceof File) {
+            return ((File) val).length();
+        }
+
+        return 0;
+    }
+
+    private void discard(final V val) {
+        final File file;
+
+        if (val instanceof String) {
+            file = new File((String) val);
+        } else if (val instanceof File) {
+            file = (File) val;
+        } else {
+            return;
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("deletingTile: {}", file);
+        }
+
+        if (file.exists() && !file.delete() && LOGGER.isWarnEnabled()) {
+            LOGGER.warn("Unable to delete evicted tile: {}", file);
+        }
     }
 
+    private Segment<K, V> segmentFor(final K key) {
+        int hash = key.hashCode();
+
+        hash ^= hash >>> 16;
+        return segments[hash & segments.length - 1];
+    }
+
+    private static final class Node<V> {
+
+        private final V value;
+
+        private final long weight;
+
+        private boolean isProtected;
+
+        private Node(final V aValue, final long aWeight) {
+            value = aValue;
+            weight = aWeight;
+        }
+    }
+
+    private static final class Segment<K, V> {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /* Entries that have only been requested once, in least recently used order */
+        private final LinkedHashMap<K, Node<V>> probation;
+
+        /* Entries that have been requested again since they were added, in least recently used order */
+        private final LinkedHashMap<K, Node<V>> protectedMap;
+
+        private final int maxEntries;
+
+        private final long maxBytes;
+
+        private final int maxProtectedEntries;
+
+        private final long maxProtectedBytes;
+
+        private long probationBytes;
+
+        private long protectedBytes;
+
+        private Segment(final int aMaxEntries, final long aMaxBytes) {
+            probation = new LinkedHashMap<K, Node<V>>(16, loadFactor, accessOrder);
+            protectedMap = new LinkedHashMap<K, Node<V>>(16, loadFactor, accessOrder);
+            maxEntries = aMaxEntries;
+            maxBytes = aMaxBytes;
+            maxProtectedEntries = Math.max(1, (int) (aMaxEntries * PROTECTED_SHARE));
+            maxProtectedBytes = aMaxBytes == Long.MAX_VALUE ? Long.MAX_VALUE : (long) (aMaxBytes * PROTECTED_SHARE);
+        }
+
+        /**
+         * Gets an entry, promoting it to the protected LRU if it's on probation.
+         */
+        private Node<V> get(final K aKey) {
+            Node<V> node = protectedMap.get(aKey);
+
+            if (node == null) {
+                node = probation.remove(aKey);
+
+                if (node != null) {
+                    probationBytes -= node.weight;
+                    addProtected(aKey, node);
+                }
+            }
+
+            return node;
+        }
+
+        private Node<V> remove(final K aKey) {
+            Node<V> node = probation.remove(aKey);
+
+            if (node != null) {
+                probationBytes -= node.weight;
+            } else {
+                node = protectedMap.remove(aKey);
+
+                if (node != null) {
+                    protectedBytes -= node.weight;
+                }
+            }
+
+            return node;
+        }
+
+        private void addProbation(final K aKey, final Node<V> aNode) {
+            aNode.isProtected = false;
+            probation.put(aKey, aNode);
+            probationBytes += aNode.weight;
+        }
+
+        /**
+         * Adds an entry to the protected LRU, moving its least recently used entries back onto probation if it's
+         * grown past its share of the segment.
+         */
+        private void addProtected(final K aKey, final Node<V> aNode) {
+            aNode.isProtected = true;
+            protectedMap.put(aKey, aNode);
+            protectedBytes += aNode.weight;
+
+            final Iterator<Map.Entry<K, Node<V>>> iterator = protectedMap.entrySet().iterator();
+
+            while ((protectedMap.size() > maxProtectedEntries || protectedBytes > maxProtectedBytes) &&
+                    protectedMap.size() > 1) {
+                final Map.Entry<K, Node<V>> eldest = iterator.next();
+
+                iterator.remove();
+                protectedBytes -= eldest.getValue().weight;
+                addProbation(eldest.getKey(), eldest.getValue());
+            }
+        }
+
+        /**
+         * Evicts least recently used entries, from probation before the protected LRU, until the segment is within
+         * its bounds; the entry that was just added is never evicted.
+         */
+        private void evict(final K aAdded, final List<V> aEvicted) {
+            evict(probation, true, aAdded, aEvicted);
+            evict(protectedMap, false, aAdded, aEvicted);
+        }
+
+        private void evict(final LinkedHashMap<K, Node<V>> aMap, final boolean aProbation, final K aAdded,
+                final List<V> aEvicted) {
+            final Iterator<Map.Entry<K, Node<V>>> iterator = aMap.entrySet().iterator();
+
+            while (isOverBudget() && iterator.hasNext()) {
+                final Map.Entry<K, Node<V>> eldest = iterator.next();
+
+                if (eldest.getKey().equals(aAdded)) {
+                    continue;
+                }
+
+                iterator.remove();
+
+                if (aProbation) {
+                    probationBytes -= eldest.getValue().weight;
+                } else {
+                    protectedBytes -= eldest.getValue().weight;
+                }
+
+                aEvicted.add(eldest.getValue().value);
+            }
+        }
+
+        private boolean isOverBudget() {
+            return probation.size() + protectedMap.size() > maxEntries || probationBytes + protectedBytes > maxBytes;
+        }
+    }
 }
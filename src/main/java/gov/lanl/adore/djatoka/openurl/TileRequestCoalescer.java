@@ -0,0 +1,105 @@
+
+package gov.lanl.adore.djatoka.openurl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent requests for the same tile so that only one of them does the work of rendering it. The first
+ * request for a key becomes the leader and runs its task; requests for the same key that arrive while the leader is
+ * still working wait for, and share, the leader's result.
+ *
+ * @param <K> The type of key identifying a request
+ * @param <V> The type of result a request produces
+ */
+public class TileRequestCoalescer<K, V> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileRequestCoalescer.class);
+
+    private final ConcurrentMap<K, FutureTask<V>> myInFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    private final AtomicLong myCoalescedCount = new AtomicLong();
+
+    /**
+     * Runs the supplied task unless an identical request is already in flight, in which case the result of that
+     * request is returned instead.
+     *
+     * @param aKey The key identifying the request
+     * @param aTask The work to do if no identical request is in flight
+     * @return The result of the task or the in-flight request it was coalesced with
+     * @throws Exception If the task that produced the result failed
+     */
+    public V execute(final K aKey, final Callable<V> aTask) throws Exception {
+        final FutureTask<V> task = new FutureTask<V>(aTask);
+        final FutureTask<V> leader = myInFlight.putIfAbsent(aKey, task);
+
+        if (leader == null) {
+            try {
+                task.run();
+            } finally {
+                myInFlight.remove(aKey, task);
+            }
+
+            return getResult(task);
+        }
+
+        myCoalescedCount.incrementAndGet();
+        joined(aKey);
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Waiting on in-flight request for the same tile");
+        }
+
+        return getResult(leader);
+    }
+
+    /**
+     * Returns the number of requests currently being worked on.
+     *
+     * @return The number of in-flight requests
+     */
+    public int getInFlightCount() {
+        return myInFlight.size();
+    }
+
+    /**
+     * Returns the number of requests that have been answered by waiting on an identical in-flight request.
+     *
+     * @return The number of coalesced requests
+     */
+    public long getCoalescedCount() {
+        return myCoalescedCount.get();
+    }
+
+    /**
+     * Called when a request joins an identical request that's in flight, before it waits for the result. This does
+     * nothing by default; subclasses can override it to observe coalescing.
+     *
+     * @param aKey The key of the request that was joined
+     */
+    protected void joined(final K aKey) {
+    }
+
+    private V getResult(final FutureTask<V> aTask) throws Exception {
+        try {
+            return aTask.get();
+        } catch (final ExecutionException details) {
+            final Throwable cause = details.getCause();
+
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw details;
+        }
+    }
+}
@@ -21,16 +21,16 @@
 
 package gov.lanl.adore.djatoka.util;
 
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
 import gov.lanl.adore.djatoka.io.FormatConstants;
 
 import ij.io.FileInfo;
 import ij.io.Opener;
 import ij.io.TiffDecoder;
 
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 
@@ -56,53 +56,38 @@ public class ImageProcessingUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(ImageProcessingUtils.class);
 
     /**
-     * Perform a rotation of the provided BufferedImage using degrees of 90, 180, or 270.
+     * Perform a clockwise rotation of the provided BufferedImage. Right angles are copied exactly; any other angle is
+     * resampled onto the rotated image's bounding box. See {@link ImageRotator}.
      * 
      * @param bi BufferedImage to be rotated
-     * @param degree
+     * @param degree degrees to rotate the image by
      * @return rotated BufferedImage instance
      */
     public static BufferedImage rotate(BufferedImage bi, int degree) {
-        int width = bi.getWidth();
-        int height = bi.getHeight();
-
-        BufferedImage biFlip;
-        if (degree == 90 || degree == 270) {
-            biFlip = new BufferedImage(height, width, bi.getType());
-        } else if (degree == 180) {
-            biFlip = new BufferedImage(width, height, bi.getType());
-        } else {
-            return bi;
-        }
-
-        if (degree == 90) {
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(height - j - 1, i, bi.getRGB(i, j));
-                }
-            }
-        }
+        return ImageRotator.rotate(bi, degree);
+    }
 
-        if (degree == 180) {
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(width - i - 1, height - j - 1, bi.getRGB(i, j));
-                }
-            }
+    /**
+     * Converts an 8 bit gray image to a packed int RGB image, the type extracted regions have always been returned as,
+     * so transforms can draw on them in color. Images of any other type are returned as they are.
+     * 
+     * @param bi BufferedImage to be converted
+     * @return an RGB copy of a gray image, or the image itself
+     */
+    public static BufferedImage toRGB(BufferedImage bi) {
+        if (bi == null || bi.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            return bi;
         }
-
-        if (degree == 270) {
-            for (int i = 0; i < width; i++) {
-                for (int j = 0; j < height; j++) {
-                    biFlip.setRGB(j, width - i - 1, bi.getRGB(i, j));
-                }
+        BufferedImage rgb = new BufferedImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+        int[] row = new int[bi.getWidth()];
+        for (int y = 0; y < bi.getHeight(); y++) {
+            bi.getRaster().getSamples(0, y, row.length, 1, 0, row);
+            for (int x = 0, to = y * row.length; x < row.length; x++) {
+                pixels[to++] = row[x] * 0x010101;
             }
         }
-
-        bi.flush();
-        bi = null;
-
-        return biFlip;
+        return rgb;
     }
 
     /**
@@ -147,6 +132,78 @@ public class ImageProcessingUtils {
         return r;
     }
 
+    /**
+     * Set the resolution reduction for a scaled request to the smallest resolution that is still at least the
+     * requested size, so the image is decoded with as few pixels as possible and the final resize only ever shrinks it
+     * by less than half. A scaling factor below 1 is converted to scaling dimensions, since the factor applies to the
+     * size of the image at the requested level rather than at the reduced resolution.
+     * 
+     * @param params decode parameters whose level reduction factor is already set for the requested level
+     * @param w pixel width of the requested region at the requested level
+     * @param h pixel height of the requested region at the requested level
+     * @param max_reduce the most the image's resolution can be reduced by (its number of DWT levels)
+     */
+    public static void setScalingReduction(DjatokaDecodeParam params, double w, double h, int max_reduce) {
+        final double factor = params.getScalingFactor();
+        int out_w;
+        int out_h;
+
+        if (factor > 0 && factor < 1.0) {
+            out_w = Math.max(1, roundUp(w * factor));
+            out_h = Math.max(1, roundUp(h * factor));
+            params.setScalingDimensions(new int[] { out_w, out_h });
+            params.setScalingFactor(1.0);
+        } else if (factor == 1.0 && params.getScalingDimensions() != null &&
+                params.getScalingDimensions().length == 2) {
+            out_w = params.getScalingDimensions()[0];
+            out_h = params.getScalingDimensions()[1];
+
+            // If either is -1, the other is for the long side; see scale(BufferedImage, int, int)
+            if (out_w == -1 || out_h == -1) {
+                final int tl = Math.max(out_w, out_h);
+
+                out_w = w > h ? tl : 0;
+                out_h = w > h ? 0 : tl;
+            }
+        } else {
+            return;
+        }
+
+        if (out_w <= 0 && out_h <= 0) {
+            return;
+        }
+
+        int reduce = params.getLevelReductionFactor();
+
+        // A dimension that's 0 follows the other's aspect ratio, so it doesn't constrain the reduction
+        while (reduce < max_reduce && (out_w <= 0 || Math.floor(w / 2) >= out_w) &&
+                (out_h <= 0 || Math.floor(h / 2) >= out_h)) {
+            w = w / 2;
+            h = h / 2;
+            reduce++;
+        }
+
+        params.setLevelReductionFactor(reduce);
+    }
+
+    /**
+     * Resolve an automatic quality layers setting, once the resolution reduction is known, to one fewer layer for each
+     * level the resolution is reduced by, but never fewer than one layer. At a reduced resolution the finer layers
+     * add little that can be seen.
+     * 
+     * @param params decode parameters whose level reduction factor is already set
+     * @param total_layers the number of quality layers in the image, or 0 if it isn't known
+     */
+    public static void setQualityLayers(DjatokaDecodeParam params, int total_layers) {
+        if (params.getQualityLayers() == DjatokaDecodeParam.AUTO_QUALITY_LAYERS) {
+            if (total_layers > 0) {
+                params.setQualityLayers(Math.max(1, total_layers - params.getLevelReductionFactor()));
+            } else {
+                params.setQualityLayers(0);
+            }
+        }
+    }
+
     /**
      * Scale provided BufferedImage by the provided factor. A scaling factor value should be greater than 0 and less
      * than 2. Note that scaling will impact performance and image quality.
@@ -156,8 +213,20 @@ public class ImageProcessingUtils {
      * @return scaled instance of provided BufferedImage
      */
     public static BufferedImage scale(BufferedImage bi, double scale) {
-        AffineTransformOp op = new AffineTransformOp(AffineTransform.getScaleInstance(scale, scale), null);
-        return op.filter(bi, null);
+        return scale(bi, scale, ImageScaler.Quality.BALANCED);
+    }
+
+    /**
+     * Scale provided BufferedImage by the provided factor, using the supplied quality preset. See {@link ImageScaler}.
+     * 
+     * @param bi BufferedImage to be scaled.
+     * @param scale positive scaling factor
+     * @param quality quality preset to scale with
+     * @return scaled instance of provided BufferedImage
+     */
+    public static BufferedImage scale(BufferedImage bi, double scale, ImageScaler.Quality quality) {
+        int[] size = getScaledSize(bi.getWidth(), bi.getHeight(), scale);
+        return ImageScaler.scale(bi, size[0], size[1], quality);
     }
 
     /**
@@ -171,10 +240,85 @@ public class ImageProcessingUtils {
      * @return scaled instance of provided BufferedImage
      */
     public static BufferedImage scale(BufferedImage bi, int w, int h) {
+        return scale(bi, w, h, ImageScaler.Quality.BALANCED);
+    }
+
+    /**
+     * Scale provided BufferedImage to the specified width and height dimensions, using the supplied quality preset.
+     * If a provided dimension is 0, the aspect ratio is used to calculate a value. Also, if either contains -1, the
+     * positive value will be used as for the long side.
+     * 
+     * @param bi BufferedImage to be scaled.
+     * @param w width the image is to be scaled to.
+     * @param h height the image is to be scaled to.
+     * @param quality quality preset to scale with
+     * @return scaled instance of provided BufferedImage
+     */
+    public static BufferedImage scale(BufferedImage bi, int w, int h, ImageScaler.Quality quality) {
+        int[] size = getScaledSize(bi.getWidth(), bi.getHeight(), w, h);
+        if (size == null) {
+            return bi;
+        }
+        return ImageScaler.scale(bi, size[0], size[1], quality);
+    }
+
+    /**
+     * Scale provided BufferedImage as the ScalingFactor or ScalingDimensions in the DjatokaDecodeParam ask, using the
+     * supplied quality preset. A scaling factor value must be greater than 0 and less than 3; scaling dimensions
+     * three or more times the image's are ignored. Note that ScalingFactor overrides ScalingDimensions.
+     * 
+     * @param bi BufferedImage to be scaled.
+     * @param params DjatokaDecodeParam containing ScalingFactor or ScalingDimensions vars
+     * @param quality quality preset to scale with
+     * @return scaled instance of provided BufferedImage, or the image itself if no scaling is to be performed
+     */
+    public static BufferedImage scale(BufferedImage bi, DjatokaDecodeParam params, ImageScaler.Quality quality) {
+        int[] size = getScaledSize(bi.getWidth(), bi.getHeight(), params);
+        if (size == null) {
+            return bi;
+        }
+        return ImageScaler.scale(bi, size[0], size[1], quality);
+    }
+
+    /**
+     * Gets the size an image of the provided width and height is scaled to by the ScalingFactor or ScalingDimensions
+     * in the DjatokaDecodeParam, as {@link #scale(BufferedImage, DjatokaDecodeParam, ImageScaler.Quality)} scales it.
+     * 
+     * @param width width of the image to be scaled
+     * @param height height of the image to be scaled
+     * @param params DjatokaDecodeParam containing ScalingFactor or ScalingDimensions vars
+     * @return an int[] containing the scaled w,h values, or null if no scaling is to be performed
+     */
+    public static int[] getScaledSize(int width, int height, DjatokaDecodeParam params) {
+        double factor = params.getScalingFactor();
+        int[] dims = params.getScalingDimensions();
+        if (factor != 1.0 && factor > 0 && factor < 3) {
+            return getScaledSize(width, height, factor);
+        } else if (dims != null && dims.length == 2) {
+            if (dims[0] >= 3 * width || dims[1] >= 3 * height) {
+                return null;
+            }
+            return getScaledSize(width, height, dims[0], dims[1]);
+        }
+        return null;
+    }
+
+    private static int[] getScaledSize(int width, int height, double scale) {
+        return new int[] { roundUp(width * scale), roundUp(height * scale) };
+    }
+
+    /**
+     * Rounds a scaled size up like the bounds of the scaled image, without rounding up floating point error.
+     */
+    private static int roundUp(double size) {
+        return (int) Math.ceil(size - 1e-9);
+    }
+
+    private static int[] getScaledSize(int width, int height, int w, int h) {
         // If either w,h are -1, then calculate based on long side.
         if (w == -1 || h == -1) {
             int tl = Math.max(w, h);
-            if (bi.getWidth() > bi.getHeight()) {
+            if (width > height) {
                 w = tl;
                 h = 0;
             } else {
@@ -185,20 +329,20 @@ public class ImageProcessingUtils {
         // Calculate dim. based on aspect ratio
         if (w == 0 || h == 0) {
             if (w == 0 && h == 0) {
-                return bi;
+                return null;
             }
             if (w == 0) {
-                double n = new Double(h) / new Double(bi.getHeight());
-                w = (int) Math.ceil(bi.getWidth() * n);
+                double n = new Double(h) / new Double(height);
+                w = (int) Math.ceil(width * n);
             }
             if (h == 0) {
-                double n = new Double(w) / new Double(bi.getWidth());
-                h = (int) Math.ceil(bi.getHeight() * n);
+                double n = new Double(w) / new Double(width);
+                h = (int) Math.ceil(height * n);
             }
         }
-        double scaleH = new Double(h) / new Double(bi.getHeight());
-        double scaleW = new Double(w) / new Double(bi.getWidth());
-        return scale(bi, Math.min(scaleH, scaleW));
+        double scaleH = new Double(h) / new Double(height);
+        double scaleW = new Double(w) / new Double(width);
+        return getScaledSize(width, height, Math.min(scaleH, scaleW));
     }
 
     private static final String magic = "000c6a502020da87a";
@@ -54,6 +54,10 @@ public class ImageRecord {
 
     private int numChannels;
 
+    private int tileHeight;
+
+    private int codeBlockHeight;
+
     private Map<String, String> instProps;
 
     /**
@@ -228,6 +232,42 @@ public class ImageRecord {
         this.qualityLayers = layers;
     }
 
+    /**
+     * Gets the height of the JPEG2000 codestream's tiles, or 0 if it isn't known
+     * 
+     * @return the tile height
+     */
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * Sets the height of the JPEG2000 codestream's tiles
+     * 
+     * @param tileHeight the tile height
+     */
+    public void setTileHeight(int tileHeight) {
+        this.tileHeight = tileHeight;
+    }
+
+    /**
+     * Gets the nominal height of the JPEG2000 codestream's code-blocks, or 0 if it isn't known
+     * 
+     * @return the code-block height
+     */
+    public int getCodeBlockHeight() {
+        return codeBlockHeight;
+    }
+
+    /**
+     * Sets the nominal height of the JPEG2000 codestream's code-blocks
+     * 
+     * @param codeBlockHeight the code-block height
+     */
+    public void setCodeBlockHeight(int codeBlockHeight) {
+        this.codeBlockHeight = codeBlockHeight;
+    }
+
     /**
      * Gets the number of JPEG2000 jpx compositing layers, also known as frames
      * 
@@ -0,0 +1,292 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+
+import gov.lanl.adore.djatoka.util.ParallelRows.Rows;
+
+/**
+ * Rotates images clockwise by working directly on the arrays behind their rasters. Right angles are copied with
+ * strided reads in cache sized blocks, so every pixel is moved once without a color model conversion or bounds check;
+ * any other angle is resampled with bilinear interpolation in a single inverse-mapped pass onto the rotated image's
+ * bounding box, where the corners the source doesn't cover are left white (or transparent, if the image has alpha).
+ * <p/>
+ * Packed int RGB images and 8 bit gray images are rotated this way. Large images are split into bands of rows that
+ * are rotated in parallel. Any other kind of image falls back to an <code>AffineTransformOp</code>.
+ */
+public final class ImageRotator {
+
+    /* The side of the square blocks right angle rotations are copied in */
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int WHITE = 0xffffffff;
+
+    /* Masks alternate bytes of a packed pixel, which are interpolated together */
+    private static final int LANES = 0x00ff00ff;
+
+    /* Half of 256 in each lane, which rounds a lane's weighted sum to the nearest 256th */
+    private static final int LANE_HALVES = 0x00800080;
+
+    private ImageRotator() {
+    }
+
+    /**
+     * Rotates an image clockwise by the supplied number of degrees. The image is returned unchanged if the rotation is
+     * a multiple of 360 degrees.
+     *
+     * @param aImage The image to rotate
+     * @param aDegrees The number of degrees to rotate the image by
+     * @return The rotated image
+     */
+    public static BufferedImage rotate(final BufferedImage aImage, final int aDegrees) {
+        final int degrees = (aDegrees % 360 + 360) % 360;
+
+        if (degrees == 0) {
+            return aImage;
+        }
+
+        if (!PackedRasters.isPacked(aImage)) {
+            return transform(aImage, degrees);
+        }
+
+        if (degrees % 90 == 0) {
+            return rotateRightAngle(aImage, degrees);
+        }
+
+        return rotateAngle(aImage, degrees);
+    }
+
+    private static BufferedImage rotateRightAngle(final BufferedImage aImage, final int aDegrees) {
+        final int width = aImage.getWidth();
+        final int height = aImage.getHeight();
+        final boolean swap = aDegrees != 180;
+        final BufferedImage rotated = new BufferedImage(swap ? height : width, swap ? width : height, aImage
+                .getType());
+        final Object source = PackedRasters.getData(aImage);
+        final Object target = PackedRasters.getData(rotated);
+        final int rotatedWidth = rotated.getWidth();
+
+        // Each rotated row is read from the source starting at first(y) and stepping by step
+        final int step = aDegrees == 90 ? -width : aDegrees == 270 ? width : -1;
+
+        // Bands are a multiple of the block size so blocks aren't split between tasks
+        ParallelRows.run(rotatedWidth, rotated.getHeight(), BLOCK_SIZE, new Rows() {
+
+            @Override
+            public void run(final int aFrom, final int aTo) {
+                for (int y0 = aFrom; y0 < aTo; y0 += BLOCK_SIZE) {
+                    final int y1 = Math.min(aTo, y0 + BLOCK_SIZE);
+
+                    for (int x0 = 0; x0 < rotatedWidth; x0 += BLOCK_SIZE) {
+                        final int count = Math.min(BLOCK_SIZE, rotatedWidth - x0);
+
+                        for (int y = y0; y < y1; y++) {
+                            final int first;
+
+                            if (aDegrees == 90) {
+                                first = (height - 1) * width + y;
+                            } else if (aDegrees == 270) {
+                                first = width - 1 - y;
+                            } else {
+                                first = (height - 1 - y) * width + width - 1;
+                            }
+
+                            copy(source, first + x0 * step, step, target, y * rotatedWidth + x0, count);
+                        }
+                    }
+                }
+            }
+        });
+
+        return rotated;
+    }
+
+    private static BufferedImage rotateAngle(final BufferedImage aImage, final int aDegrees) {
+        final double radians = Math.toRadians(aDegrees);
+        final double cos = Math.cos(radians);
+        final double sin = Math.sin(radians);
+        final int width = aImage.getWidth();
+        final int height = aImage.getHeight();
+        final int rotatedWidth = getRotatedSize(width * Math.abs(cos) + height * Math.abs(sin));
+        final int rotatedHeight = getRotatedSize(width * Math.abs(sin) + height * Math.abs(cos));
+        final BufferedImage rotated = new BufferedImage(rotatedWidth, rotatedHeight, aImage.getType());
+        final Object source = PackedRasters.getData(aImage);
+        final Object target = PackedRasters.getData(rotated);
+        final int background = aImage.getColorModel().hasAlpha() ? 0 : WHITE;
+
+        ParallelRows.run(rotatedWidth, rotatedHeight, 1, new Rows() {
+
+            @Override
+            public void run(final int aFrom, final int aTo) {
+                for (int y = aFrom; y < aTo; y++) {
+                    // Maps the centers of the rotated pixels back onto the source, relative to the images' centers
+                    final double dx = 0.5 - rotatedWidth / 2.0;
+                    final double dy = y + 0.5 - rotatedHeight / 2.0;
+                    final double sx = cos * dx + sin * dy + width / 2.0 - 0.5;
+                    final double sy = -sin * dx + cos * dy + height / 2.0 - 0.5;
+
+                    if (source instanceof int[]) {
+                        sampleRow((int[]) source, width, height, sx, sy, cos, -sin, (int[]) target, y *
+                                rotatedWidth, rotatedWidth, background);
+                    } else {
+                        sampleRow((byte[]) source, width, height, sx, sy, cos, -sin, (byte[]) target, y *
+                                rotatedWidth, rotatedWidth, background & 0xff);
+                    }
+                }
+            }
+        });
+
+        return rotated;
+    }
+
+    private static void copy(final Object aSource, final int aFrom, final int aStep, final Object aTarget,
+            final int aTo, final int aCount) {
+        if (aSource instanceof int[]) {
+            final int[] source = (int[]) aSource;
+            final int[] target = (int[]) aTarget;
+
+            for (int index = 0, from = aFrom, to = aTo; index < aCount; index++, from += aStep) {
+                target[to++] = source[from];
+            }
+        } else {
+            final byte[] source = (byte[]) aSource;
+            final byte[] target = (byte[]) aTarget;
+
+            for (int index = 0, from = aFrom, to = aTo; index < aCount; index++, from += aStep) {
+                target[to++] = source[from];
+            }
+        }
+    }
+
+    /**
+     * Samples a row of packed int pixels, interpolating each of their four bytes.
+     */
+    private static void sampleRow(final int[] aSource, final int aWidth, final int aHeight, final double aX,
+            final double aY, final double aStepX, final double aStepY, final int[] aTarget, final int aTo,
+            final int aCount, final int aBackground) {
+        double x = aX;
+        double y = aY;
+
+        for (int index = 0, to = aTo; index < aCount; index++, x += aStepX, y += aStepY) {
+            final int x0 = (int) Math.floor(x);
+            final int y0 = (int) Math.floor(y);
+
+            if (x0 < -1 || y0 < -1 || x0 >= aWidth || y0 >= aHeight) {
+                aTarget[to++] = aBackground;
+                continue;
+            }
+
+            final int ax = (int) ((x - x0) * 256);
+            final int ay = (int) ((y - y0) * 256);
+            final int p00;
+            final int p10;
+            final int p01;
+            final int p11;
+
+            if (x0 >= 0 && y0 >= 0 && x0 < aWidth - 1 && y0 < aHeight - 1) {
+                final int from = y0 * aWidth + x0;
+
+                p00 = aSource[from];
+                p10 = aSource[from + 1];
+                p01 = aSource[from + aWidth];
+                p11 = aSource[from + aWidth + 1];
+            } else {
+                p00 = getPixel(aSource, aWidth, aHeight, x0, y0, aBackground);
+                p10 = getPixel(aSource, aWidth, aHeight, x0 + 1, y0, aBackground);
+                p01 = getPixel(aSource, aWidth, aHeight, x0, y0 + 1, aBackground);
+                p11 = getPixel(aSource, aWidth, aHeight, x0 + 1, y0 + 1, aBackground);
+            }
+
+            // Interpolates alternate bytes two at a time, in the low and high halves of an int
+            aTarget[to++] = interpolate(p00 & LANES, p10 & LANES, p01 & LANES, p11 & LANES, ax, ay) |
+                    interpolate(p00 >>> 8 & LANES, p10 >>> 8 & LANES, p01 >>> 8 & LANES, p11 >>> 8 & LANES, ax,
+                            ay) << 8;
+        }
+    }
+
+    /**
+     * Samples a row of 8 bit gray pixels.
+     */
+    private static void sampleRow(final byte[] aSource, final int aWidth, final int aHeight, final double aX,
+            final double aY, final double aStepX, final double aStepY, final byte[] aTarget, final int aTo,
+            final int aCount, final int aBackground) {
+        double x = aX;
+        double y = aY;
+
+        for (int index = 0, to = aTo; index < aCount; index++, x += aStepX, y += aStepY) {
+            final int x0 = (int) Math.floor(x);
+            final int y0 = (int) Math.floor(y);
+
+            if (x0 < -1 || y0 < -1 || x0 >= aWidth || y0 >= aHeight) {
+                aTarget[to++] = (byte) aBackground;
+                continue;
+            }
+
+            final int ax = (int) ((x - x0) * 256);
+            final int ay = (int) ((y - y0) * 256);
+
+            final int p00 = getPixel(aSource, aWidth, aHeight, x0, y0, aBackground);
+            final int p10 = getPixel(aSource, aWidth, aHeight, x0 + 1, y0, aBackground);
+            final int p01 = getPixel(aSource, aWidth, aHeight, x0, y0 + 1, aBackground);
+            final int p11 = getPixel(aSource, aWidth, aHeight, x0 + 1, y0 + 1, aBackground);
+
+            aTarget[to++] = (byte) interpolateSample(p00, p10, p01, p11, ax, ay);
+        }
+    }
+
+    private static int getPixel(final int[] aSource, final int aWidth, final int aHeight, final int aX, final int aY,
+            final int aBackground) {
+        return aX < 0 || aY < 0 || aX >= aWidth || aY >= aHeight ? aBackground : aSource[aY * aWidth + aX];
+    }
+
+    private static int getPixel(final byte[] aSource, final int aWidth, final int aHeight, final int aX, final int aY,
+            final int aBackground) {
+        return aX < 0 || aY < 0 || aX >= aWidth || aY >= aHeight ? aBackground : aSource[aY * aWidth + aX] & 0xff;
+    }
+
+    /**
+     * Interpolates between four lanes of samples, with the weights of the right and bottom samples in 256ths. A lane
+     * only has room for one weighting at a time, so each stage is rounded, rather than truncated, to 8 bits.
+     */
+    private static int interpolate(final int a00, final int a10, final int a01, final int a11, final int aX,
+            final int aY) {
+        final int top = (a00 * (256 - aX) + a10 * aX + LANE_HALVES) >>> 8 & LANES;
+        final int bottom = (a01 * (256 - aX) + a11 * aX + LANE_HALVES) >>> 8 & LANES;
+
+        return (top * (256 - aY) + bottom * aY + LANE_HALVES) >>> 8 & LANES;
+    }
+
+    /**
+     * Interpolates between four samples, with the weights of the right and bottom samples in 256ths.
+     */
+    private static int interpolateSample(final int a00, final int a10, final int a01, final int a11, final int aX,
+            final int aY) {
+        final int top = a00 * (256 - aX) + a10 * aX;
+        final int bottom = a01 * (256 - aX) + a11 * aX;
+
+        return (top * (256 - aY) + bottom * aY + (1 << 15)) >> 16;
+    }
+
+    /**
+     * Rotates images this class can't rotate directly with an <code>AffineTransformOp</code>.
+     */
+    private static BufferedImage transform(final BufferedImage aImage, final int aDegrees) {
+        final AffineTransform transform = AffineTransform.getRotateInstance(Math.toRadians(aDegrees));
+        final Rectangle2D bounds = transform.createTransformedShape(new Rectangle2D.Double(0, 0, aImage.getWidth(),
+                aImage.getHeight())).getBounds2D();
+        final int type = aDegrees % 90 == 0 ? AffineTransformOp.TYPE_NEAREST_NEIGHBOR : AffineTransformOp.TYPE_BILINEAR;
+
+        // Moves the rotated image back onto the positive quadrant
+        transform.preConcatenate(AffineTransform.getTranslateInstance(-bounds.getX(), -bounds.getY()));
+
+        return new AffineTransformOp(transform, type).filter(aImage, null);
+    }
+
+    private static int getRotatedSize(final double aSize) {
+        // Absorbs the rounding error in the sine and cosine so exact sizes aren't rounded up
+        return Math.max(1, (int) Math.ceil(aSize - 1e-6));
+    }
+}
@@ -0,0 +1,667 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import gov.lanl.adore.djatoka.util.ParallelRows.Rows;
+
+/**
+ * Resizes images by working directly on the arrays behind their rasters. Large reductions are first halved with 2x2
+ * box averages, which are cheap and don't alias, until the image is within a few times of the requested size; the
+ * rest of the way is then resampled with a separable filter whose taps are worked out once per column and row. The
+ * {@link Quality} picks the filter and how close halving gets.
+ * <p/>
+ * Packed int RGB images and 8 bit gray images are resized this way, with the rows of each pass split into bands that
+ * are processed in parallel for large images. Any other kind of image falls back to a bilinear
+ * <code>AffineTransformOp</code>.
+ */
+public final class ImageScaler {
+
+    /* Horizontal weights are fixed point numbers with this many fractional bits, so rows are summed in integers */
+    private static final int FIXED_BITS = 14;
+
+    private static final float FIXED_SCALE = 1f / (1 << FIXED_BITS);
+
+    private ImageScaler() {
+    }
+
+    /**
+     * Resizes an image to the supplied dimensions, which may be larger or smaller than the image's.
+     *
+     * @param aImage The image to resize
+     * @param aWidth The width of the resized image
+     * @param aHeight The height of the resized image
+     * @param aQuality The quality preset to resize with
+     * @return The resized image, or the image itself if it's already the supplied size
+     */
+    public static BufferedImage scale(final BufferedImage aImage, final int aWidth, final int aHeight,
+            final Quality aQuality) {
+        final int width = Math.max(1, aWidth);
+        final int height = Math.max(1, aHeight);
+
+        if (width == aImage.getWidth() && height == aImage.getHeight()) {
+            return aImage;
+        }
+
+        if (!PackedRasters.isPacked(aImage)) {
+            return transform(aImage, width, height);
+        }
+
+        BufferedImage image = aImage;
+
+        while (image.getWidth() >= width * aQuality.myHalvingLimit && image.getHeight() >= height *
+                aQuality.myHalvingLimit) {
+            image = halve(image);
+        }
+
+        if (image.getWidth() == width && image.getHeight() == height) {
+            return image;
+        }
+
+        return resample(image, width, height, aQuality);
+    }
+
+    /**
+     * Halves an image by averaging each 2x2 block of its pixels; an odd last row or column is dropped.
+     */
+    private static BufferedImage halve(final BufferedImage aImage) {
+        final int sourceWidth = aImage.getWidth();
+        final int width = sourceWidth / 2;
+        final int height = aImage.getHeight() / 2;
+        final BufferedImage halved = new BufferedImage(width, height, aImage.getType());
+        final Object source = PackedRasters.getData(aImage);
+        final Object target = PackedRasters.getData(halved);
+
+        ParallelRows.run(width, height, 1, new Rows() {
+
+            @Override
+            public void run(final int aFrom, final int aTo) {
+                for (int y = aFrom; y < aTo; y++) {
+                    final int from = y * 2 * sourceWidth;
+
+                    if (source instanceof int[]) {
+                        halveRow((int[]) source, from, (int[]) source, from + sourceWidth, (int[]) target, y * width,
+                                width);
+                    } else {
+                        halveRow((byte[]) source, from, (byte[]) source, from + sourceWidth, (byte[]) target, y *
+                                width, width);
+                    }
+                }
+            }
+        });
+
+        return halved;
+    }
+
+    /**
+     * Averages pairs of pixels from two rows of packed pixels into a row half as wide.
+     */
+    private static void halveRow(final int[] aRow, final int aFrom, final int[] aNextRow, final int aNextFrom,
+            final int[] aTarget, final int aTo, final int aWidth) {
+        for (int x = 0, from = aFrom, next = aNextFrom, to = aTo; x < aWidth; x++, from += 2, next += 2) {
+            aTarget[to++] = average(aRow[from], aRow[from + 1], aNextRow[next], aNextRow[next + 1]);
+        }
+    }
+
+    /**
+     * Averages pairs of pixels from two rows of gray pixels into a row half as wide.
+     */
+    private static void halveRow(final byte[] aRow, final int aFrom, final byte[] aNextRow, final int aNextFrom,
+            final byte[] aTarget, final int aTo, final int aWidth) {
+        for (int x = 0, from = aFrom, next = aNextFrom, to = aTo; x < aWidth; x++, from += 2, next += 2) {
+            aTarget[to++] = (byte) (((aRow[from] & 0xff) + (aRow[from + 1] & 0xff) + (aNextRow[next] & 0xff) +
+                    (aNextRow[next + 1] & 0xff) + 2) >> 2);
+        }
+    }
+
+    /**
+     * Averages four packed pixels, two bytes at a time in the low and high halves of an int.
+     */
+    private static int average(final int aP00, final int aP10, final int aP01, final int aP11) {
+        final int low = (aP00 & 0xff00ff) + (aP10 & 0xff00ff) + (aP01 & 0xff00ff) + (aP11 & 0xff00ff) + 0x20002;
+        final int high = (aP00 >>> 8 & 0xff00ff) + (aP10 >>> 8 & 0xff00ff) + (aP01 >>> 8 & 0xff00ff) + (aP11 >>> 8 &
+                0xff00ff) + 0x20002;
+
+        return low >>> 2 & 0xff00ff | (high >>> 2 & 0xff00ff) << 8;
+    }
+
+    /**
+     * Resamples an image with the quality's filter. Each band of resized rows resamples the source rows it needs
+     * horizontally into a small ring of rows, so no source row is resampled twice within a band, and then combines
+     * them vertically into the resized rows.
+     */
+    private static BufferedImage resample(final BufferedImage aImage, final int aWidth, final int aHeight,
+            final Quality aQuality) {
+        final int sourceWidth = aImage.getWidth();
+        final int sourceHeight = aImage.getHeight();
+        final int channels = getChannels(aImage);
+        final Taps columns = new Taps(sourceWidth, aWidth, aQuality.getFilter(sourceWidth, aWidth));
+        final Taps rows = new Taps(sourceHeight, aHeight, aQuality.getFilter(sourceHeight, aHeight));
+        final BufferedImage resized = new BufferedImage(aWidth, aHeight, aImage.getType());
+        final Object source = PackedRasters.getData(aImage);
+        final Object target = PackedRasters.getData(resized);
+
+        ParallelRows.run(aWidth, aHeight, 1, new Rows() {
+
+            @Override
+            public void run(final int aFrom, final int aTo) {
+                final float[][] ring = new float[rows.myCount][aWidth * channels];
+                final int[] ringRows = new int[rows.myCount];
+                final float[] row = new float[aWidth * channels];
+
+                Arrays.fill(ringRows, -1);
+
+                for (int y = aFrom; y < aTo; y++) {
+                    for (int tap = 0, index = y * rows.myCount; tap < rows.myCount; tap++, index++) {
+                        final int sourceRow = rows.myIndices[index];
+                        final int slot = sourceRow % rows.myCount;
+
+                        if (rows.myWeights[index] != 0f && ringRows[slot] != sourceRow) {
+                            if (channels == 1) {
+                                resampleRow((byte[]) source, sourceRow * sourceWidth, columns, ring[slot]);
+                            } else {
+                                resampleRow((int[]) source, sourceRow * sourceWidth, columns, ring[slot], channels);
+                            }
+
+                            ringRows[slot] = sourceRow;
+                        }
+                    }
+
+                    combineRows(ring, rows, y, row);
+                    writeRow(row, target, y * aWidth, aWidth, channels);
+                }
+            }
+        });
+
+        return resized;
+    }
+
+    /**
+     * Resamples a row of packed pixels horizontally into a row of samples.
+     */
+    private static void resampleRow(final int[] aSource, final int aFrom, final Taps aColumns, final float[] aSamples,
+            final int aChannels) {
+        final int[] indices = aColumns.myIndices;
+        final int[] weights = aColumns.myFixedWeights;
+        final int count = aColumns.myCount;
+        final boolean alpha = aChannels == 4;
+
+        for (int x = 0, index = 0, to = 0; x < aColumns.mySize; x++, to += aChannels) {
+            int red = 0;
+            int green = 0;
+            int blue = 0;
+            int opacity = 0;
+
+            for (final int end = index + count; index < end; index++) {
+                final int weight = weights[index];
+                final int pixel = aSource[aFrom + indices[index]];
+
+                red += (pixel >> 16 & 0xff) * weight;
+                green += (pixel >> 8 & 0xff) * weight;
+                blue += (pixel & 0xff) * weight;
+
+                if (alpha) {
+                    opacity += (pixel >>> 24) * weight;
+                }
+            }
+
+            aSamples[to] = red * FIXED_SCALE;
+            aSamples[to + 1] = green * FIXED_SCALE;
+            aSamples[to + 2] = blue * FIXED_SCALE;
+
+            if (alpha) {
+                aSamples[to + 3] = opacity * FIXED_SCALE;
+            }
+        }
+    }
+
+    /**
+     * Resamples a row of gray pixels horizontally into a row of samples.
+     */
+    private static void resampleRow(final byte[] aSource, final int aFrom, final Taps aColumns,
+            final float[] aSamples) {
+        final int[] indices = aColumns.myIndices;
+        final int[] weights = aColumns.myFixedWeights;
+        final int count = aColumns.myCount;
+
+        for (int x = 0, index = 0; x < aColumns.mySize; x++) {
+            int gray = 0;
+
+            for (final int end = index + count; index < end; index++) {
+                gray += (aSource[aFrom + indices[index]] & 0xff) * weights[index];
+            }
+
+            aSamples[x] = gray * FIXED_SCALE;
+        }
+    }
+
+    /**
+     * Combines the horizontally resampled source rows a resized row is made from, which are in the ring at their row
+     * numbers modulo its size, into a row of samples.
+     */
+    private static void combineRows(final float[][] aRing, final Taps aRows, final int aRow, final float[] aSamples) {
+        Arrays.fill(aSamples, 0f);
+
+        for (int tap = 0, index = aRow * aRows.myCount; tap < aRows.myCount; tap++, index++) {
+            final float weight = aRows.myWeights[index];
+
+            if (weight == 0f) {
+                continue;
+            }
+
+            final float[] samples = aRing[aRows.myIndices[index] % aRows.myCount];
+
+            for (int sample = 0; sample < aSamples.length; sample++) {
+                aSamples[sample] += samples[sample] * weight;
+            }
+        }
+    }
+
+    /**
+     * Writes a row of samples into the array behind an image's raster.
+     */
+    private static void writeRow(final float[] aSamples, final Object aTarget, final int aTo, final int aWidth,
+            final int aChannels) {
+        if (aChannels == 1) {
+            final byte[] pixels = (byte[]) aTarget;
+
+            for (int x = 0, to = aTo; x < aWidth; x++) {
+                pixels[to++] = (byte) toByte(aSamples[x]);
+            }
+        } else {
+            final int[] pixels = (int[]) aTarget;
+
+            for (int x = 0, from = 0, to = aTo; x < aWidth; x++, from += aChannels) {
+                int pixel = toByte(aSamples[from]) << 16 | toByte(aSamples[from + 1]) << 8 | toByte(aSamples[from +
+                        2]);
+
+                if (aChannels == 4) {
+                    pixel |= toByte(aSamples[from + 3]) << 24;
+                }
+
+                pixels[to++] = pixel;
+            }
+        }
+    }
+
+    private static int getChannels(final BufferedImage aImage) {
+        return !(PackedRasters.getData(aImage) instanceof int[]) ? 1 : aImage.getColorModel().hasAlpha() ? 4 : 3;
+    }
+
+    private static int toByte(final float aSample) {
+        final int sample = (int) (aSample + 0.5f);
+
+        return sample < 0 ? 0 : sample > 255 ? 255 : sample;
+    }
+
+    /**
+     * Resizes images this class can't resize directly with a bilinear <code>AffineTransformOp</code>.
+     */
+    private static BufferedImage transform(final BufferedImage aImage, final int aWidth, final int aHeight) {
+        final AffineTransform transform = AffineTransform.getScaleInstance((double) aWidth / aImage.getWidth(),
+                (double) aHeight / aImage.getHeight());
+        final RenderingHints hints = new RenderingHints(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        return new AffineTransformOp(transform, hints).filter(aImage, null);
+    }
+
+    /**
+     * Resizes an image as its rows are decoded, so the full size image is never held in memory. The rows go through
+     * the same halving and resampling as {@link ImageScaler#scale(BufferedImage, int, int, Quality)} and end up as
+     * the same pixels, but each halving step only keeps a pending row and the resampling pass only keeps the ring of
+     * horizontally resampled rows that the next resized row is made from.
+     * <p/>
+     * Rows are pushed from top to bottom on one thread. Once all of them have been pushed, {@link #getImage()}
+     * returns the resized image.
+     */
+    public static final class RowScaler implements RowSink {
+
+        private final RowSink myFirstStage;
+
+        private final BufferedImage myImage;
+
+        /**
+         * Creates a scaler for an image with the supplied size and type.
+         *
+         * @param aSourceWidth The width of the rows that will be pushed
+         * @param aSourceHeight The number of rows that will be pushed
+         * @param aType The type of the image being decoded: a packed int RGB type or <code>TYPE_BYTE_GRAY</code>
+         * @param aWidth The width of the resized image
+         * @param aHeight The height of the resized image
+         * @param aQuality The quality preset to resize with
+         */
+        public RowScaler(final int aSourceWidth, final int aSourceHeight, final int aType, final int aWidth,
+                final int aHeight, final Quality aQuality) {
+            final int width = Math.max(1, aWidth);
+            final int height = Math.max(1, aHeight);
+            final List<Integer> halvedWidths = new ArrayList<>();
+            int sourceWidth = aSourceWidth;
+            int sourceHeight = aSourceHeight;
+
+            myImage = new BufferedImage(width, height, aType);
+
+            if (!PackedRasters.isPacked(myImage)) {
+                throw new IllegalArgumentException("Rows can't be scaled into an image of type " + aType);
+            }
+
+            if (width != sourceWidth || height != sourceHeight) {
+                while (sourceWidth >= width * aQuality.myHalvingLimit && sourceHeight >= height *
+                        aQuality.myHalvingLimit) {
+                    halvedWidths.add(sourceWidth);
+                    sourceWidth /= 2;
+                    sourceHeight /= 2;
+                }
+            }
+
+            RowSink stage = new Resampler(sourceWidth, sourceHeight, myImage, aQuality);
+
+            // Each halving step feeds the next one, and the last feeds the resampling pass
+            for (int step = halvedWidths.size() - 1; step >= 0; step--) {
+                stage = new Halver(halvedWidths.get(step), aType == BufferedImage.TYPE_BYTE_GRAY, stage);
+            }
+
+            myFirstStage = stage;
+        }
+
+        @Override
+        public void push(final byte[] aRow) {
+            myFirstStage.push(aRow);
+        }
+
+        @Override
+        public void push(final int[] aRow) {
+            myFirstStage.push(aRow);
+        }
+
+        /**
+         * Gets the resized image.
+         *
+         * @return The resized image
+         */
+        public BufferedImage getImage() {
+            return myImage;
+        }
+    }
+
+    /**
+     * Halves pairs of pushed rows into rows half as wide for the next stage; an odd last row is dropped.
+     */
+    private static final class Halver implements RowSink {
+
+        private final RowSink myNext;
+
+        private final int myWidth;
+
+        private final Object myPending;
+
+        private final Object myHalved;
+
+        private boolean isPending;
+
+        private Halver(final int aSourceWidth, final boolean aGray, final RowSink aNext) {
+            myNext = aNext;
+            myWidth = aSourceWidth / 2;
+            myPending = aGray ? new byte[aSourceWidth] : new int[aSourceWidth];
+            myHalved = aGray ? new byte[myWidth] : new int[myWidth];
+        }
+
+        @Override
+        public void push(final byte[] aRow) {
+            if (isPending) {
+                halveRow((byte[]) myPending, 0, aRow, 0, (byte[]) myHalved, 0, myWidth);
+                myNext.push((byte[]) myHalved);
+            } else {
+                System.arraycopy(aRow, 0, myPending, 0, ((byte[]) myPending).length);
+            }
+
+            isPending = !isPending;
+        }
+
+        @Override
+        public void push(final int[] aRow) {
+            if (isPending) {
+                halveRow((int[]) myPending, 0, aRow, 0, (int[]) myHalved, 0, myWidth);
+                myNext.push((int[]) myHalved);
+            } else {
+                System.arraycopy(aRow, 0, myPending, 0, ((int[]) myPending).length);
+            }
+
+            isPending = !isPending;
+        }
+    }
+
+    /**
+     * Resamples pushed rows into an image. Each pushed row is resampled horizontally into the ring, at its row number
+     * modulo the ring's size, and every resized row whose last tap is that row is then combined from the ring. A
+     * resized row's taps span no more rows than the ring holds, so the rows it needs are all still there.
+     */
+    private static final class Resampler implements RowSink {
+
+        private final Object myTarget;
+
+        private final int myWidth;
+
+        private final int myChannels;
+
+        private final Taps myColumns;
+
+        private final Taps myRows;
+
+        private final float[][] myRing;
+
+        private final float[] mySamples;
+
+        private int myPushedRows;
+
+        private int myNextRow;
+
+        private Resampler(final int aSourceWidth, final int aSourceHeight, final BufferedImage aImage,
+                final Quality aQuality) {
+            myTarget = PackedRasters.getData(aImage);
+            myWidth = aImage.getWidth();
+            myChannels = getChannels(aImage);
+
+            // Rows that are already the right size are copied straight into the image
+            if (aSourceWidth == myWidth && aSourceHeight == aImage.getHeight()) {
+                myColumns = null;
+                myRows = null;
+                myRing = null;
+                mySamples = null;
+            } else {
+                myColumns = new Taps(aSourceWidth, myWidth, aQuality.getFilter(aSourceWidth, myWidth));
+                myRows = new Taps(aSourceHeight, aImage.getHeight(), aQuality.getFilter(aSourceHeight, aImage
+                        .getHeight()));
+                myRing = new float[myRows.myCount][myWidth * myChannels];
+                mySamples = new float[myWidth * myChannels];
+            }
+        }
+
+        @Override
+        public void push(final byte[] aRow) {
+            if (myRows == null) {
+                System.arraycopy(aRow, 0, myTarget, myPushedRows++ * myWidth, myWidth);
+            } else {
+                resampleRow(aRow, 0, myColumns, myRing[myPushedRows % myRows.myCount]);
+                writeRows();
+            }
+        }
+
+        @Override
+        public void push(final int[] aRow) {
+            if (myRows == null) {
+                System.arraycopy(aRow, 0, myTarget, myPushedRows++ * myWidth, myWidth);
+            } else {
+                resampleRow(aRow, 0, myColumns, myRing[myPushedRows % myRows.myCount], myChannels);
+                writeRows();
+            }
+        }
+
+        /**
+         * Writes the resized rows that the row that was just pushed completes.
+         */
+        private void writeRows() {
+            final int count = myRows.myCount;
+
+            while (myNextRow < myRows.mySize && myRows.myIndices[myNextRow * count + count - 1] <= myPushedRows) {
+                combineRows(myRing, myRows, myNextRow, mySamples);
+                writeRow(mySamples, myTarget, myNextRow * myWidth, myWidth, myChannels);
+                myNextRow++;
+            }
+
+            myPushedRows++;
+        }
+    }
+
+    /**
+     * The quality presets images can be resized with.
+     */
+    public enum Quality {
+
+        /**
+         * Halves until the image is less than twice the requested size and then interpolates bilinearly.
+         */
+        FAST(2),
+
+        /**
+         * Halves until the image is less than twice the requested size and then averages the area each pixel covers.
+         */
+        BALANCED(2),
+
+        /**
+         * Halves until the image is less than three times the requested size and then resamples with a Lanczos filter,
+         * which keeps thumbnails sharp.
+         */
+        HIGH(3);
+
+        private final int myHalvingLimit;
+
+        private Quality(final int aHalvingLimit) {
+            myHalvingLimit = aHalvingLimit;
+        }
+
+        /**
+         * Gets the quality preset with the supplied name, ignoring case.
+         *
+         * @param aName The name of a quality preset
+         * @return The quality preset
+         * @throws IllegalArgumentException If there is no preset with the supplied name
+         */
+        public static Quality fromString(final String aName) {
+            return valueOf(aName.trim().toUpperCase(Locale.ENGLISH));
+        }
+
+        private Filter getFilter(final int aFrom, final int aTo) {
+            if (this == HIGH) {
+                return Filter.LANCZOS;
+            }
+
+            return this == BALANCED && aTo < aFrom ? Filter.AREA : Filter.BILINEAR;
+        }
+    }
+
+    /**
+     * The filters the last resampling pass can use.
+     */
+    private enum Filter {
+
+        BILINEAR(1), AREA(0.5), LANCZOS(3);
+
+        private final double mySupport;
+
+        private Filter(final double aSupport) {
+            mySupport = aSupport;
+        }
+
+        /**
+         * Gets the weight of a source sample whose center is the supplied distance, in source samples, from the
+         * sample point. The area and Lanczos filters are widened by the scale so they cover all the source samples
+         * when reducing.
+         */
+        private double getWeight(final double aDistance, final double aScale) {
+            final double distance = Math.abs(aDistance);
+
+            if (this == BILINEAR) {
+                return distance < 1 ? 1 - distance : 0;
+            }
+
+            if (this == AREA) {
+                // The overlap of the source sample with the area the resized sample covers
+                final double half = 0.5 * aScale;
+
+                return Math.max(0, Math.min(distance + 0.5, half) - Math.max(distance - 0.5, -half));
+            }
+
+            final double x = distance / aScale;
+
+            return x < 3 ? sinc(x) * sinc(x / 3) : 0;
+        }
+
+        private static double sinc(final double aX) {
+            if (aX == 0) {
+                return 1;
+            }
+
+            final double x = Math.PI * aX;
+
+            return Math.sin(x) / x;
+        }
+    }
+
+    /**
+     * The source samples, and their weights, that each resized sample along one dimension is made from. Samples past
+     * the edges of the source repeat the edges, so their indices are clamped to it.
+     */
+    private static final class Taps {
+
+        private final int[] myIndices;
+
+        private final float[] myWeights;
+
+        private final int[] myFixedWeights;
+
+        private final int myCount;
+
+        private final int mySize;
+
+        private Taps(final int aFrom, final int aTo, final Filter aFilter) {
+            final double ratio = (double) aFrom / aTo;
+            final double scale = aFilter == Filter.BILINEAR ? 1 : Math.max(1, ratio);
+            final double support = aFilter.mySupport * scale;
+
+            mySize = aTo;
+            myCount = (int) Math.ceil(support * 2) + 1;
+            myIndices = new int[aTo * myCount];
+            myWeights = new float[aTo * myCount];
+            myFixedWeights = new int[aTo * myCount];
+
+            for (int index = 0; index < aTo; index++) {
+                final double center = (index + 0.5) * ratio;
+                final int first = (int) Math.floor(center - support);
+                final int offset = index * myCount;
+                double total = 0;
+
+                for (int tap = 0; tap < myCount; tap++) {
+                    final double weight = aFilter.getWeight(first + tap + 0.5 - center, scale);
+
+                    myIndices[offset + tap] = Math.min(aFrom - 1, Math.max(0, first + tap));
+                    myWeights[offset + tap] = (float) weight;
+                    total += weight;
+                }
+
+                // Normalizes the weights so flat areas stay flat
+                for (int tap = 0; tap < myCount && total != 0; tap++) {
+                    myWeights[offset + tap] /= total;
+                    myFixedWeights[offset + tap] = Math.round(myWeights[offset + tap] * (1 << FIXED_BITS));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Gives access to the arrays behind the rasters of packed int RGB images and 8 bit gray images, which image
+ * operations can work on directly.
+ */
+final class PackedRasters {
+
+    private PackedRasters() {
+    }
+
+    /**
+     * Returns true if the image is backed by a single array with one element per pixel and no padding.
+     */
+    static boolean isPacked(final BufferedImage aImage) {
+        final WritableRaster raster = aImage.getRaster();
+        final SampleModel model = raster.getSampleModel();
+        final DataBuffer buffer = raster.getDataBuffer();
+        final int type = aImage.getType();
+
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0 ||
+                buffer.getNumBanks() != 1 || buffer.getOffset() != 0) {
+            return false;
+        }
+
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB ||
+                type == BufferedImage.TYPE_INT_ARGB_PRE || type == BufferedImage.TYPE_INT_BGR) {
+            return buffer instanceof DataBufferInt && model instanceof SinglePixelPackedSampleModel &&
+                    ((SinglePixelPackedSampleModel) model).getScanlineStride() == aImage.getWidth();
+        }
+
+        if (type == BufferedImage.TYPE_BYTE_GRAY) {
+            return buffer instanceof DataBufferByte && model instanceof ComponentSampleModel &&
+                    ((ComponentSampleModel) model).getPixelStride() == 1 &&
+                    ((ComponentSampleModel) model).getScanlineStride() == aImage.getWidth();
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the array behind a packed image's raster.
+     */
+    static Object getData(final BufferedImage aImage) {
+        final DataBuffer buffer = aImage.getRaster().getDataBuffer();
+
+        if (buffer instanceof DataBufferInt) {
+            return ((DataBufferInt) buffer).getData();
+        }
+
+        return ((DataBufferByte) buffer).getData();
+    }
+}
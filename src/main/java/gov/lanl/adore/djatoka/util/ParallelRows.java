@@ -0,0 +1,105 @@
+
+package gov.lanl.adore.djatoka.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs per-row image work in parallel bands of rows on a shared fork/join pool. Small images, and any image when
+ * there's only one processor, are processed on the calling thread.
+ */
+final class ParallelRows {
+
+    /* Images with fewer pixels than this are processed on the calling thread */
+    private static final int PARALLEL_PIXELS = 1 << 20;
+
+    /* The number of pixels each parallel task processes at least */
+    private static final int TASK_PIXELS = 1 << 18;
+
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    private static volatile ForkJoinPool myPool;
+
+    private ParallelRows() {
+    }
+
+    /**
+     * Processes the rows of an image.
+     *
+     * @param aWidth The width of the image's rows
+     * @param aHeight The number of rows
+     * @param aMultiple The number of rows a band should be a multiple of, so blocks of rows aren't split
+     * @param aRows The work to do for a range of rows
+     */
+    static void run(final int aWidth, final int aHeight, final int aMultiple, final Rows aRows) {
+        if (PROCESSORS < 2 || (long) aWidth * aHeight < PARALLEL_PIXELS) {
+            aRows.run(0, aHeight);
+        } else {
+            final int rows = Math.max(1, TASK_PIXELS / Math.max(1, aWidth));
+            final int band = (rows + aMultiple - 1) / aMultiple * aMultiple;
+
+            getPool().invoke(new RowTask(aRows, 0, aHeight, band));
+        }
+    }
+
+    private static ForkJoinPool getPool() {
+        if (myPool == null) {
+            synchronized (ParallelRows.class) {
+                if (myPool == null) {
+                    myPool = new ForkJoinPool(PROCESSORS);
+                }
+            }
+        }
+
+        return myPool;
+    }
+
+    /**
+     * The work to do for a range of rows.
+     */
+    interface Rows {
+
+        /**
+         * Processes a range of rows.
+         *
+         * @param aFrom The first row
+         * @param aTo The row after the last row
+         */
+        void run(int aFrom, int aTo);
+    }
+
+    /**
+     * Splits a range of rows in half until it's no more than a band, and then processes it.
+     */
+    private static final class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -2983367437958215208L;
+
+        private final Rows myRows;
+
+        private final int myFrom;
+
+        private final int myTo;
+
+        private final int myBand;
+
+        private RowTask(final Rows aRows, final int aFrom, final int aTo, final int aBand) {
+            myRows = aRows;
+            myFrom = aFrom;
+            myTo = aTo;
+            myBand = aBand;
+        }
+
+        @Override
+        protected void compute() {
+            if (myTo - myFrom <= myBand) {
+                myRows.run(myFrom, myTo);
+            } else {
+                final int bands = (myTo - myFrom + myBand - 1) / myBand;
+                final int middle = myFrom + bands / 2 * myBand;
+
+                invokeAll(new RowTask(myRows, myFrom, middle, myBand), new RowTask(myRows, middle, myTo, myBand));
+            }
+        }
+    }
+}
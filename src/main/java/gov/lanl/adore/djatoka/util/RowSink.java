@@ -0,0 +1,24 @@
+
+package gov.lanl.adore.djatoka.util;
+
+/**
+ * Takes the rows of an image one at a time, from top to bottom, as they're decoded. Rows of 8 bit gray images are
+ * pushed as byte arrays and rows of packed int RGB images as int arrays; either way, the array may be reused for the
+ * next row once the sink returns.
+ */
+public interface RowSink {
+
+    /**
+     * Takes the next row of an 8 bit gray image.
+     *
+     * @param aRow The row's pixels
+     */
+    void push(byte[] aRow);
+
+    /**
+     * Takes the next row of a packed int RGB image.
+     *
+     * @param aRow The row's pixels
+     */
+    void push(int[] aRow);
+}
@@ -120,11 +120,15 @@ public class PumpStreamHandler implements ExecuteStreamHandler {
     }
 
     /**
-     * Start the <CODE>Thread</CODE>s.
+     * Start the <CODE>Thread</CODE>s. A stream that wasn't set isn't pumped, so the caller can read it directly.
      */
     public void start() {
-        outputThread.start();
-        errorThread.start();
+        if (outputThread != null) {
+            outputThread.start();
+        }
+        if (errorThread != null) {
+            errorThread.start();
+        }
         if (inputPump != null) {
             Thread inputThread = new Thread(inputPump);
             inputThread.setDaemon(true);
@@ -137,12 +141,16 @@ public class PumpStreamHandler implements ExecuteStreamHandler {
      */
     public void stop() {
         try {
-            outputThread.join();
+            if (outputThread != null) {
+                outputThread.join();
+            }
         } catch (InterruptedException e) {
             // ignore
         }
         try {
-            errorThread.join();
+            if (errorThread != null) {
+                errorThread.join();
+            }
         } catch (InterruptedException e) {
             // ignore
         }
@@ -152,12 +160,16 @@ public class PumpStreamHandler implements ExecuteStreamHandler {
         }
 
         try {
-            err.flush();
+            if (err != null) {
+                err.flush();
+            }
         } catch (IOException e) {
             // ignore
         }
         try {
-            out.flush();
+            if (out != null) {
+                out.flush();
+            }
         } catch (IOException e) {
             // ignore
         }
@@ -21,6 +21,54 @@ public interface Constants {
 
     public static final String VIEW_CACHE_DIR = "djatoka.view.cache.dir";
 
+    public static final String VIEW_MEMCACHE_SIZE = "djatoka.view.memcache.size";
+
+    public static final String VIEW_MEMCACHE_TILE_SIZE = "djatoka.view.memcache.tile.maxSize";
+
+    public static final long DEFAULT_MEMCACHE_SIZE = 64L * 1024 * 1024;
+
+    public static final int DEFAULT_MEMCACHE_TILE_SIZE = 1024 * 1024;
+
+    public static final String VIEW_CACHE_STORE = "djatoka.view.cache.store";
+
+    public static final String VIEW_CACHE_SEGMENT_SIZE = "djatoka.view.cache.segment.size";
+
+    public static final String VIEW_CACHE_COMPACTION_INTERVAL = "djatoka.view.cache.compaction.interval";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    public static final long DEFAULT_COMPACTION_INTERVAL = 600;
+
+    public static final String VIEW_CACHE_MAX_SIZE = "djatoka.view.cache.maxSize";
+
+    public static final String VIEW_CACHE_TTL = "djatoka.view.cache.ttl";
+
+    public static final String VIEW_CACHE_JANITOR_INTERVAL = "djatoka.view.cache.janitor.interval";
+
+    public static final long DEFAULT_CACHE_JANITOR_INTERVAL = 300;
+
+    public static final String VIEW_WARMUP_SIZE = "djatoka.view.warmup.size";
+
+    public static final String VIEW_WARMUP_INTERVAL = "djatoka.view.warmup.interval";
+
+    public static final String VIEW_WARMUP_THREADS = "djatoka.view.warmup.threads";
+
+    public static final long DEFAULT_WARMUP_INTERVAL = 600;
+
+    public static final int DEFAULT_WARMUP_THREADS = 1;
+
+    public static final String VIEW_PROGRESSIVE_THREADS = "djatoka.view.progressive.threads";
+
+    public static final String VIEW_PROGRESSIVE_QUEUE_SIZE = "djatoka.view.progressive.queue.size";
+
+    public static final String VIEW_PROGRESSIVE_LAYERS = "djatoka.view.progressive.layers";
+
+    public static final int DEFAULT_PROGRESSIVE_THREADS = 0;
+
+    public static final int DEFAULT_PROGRESSIVE_QUEUE_SIZE = 256;
+
+    public static final String DEFAULT_PROGRESSIVE_LAYERS = "1";
+
     public static final String[] TIF_EXTS = new String[] { "tif", "tiff" };
 
     // Would be nicer to tell the regex filter to be case insensitive
@@ -0,0 +1,57 @@
+
+package info.freelibrary.djatoka.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that reads the remaining bytes of a byte buffer.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer myBuffer;
+
+    /**
+     * Creates an input stream that reads from the supplied buffer. The stream has its own view of the buffer, so
+     * reading from it doesn't change the buffer's position.
+     *
+     * @param aBuffer The buffer to read
+     */
+    public ByteBufferInputStream(final ByteBuffer aBuffer) {
+        myBuffer = aBuffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+        return myBuffer.hasRemaining() ? myBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(final byte[] aBytes, final int aOffset, final int aLength) {
+        if (aLength == 0) {
+            return 0;
+        }
+
+        if (!myBuffer.hasRemaining()) {
+            return -1;
+        }
+
+        final int length = Math.min(aLength, myBuffer.remaining());
+
+        myBuffer.get(aBytes, aOffset, length);
+        return length;
+    }
+
+    @Override
+    public long skip(final long aCount) {
+        final int count = (int) Math.max(0, Math.min(aCount, myBuffer.remaining()));
+
+        myBuffer.position(myBuffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return myBuffer.remaining();
+    }
+}
@@ -0,0 +1,168 @@
+
+package info.freelibrary.djatoka.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.util.ResponseUtils;
+import info.freelibrary.util.InvalidPtPathException;
+import info.freelibrary.util.PairtreeRoot;
+import info.freelibrary.util.PairtreeUtils;
+
+/**
+ * A tile store that keeps each tile in its own file in a Pairtree, in the directory of its source image's identifier.
+ * This is the view cache's original layout.
+ */
+public class PairtreeTileStore implements TileStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PairtreeTileStore.class);
+
+    private static final String PAIRTREE_ROOT = "pairtree_root";
+
+    private static final String SCRATCH_DIR = "scratch";
+
+    private static final String IMAGE_PREFIX = "image_";
+
+    private File myRoot;
+
+    private File myScratchDir;
+
+    @Override
+    public void setProperties(final Properties aProps) throws IOException {
+        final File cacheDir = new File(aProps.getProperty(Constants.VIEW_CACHE_DIR, System
+                .getProperty("java.io.tmpdir")));
+
+        // Lays down the Pairtree's version and prefix files
+        new PairtreeRoot(cacheDir);
+
+        myRoot = new File(cacheDir, PAIRTREE_ROOT);
+        myScratchDir = new File(cacheDir, SCRATCH_DIR);
+
+        if (!myScratchDir.exists() && !myScratchDir.mkdirs()) {
+            throw new IOException("Unable to create scratch directory: " + myScratchDir);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Pairtree tile store opened at {}", cacheDir);
+        }
+    }
+
+    @Override
+    public Stat stat(final String aID, final String aName) {
+        final File file = getFile(aID, aName);
+        final long lastModified = file.lastModified();
+
+        // A zero last modified time means the file doesn't exist
+        return lastModified != 0L ? new Stat(file.length(), lastModified) : null;
+    }
+
+    @Override
+    public ByteBuffer get(final String aID, final String aName) throws IOException {
+        final FileInputStream inStream;
+
+        try {
+            inStream = new FileInputStream(getFile(aID, aName));
+        } catch (final FileNotFoundException details) {
+            return null;
+        }
+
+        try {
+            final FileChannel channel = inStream.getChannel();
+            return ResponseUtils.read(channel, 0, channel.size());
+        } finally {
+            inStream.close();
+        }
+    }
+
+    @Override
+    public InputStream getStream(final String aID, final String aName) throws IOException {
+        try {
+            return new FileInputStream(getFile(aID, aName));
+        } catch (final FileNotFoundException details) {
+            return null;
+        }
+    }
+
+    @Override
+    public void put(final String aID, final String aName, final File aFile) throws IOException {
+        final File file = getFile(aID, aName);
+        final File dir = file.getParentFile();
+
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Unable to create Pairtree directory: " + dir);
+        }
+
+        try {
+            Files.move(aFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException details) {
+            Files.move(aFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public boolean delete(final String aID, final String aName) {
+        return getFile(aID, aName).delete();
+    }
+
+    @Override
+    public void list(final Visitor aVisitor) throws IOException {
+        if (!myRoot.exists()) {
+            return;
+        }
+
+        Files.walkFileTree(myRoot.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path aPath, final BasicFileAttributes aAttrs) {
+                final String name = aPath.getFileName().toString();
+
+                if (aAttrs.isRegularFile() && name.startsWith(IMAGE_PREFIX)) {
+                    final String ptPath = myRoot.toPath().relativize(aPath.getParent()).toString();
+
+                    try {
+                        aVisitor.visit(PairtreeUtils.mapToID(ptPath), name, new Stat(aAttrs.size(), aAttrs
+                                .lastModifiedTime().toMillis()));
+                    } catch (final InvalidPtPathException details) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Skipping file outside of a Pairtree object: {}", aPath);
+                        }
+                    }
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public File getScratchDir() {
+        return myScratchDir;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close; every operation opens and closes its own file
+    }
+
+    private File getFile(final String aID, final String aName) {
+        return new File(new File(myRoot, PairtreeUtils.mapToPtPath(aID)), aName);
+    }
+}
@@ -0,0 +1,601 @@
+
+package info.freelibrary.djatoka.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.freelibrary.djatoka.Constants;
+
+/**
+ * A log-structured tile store that appends tiles to a small number of large, memory-mapped segment files instead of
+ * writing each tile to its own file. An in-memory hash index maps each tile to its segment, offset and length, so a
+ * read is a lookup and a slice of an already mapped buffer. The segments are the index's persistent form: on startup
+ * the index is rebuilt by walking the record headers in each segment. Deletes and replacements append a tombstone or
+ * a new record and leave the old bytes behind; a background compaction thread copies the live tiles out of segments
+ * that are mostly dead and then removes them.
+ * <p/>
+ * Each record is laid out as: magic (int), key length (int), data length (int, -1 for a tombstone), time stored
+ * (long), checksum (int), key (UTF-8), data. The checksum is a CRC-32 of the lengths, time, key and data. Dirty pages
+ * of a mapped file reach the disk in no particular order, so after a crash a record may be only partly written; its
+ * checksum won't match and the scan of its segment stops there. Records are never forced to disk one by one, so the
+ * most recent tiles may be lost in a crash, which is fine for a cache.
+ * <p/>
+ * Segment offsets are ints, so a segment can be at most 2 GB (the most that can be mapped in one buffer anyway).
+ */
+public class SegmentTileStore implements TileStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentTileStore.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x54494c32; // "TIL2"
+
+    private static final int HEADER_SIZE = 24;
+
+    /* The header fields, after the magic number, that are covered by the checksum */
+    private static final int CHECKED_HEADER_START = 4;
+
+    private static final int CHECKED_HEADER_END = 20;
+
+    private static final int CHECKSUM_OFFSET = 20;
+
+    private static final int CHECKSUM_CHUNK_SIZE = 8192;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private static final String SEGMENT_DIR = "segments";
+
+    private static final String SCRATCH_DIR = "scratch";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_EXT = ".dat";
+
+    /* The share of a sealed segment that has to be dead before it's compacted */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /* How many seconds closing the store waits for a running compaction to stop */
+    private static final long COMPACTOR_SHUTDOWN_WAIT = 10;
+
+    private final ConcurrentMap<String, Location> myIndex = new ConcurrentHashMap<String, Location>();
+
+    private final ConcurrentSkipListMap<Integer, Segment> mySegments = new ConcurrentSkipListMap<Integer, Segment>();
+
+    /* Guards the log and the index together, so the index always agrees with the order of records in the log */
+    private final Object myWriteLock = new Object();
+
+    private final byte[] myChecksumChunk = new byte[CHECKSUM_CHUNK_SIZE];
+
+    private File mySegmentDir;
+
+    private File myScratchDir;
+
+    private int mySegmentSize;
+
+    private ScheduledExecutorService myCompactor;
+
+    private volatile Segment myActive;
+
+    @Override
+    public void setProperties(final Properties aProps) throws IOException {
+        final File cacheDir = new File(aProps.getProperty(Constants.VIEW_CACHE_DIR, System
+                .getProperty("java.io.tmpdir")));
+        final String size = aProps.getProperty(Constants.VIEW_CACHE_SEGMENT_SIZE);
+        final String interval = aProps.getProperty(Constants.VIEW_CACHE_COMPACTION_INTERVAL);
+
+        final long segmentSize = size != null ? Long.parseLong(size) : Constants.DEFAULT_SEGMENT_SIZE;
+
+        if (segmentSize <= HEADER_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IOException("Segment size must be between " + HEADER_SIZE + " and " + Integer.MAX_VALUE +
+                    " bytes: " + segmentSize);
+        }
+
+        mySegmentSize = (int) segmentSize;
+        mySegmentDir = new File(cacheDir, SEGMENT_DIR);
+        myScratchDir = new File(cacheDir, SCRATCH_DIR);
+
+        if (!mySegmentDir.exists() && !mySegmentDir.mkdirs()) {
+            throw new IOException("Unable to create segment directory: " + mySegmentDir);
+        }
+
+        if (!myScratchDir.exists() && !myScratchDir.mkdirs()) {
+            throw new IOException("Unable to create scratch directory: " + myScratchDir);
+        }
+
+        open();
+
+        myCompactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable aRunnable) {
+                final Thread thread = new Thread(aRunnable, "tile-store-compactor");
+
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+
+                return thread;
+            }
+        });
+
+        final long delay = interval != null ? Long.parseLong(interval) : Constants.DEFAULT_COMPACTION_INTERVAL;
+
+        myCompactor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (final Throwable details) {
+                    LOGGER.error("Tile store compaction failed: {}", details.getMessage(), details);
+                }
+            }
+        }, delay, delay, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Stat stat(final String aID, final String aName) {
+        final Location location = myIndex.get(getKey(aID, aName));
+        return location != null ? new Stat(location.myLength, location.myTimestamp) : null;
+    }
+
+    @Override
+    public ByteBuffer get(final String aID, final String aName) {
+        final Location location = myIndex.get(getKey(aID, aName));
+        return location != null ? location.read() : null;
+    }
+
+    @Override
+    public InputStream getStream(final String aID, final String aName) {
+        final ByteBuffer buffer = get(aID, aName);
+        return buffer != null ? new ByteBufferInputStream(buffer) : null;
+    }
+
+    @Override
+    public void put(final String aID, final String aName, final File aFile) throws IOException {
+        final String key = getKey(aID, aName);
+        final long length = aFile.length();
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Tile is too large to store: " + aFile);
+        }
+
+        final FileInputStream inStream = new FileInputStream(aFile);
+
+        try {
+            synchronized (myWriteLock) {
+                final Location location = append(key, inStream.getChannel(), (int) length, System
+                        .currentTimeMillis());
+                release(myIndex.put(key, location));
+            }
+        } finally {
+            inStream.close();
+        }
+
+        if (!aFile.delete() && LOGGER.isWarnEnabled()) {
+            LOGGER.warn("File not deleted: {}", aFile);
+        }
+    }
+
+    @Override
+    public boolean delete(final String aID, final String aName) throws IOException {
+        final String key = getKey(aID, aName);
+
+        synchronized (myWriteLock) {
+            final Location location = myIndex.remove(key);
+
+            if (location == null) {
+                return false;
+            }
+
+            release(location);
+            release(append(key, null, TOMBSTONE, System.currentTimeMillis()));
+        }
+
+        return true;
+    }
+
+    @Override
+    public void list(final Visitor aVisitor) {
+        for (final Map.Entry<String, Location> entry : myIndex.entrySet()) {
+            final String key = entry.getKey();
+            final int separator = key.lastIndexOf(KEY_SEPARATOR);
+            final Location location = entry.getValue();
+
+            aVisitor.visit(key.substring(0, separator), key.substring(separator + 1), new Stat(location.myLength,
+                    location.myTimestamp));
+        }
+    }
+
+    @Override
+    public File getScratchDir() {
+        return myScratchDir;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (myCompactor != null) {
+            myCompactor.shutdownNow();
+
+            // A compaction stops between records once it's interrupted
+            try {
+                if (!myCompactor.awaitTermination(COMPACTOR_SHUTDOWN_WAIT, TimeUnit.SECONDS) &&
+                        LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Tile store compactor didn't stop in time");
+                }
+            } catch (final InterruptedException details) {
+                Thread.currentThread().interrupt();
+            }
+
+            myCompactor = null;
+        }
+
+        synchronized (myWriteLock) {
+            for (final Segment segment : mySegments.values()) {
+                segment.close();
+            }
+
+            mySegments.clear();
+            myIndex.clear();
+            myActive = null;
+        }
+    }
+
+    /**
+     * Gets the number of segment files the store is using.
+     *
+     * @return The number of segments
+     */
+    public int getSegmentCount() {
+        return mySegments.size();
+    }
+
+    /**
+     * Copies the live tiles out of sealed segments that are mostly dead and removes those segments.
+     *
+     * @throws IOException If a segment can't be compacted
+     */
+    public void compact() throws IOException {
+        for (final Segment segment : new ArrayList<Segment>(mySegments.values())) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            if (segment != myActive && segment.myDead.get() >= segment.myPosition * COMPACTION_THRESHOLD) {
+                compact(segment);
+            }
+        }
+    }
+
+    private void compact(final Segment aSegment) throws IOException {
+        final boolean hasOlder = mySegments.lowerKey(aSegment.myNumber) != null;
+        final ByteBuffer buffer = aSegment.myBuffer.duplicate();
+        int position = 0;
+        int copied = 0;
+
+        while (position < aSegment.myPosition) {
+            // Stopping part way leaves the segment in place; the tiles copied so far are just dead weight in it
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            final int keyLength = buffer.getInt(position + 4);
+            final int dataLength = buffer.getInt(position + 8);
+            final long timestamp = buffer.getLong(position + 12);
+            final String key = readKey(buffer, position + HEADER_SIZE, keyLength);
+            final int dataOffset = position + HEADER_SIZE + keyLength;
+
+            synchronized (myWriteLock) {
+                if (dataLength == TOMBSTONE) {
+                    // Still needed if an older segment may hold the deleted tile
+                    if (hasOlder && !myIndex.containsKey(key)) {
+                        release(append(key, null, TOMBSTONE, timestamp));
+                    }
+                } else {
+                    final Location current = myIndex.get(key);
+
+                    if (current != null && current.mySegment == aSegment && current.myOffset == dataOffset) {
+                        final ByteBuffer data = current.read();
+                        final ReadableByteChannel channel = Channels.newChannel(new ByteBufferInputStream(data));
+
+                        release(myIndex.put(key, append(key, channel, dataLength, timestamp)));
+                        copied++;
+                    }
+                }
+            }
+
+            position = dataOffset + Math.max(dataLength, 0);
+        }
+
+        mySegments.remove(aSegment.myNumber);
+        aSegment.close();
+
+        // Readers still holding a slice of the mapped segment can finish; the mapping outlives the file
+        if (!aSegment.myFile.delete() && LOGGER.isWarnEnabled()) {
+            LOGGER.warn("Segment not deleted: {}", aSegment.myFile);
+        }
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Compacted {}; {} tiles copied", aSegment.myFile.getName(), copied);
+        }
+    }
+
+    private void open() throws IOException {
+        final String[] names = mySegmentDir.list(new FilenameFilter() {
+
+            @Override
+            public boolean accept(final File aDir, final String aName) {
+                return aName.startsWith(SEGMENT_PREFIX) && aName.endsWith(SEGMENT_EXT);
+            }
+        });
+
+        Arrays.sort(names);
+
+        for (final String name : names) {
+            final int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() -
+                    SEGMENT_EXT.length()));
+            final Segment segment = new Segment(number, new File(mySegmentDir, name), 0);
+
+            mySegments.put(number, segment);
+            scan(segment);
+        }
+
+        if (mySegments.isEmpty()) {
+            roll();
+        } else {
+            myActive = mySegments.lastEntry().getValue();
+        }
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Opened tile store with {} tiles in {} segments", myIndex.size(), mySegments.size());
+        }
+    }
+
+    private void scan(final Segment aSegment) {
+        final ByteBuffer buffer = aSegment.myBuffer.duplicate();
+        final int capacity = buffer.capacity();
+        final byte[] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+        int position = 0;
+
+        while ((long) position + HEADER_SIZE <= capacity && buffer.getInt(position) == MAGIC) {
+            final int keyLength = buffer.getInt(position + 4);
+            final int dataLength = buffer.getInt(position + 8);
+            final long timestamp = buffer.getLong(position + 12);
+            final long recordEnd = (long) position + HEADER_SIZE + keyLength + Math.max(dataLength, 0);
+
+            if (keyLength <= 0 || dataLength < TOMBSTONE || recordEnd > capacity) {
+                break;
+            }
+
+            final int recordLength = (int) recordEnd - position;
+
+            // A record that was only partly written before a crash ends the segment
+            if (buffer.getInt(position + CHECKSUM_OFFSET) != checksum(buffer, position, recordLength, chunk)) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Ignoring the end of {} from a damaged record at {}", aSegment.myFile, position);
+                }
+
+                break;
+            }
+
+            final String key = readKey(buffer, position + HEADER_SIZE, keyLength);
+
+            if (dataLength == TOMBSTONE) {
+                release(myIndex.remove(key));
+                aSegment.myDead.addAndGet(recordLength);
+            } else {
+                final Location location = new Location(aSegment, position + HEADER_SIZE + keyLength, dataLength,
+                        recordLength, timestamp);
+                release(myIndex.put(key, location));
+            }
+
+            position += recordLength;
+        }
+
+        aSegment.myPosition = position;
+    }
+
+    /**
+     * Appends a record to the active segment. Callers that update the index hold the write lock across both the
+     * append and the index update.
+     */
+    private Location append(final String aKey, final ReadableByteChannel aData, final int aLength,
+            final long aTimestamp) throws IOException {
+        final byte[] key = aKey.getBytes(UTF8);
+        final long fullLength = (long) HEADER_SIZE + key.length + Math.max(aLength, 0);
+
+        if (fullLength > mySegmentSize) {
+            throw new IOException("Tile is larger than a segment: " + aKey);
+        }
+
+        final int recordLength = (int) fullLength;
+
+        synchronized (myWriteLock) {
+            if (myActive == null) {
+                throw new IOException("Tile store is closed");
+            }
+
+            if ((long) myActive.myPosition + recordLength > myActive.myBuffer.capacity()) {
+                roll();
+            }
+
+            final Segment segment = myActive;
+            final int position = segment.myPosition;
+            final ByteBuffer buffer = segment.myBuffer.duplicate();
+
+            buffer.position(position + HEADER_SIZE);
+            buffer.put(key);
+
+            if (aData != null) {
+                buffer.limit(position + recordLength);
+
+                while (buffer.hasRemaining()) {
+                    if (aData.read(buffer) == -1) {
+                        throw new IOException("Tile was shorter than expected: " + aKey);
+                    }
+                }
+            }
+
+            buffer.putInt(position + 4, key.length);
+            buffer.putInt(position + 8, aLength);
+            buffer.putLong(position + 12, aTimestamp);
+            buffer.putInt(position + CHECKSUM_OFFSET, checksum(buffer, position, recordLength, myChecksumChunk));
+            buffer.putInt(position, MAGIC);
+
+            segment.myPosition = position + recordLength;
+
+            return new Location(segment, position + HEADER_SIZE + key.length, aLength, recordLength, aTimestamp);
+        }
+    }
+
+    private void roll() throws IOException {
+        synchronized (myWriteLock) {
+            final int number = mySegments.isEmpty() ? 1 : mySegments.lastKey() + 1;
+            final File file = new File(mySegmentDir, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_EXT));
+            final Segment segment = new Segment(number, file, mySegmentSize);
+
+            mySegments.put(number, segment);
+            myActive = segment;
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Started new tile store segment: {}", file);
+            }
+        }
+    }
+
+    private static void release(final Location aLocation) {
+        if (aLocation != null) {
+            aLocation.mySegment.myDead.addAndGet(aLocation.myRecordLength);
+        }
+    }
+
+    /**
+     * Computes the CRC-32 of a record's checked header fields, key and data.
+     */
+    private static int checksum(final ByteBuffer aBuffer, final int aPosition, final int aRecordLength,
+            final byte[] aChunk) {
+        final ByteBuffer buffer = aBuffer.duplicate();
+        final CRC32 crc = new CRC32();
+
+        buffer.limit(aPosition + CHECKED_HEADER_END).position(aPosition + CHECKED_HEADER_START);
+        update(crc, buffer, aChunk);
+        buffer.limit(aPosition + aRecordLength).position(aPosition + HEADER_SIZE);
+        update(crc, buffer, aChunk);
+
+        return (int) crc.getValue();
+    }
+
+    private static void update(final CRC32 aCRC, final ByteBuffer aBuffer, final byte[] aChunk) {
+        while (aBuffer.hasRemaining()) {
+            final int length = Math.min(aChunk.length, aBuffer.remaining());
+
+            aBuffer.get(aChunk, 0, length);
+            aCRC.update(aChunk, 0, length);
+        }
+    }
+
+    private static String readKey(final ByteBuffer aBuffer, final int aOffset, final int aLength) {
+        final byte[] key = new byte[aLength];
+        final ByteBuffer buffer = aBuffer.duplicate();
+
+        buffer.position(aOffset);
+        buffer.get(key);
+
+        return new String(key, UTF8);
+    }
+
+    private static String getKey(final String aID, final String aName) {
+        return aID + KEY_SEPARATOR + aName;
+    }
+
+    private static class Segment {
+
+        private final int myNumber;
+
+        private final File myFile;
+
+        private final RandomAccessFile myRAF;
+
+        private final MappedByteBuffer myBuffer;
+
+        private final AtomicLong myDead = new AtomicLong();
+
+        private volatile int myPosition;
+
+        /**
+         * Opens a segment file, creating it with the supplied size if it doesn't exist yet.
+         */
+        private Segment(final int aNumber, final File aFile, final int aSize) throws IOException {
+            myNumber = aNumber;
+            myFile = aFile;
+            myRAF = new RandomAccessFile(aFile, "rw");
+
+            if (myRAF.length() < aSize) {
+                myRAF.setLength(aSize);
+            }
+
+            myBuffer = myRAF.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, myRAF.length());
+        }
+
+        private void close() throws IOException {
+            myBuffer.force();
+            myRAF.close();
+        }
+    }
+
+    private static class Location {
+
+        private final Segment mySegment;
+
+        private final int myOffset;
+
+        private final int myLength;
+
+        private final int myRecordLength;
+
+        private final long myTimestamp;
+
+        private Location(final Segment aSegment, final int aOffset, final int aLength, final int aRecordLength,
+                final long aTimestamp) {
+            mySegment = aSegment;
+            myOffset = aOffset;
+            myLength = aLength;
+            myRecordLength = aRecordLength;
+            myTimestamp = aTimestamp;
+        }
+
+        private ByteBuffer read() {
+            final ByteBuffer buffer = mySegment.myBuffer.duplicate();
+
+            buffer.limit(myOffset + myLength).position(myOffset);
+            return buffer.slice().asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+
+package info.freelibrary.djatoka.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+/**
+ * Storage for the encoded images (tiles) of the view cache. A tile is addressed by the identifier of its source image
+ * and its cache file name (e.g., <code>image_3_full.jpg</code>). Implementations must be safe to use from many request
+ * threads at once.
+ */
+public interface TileStore {
+
+    /**
+     * Configures the store. This is called once, before any other method.
+     *
+     * @param aProps The djatoka properties
+     * @throws IOException If the store can't be opened
+     */
+    public void setProperties(Properties aProps) throws IOException;
+
+    /**
+     * Gets the size and last modified time of a tile.
+     *
+     * @param aID The identifier of the tile's source image
+     * @param aName The tile's cache file name
+     * @return The tile's stats or null if the tile isn't in the store
+     * @throws IOException If the store can't be read
+     */
+    public Stat stat(String aID, String aName) throws IOException;
+
+    /**
+     * Gets the bytes of a tile. The returned buffer may be memory mapped, so callers should not hold onto it longer
+     * than needed to send it.
+     *
+     * @param aID The identifier of the tile's source image
+     * @param aName The tile's cache file name
+     * @return A read-only buffer of the tile's bytes or null if the tile isn't in the store
+     * @throws IOException If the store can't be read
+     */
+    public ByteBuffer get(String aID, String aName) throws IOException;
+
+    /**
+     * Opens a stream from which the bytes of a tile can be read.
+     *
+     * @param aID The identifier of the tile's source image
+     * @param aName The tile's cache file name
+     * @return A stream of the tile's bytes or null if the tile isn't in the store
+     * @throws IOException If the store can't be read
+     */
+    public InputStream getStream(String aID, String aName) throws IOException;
+
+    /**
+     * Adds a tile to the store, replacing any tile that's already stored under the same name. The store takes
+     * ownership of the supplied file; it may be moved into the store or deleted once its bytes are copied.
+     *
+     * @param aID The identifier of the tile's source image
+     * @param aName The tile's cache file name
+     * @param aFile A file containing the encoded tile
+     * @throws IOException If the tile can't be stored
+     */
+    public void put(String aID, String aName, File aFile) throws IOException;
+
+    /**
+     * Removes a tile from the store.
+     *
+     * @param aID The identifier of the tile's source image
+     * @param aName The tile's cache file name
+     * @return True if a tile was removed; else, false
+     * @throws IOException If the store can't be updated
+     */
+    public boolean delete(String aID, String aName) throws IOException;
+
+    /**
+     * Visits each of the tiles in the store.
+     *
+     * @param aVisitor A visitor that's passed each tile
+     * @throws IOException If the store can't be read
+     */
+    public void list(Visitor aVisitor) throws IOException;
+
+    /**
+     * Gets a directory in which tiles can be written before they're put in the store.
+     *
+     * @return A scratch directory
+     */
+    public File getScratchDir();
+
+    /**
+     * Flushes and closes the store.
+     *
+     * @throws IOException If the store can't be closed cleanly
+     */
+    public void close() throws IOException;
+
+    /**
+     * Receives the tiles listed by a store.
+     */
+    public interface Visitor {
+
+        /**
+         * Visits a stored tile.
+         *
+         * @param aID The identifier of the tile's source image
+         * @param aName The tile's cache file name
+         * @param aStat The tile's stats
+         */
+        public void visit(String aID, String aName, Stat aStat);
+    }
+
+    /**
+     * The size and last modified time of a stored tile.
+     */
+    public static final class Stat {
+
+        private final long myLength;
+
+        private final long myLastModified;
+
+        /**
+         * Creates the stats for a tile.
+         *
+         * @param aLength The size of the tile in bytes
+         * @param aLastModified The time the tile was stored, in milliseconds
+         */
+        public Stat(final long aLength, final long aLastModified) {
+            myLength = aLength;
+            myLastModified = aLastModified;
+        }
+
+        /**
+         * Gets the size of the tile.
+         *
+         * @return The size of the tile in bytes
+         */
+        public long getLength() {
+            return myLength;
+        }
+
+        /**
+         * Gets the time the tile was stored.
+         *
+         * @return The last modified time in milliseconds
+         */
+        public long getLastModified() {
+            return myLastModified;
+        }
+    }
+}
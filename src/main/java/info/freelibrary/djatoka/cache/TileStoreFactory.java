@@ -0,0 +1,55 @@
+
+package info.freelibrary.djatoka.cache;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.freelibrary.djatoka.Constants;
+
+/**
+ * Creates the tile store configured by the <code>djatoka.view.cache.store</code> property.
+ */
+public class TileStoreFactory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileStoreFactory.class);
+
+    private TileStoreFactory() {
+    }
+
+    /**
+     * Creates and configures a tile store. If the configured store can't be loaded, the Pairtree store is used.
+     *
+     * @param aProps The djatoka properties
+     * @return A configured tile store
+     * @throws IOException If the tile store can't be opened
+     */
+    public static TileStore getTileStore(final Properties aProps) throws IOException {
+        final String implClass = aProps.getProperty(Constants.VIEW_CACHE_STORE);
+        TileStore store = null;
+
+        if (implClass != null && !implClass.trim().isEmpty()) {
+            try {
+                store = (TileStore) Class.forName(implClass.trim()).newInstance();
+            } catch (final ClassNotFoundException | InstantiationException | IllegalAccessException |
+                    ClassCastException details) {
+                LOGGER.error("Unable to load tile store {}; using the Pairtree store: {}", implClass, details
+                        .getMessage());
+            }
+        }
+
+        if (store == null) {
+            store = new PairtreeTileStore();
+        }
+
+        store.setProperties(aProps);
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Using tile store: {}", store.getClass().getName());
+        }
+
+        return store;
+    }
+}
@@ -112,8 +112,8 @@ public class ImageRequest implements IIIFRequest {
             myRotation = Float.parseFloat(decode(parts[3]));
 
             if (LOGGER.isWarnEnabled()) {
-                if (myRotation != 0 && myRotation != 90 && myRotation != 180 && myRotation != 270) {
-                    LOGGER.warn("{}° rotation not supported", myRotation);
+                if (myRotation != Math.rint(myRotation)) {
+                    LOGGER.warn("{}° rotation not supported; only whole degrees are", myRotation);
                 }
             }
 
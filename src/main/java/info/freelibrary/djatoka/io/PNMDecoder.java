@@ -0,0 +1,345 @@
+
+package info.freelibrary.djatoka.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.util.RowSink;
+
+/**
+ * Decodes binary Netpbm images (P4 bitmaps, P5 graymaps and P6 pixmaps, at 8 or 16 bits per sample) straight into
+ * the data buffer of a <code>BufferedImage</code>. Rows are read in bulk into a pooled buffer and unpacked into the
+ * raster's backing array, so there's no per-pixel stream read, <code>setRGB</code> call or color model conversion.
+ * Images are decoded to <code>TYPE_INT_RGB</code> images, as <code>PNMImage</code> decodes them, so they can be drawn
+ * on in color; graymaps can also be decoded into <code>TYPE_BYTE_GRAY</code> images or pushed as gray rows.
+ * <p/>
+ * The decoder reads the header when it's created and the pixels when {@link #decode()} is called. It only reads as
+ * many bytes from the stream as the image has, and it doesn't close the stream. Pixels can also be pushed a row at a
+ * time to a {@link RowSink}, such as a scaler, without decoding the whole image first. A sample that's greater than
+ * the image's max value is a format error.
+ */
+public class PNMDecoder {
+
+    /* The size of the pooled buffers rows are read into; larger rows get a buffer of their own */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final InputStream myStream;
+
+    private final char myFormat;
+
+    private final int myWidth;
+
+    private final int myHeight;
+
+    private final int myMaxValue;
+
+    private final int myBands;
+
+    private final int myBytesPerSample;
+
+    /**
+     * Creates a decoder for the PNM image in the supplied stream, reading the image's header.
+     *
+     * @param aStream A stream positioned at the start of a PNM image
+     * @throws FormatIOException If the stream doesn't contain a supported PNM image
+     * @throws IOException If the header can't be read
+     */
+    public PNMDecoder(final InputStream aStream) throws FormatIOException, IOException {
+        final int magic1 = aStream.read();
+        final int magic2 = aStream.read();
+
+        if (magic1 != 'P' || magic2 < '4' || magic2 > '6') {
+            throw new FormatIOException("Bad PNM magic number: " + magic1 + magic2);
+        }
+
+        myStream = aStream;
+        myFormat = (char) magic2;
+        myWidth = readNumber(aStream);
+        myHeight = readNumber(aStream);
+        myMaxValue = myFormat == '4' ? 1 : readNumber(aStream);
+        myBands = myFormat == '6' ? 3 : 1;
+        myBytesPerSample = myMaxValue < 256 ? 1 : 2;
+
+        if (myWidth <= 0 || myHeight <= 0 || myMaxValue <= 0 || myMaxValue > 65535) {
+            throw new FormatIOException("Bad PNM header: " + myWidth + "x" + myHeight + " max " + myMaxValue);
+        }
+    }
+
+    /**
+     * Gets the width of the image.
+     *
+     * @return The image width
+     */
+    public int getWidth() {
+        return myWidth;
+    }
+
+    /**
+     * Gets the height of the image.
+     *
+     * @return The image height
+     */
+    public int getHeight() {
+        return myHeight;
+    }
+
+    /**
+     * Returns true if the image is a graymap.
+     *
+     * @return True if the image is a graymap; else, false
+     */
+    public boolean isGray() {
+        return myFormat == '5';
+    }
+
+    /**
+     * Decodes the image's pixels into a new <code>TYPE_INT_RGB</code> image.
+     *
+     * @return The decoded image
+     * @throws FormatIOException If a sample is greater than the image's max value
+     * @throws IOException If the pixels can't be read
+     */
+    public BufferedImage decode() throws FormatIOException, IOException {
+        final BufferedImage image = new BufferedImage(myWidth, myHeight, BufferedImage.TYPE_INT_RGB);
+
+        decode(image);
+        return image;
+    }
+
+    /**
+     * Decodes the image's pixels into the supplied image, which must be a <code>TYPE_INT_RGB</code> image or, for a
+     * graymap, a <code>TYPE_BYTE_GRAY</code> image, and must be at least as large as the PNM image.
+     *
+     * @param aImage The image to decode into
+     * @throws FormatIOException If a sample is greater than the image's max value
+     * @throws IOException If the pixels can't be read
+     */
+    public void decode(final BufferedImage aImage) throws FormatIOException, IOException {
+        if (isGray() && aImage.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            decode(((DataBufferByte) aImage.getRaster().getDataBuffer()).getData(), aImage.getWidth(), null);
+        } else {
+            decode(((DataBufferInt) aImage.getRaster().getDataBuffer()).getData(), aImage.getWidth(), null);
+        }
+    }
+
+    /**
+     * Decodes the image's pixels a row at a time into the supplied sink: as byte arrays for a graymap and as packed
+     * int RGB arrays otherwise. Only one row of pixels is held at a time, and it's reused for the next row.
+     *
+     * @param aSink The sink the image's rows are pushed to
+     * @throws FormatIOException If a sample is greater than the image's max value
+     * @throws IOException If the pixels can't be read
+     */
+    public void decode(final RowSink aSink) throws FormatIOException, IOException {
+        decode(isGray() ? new byte[myWidth] : new int[myWidth], 0, aSink);
+    }
+
+    /**
+     * Decodes the image's rows into an array of pixels. If there's a sink, each row is unpacked at the start of the
+     * array and pushed to it; otherwise, rows are unpacked the supplied stride apart.
+     */
+    private void decode(final Object aPixels, final int aStride, final RowSink aSink) throws FormatIOException,
+            IOException {
+        final int rowBytes = myFormat == '4' ? (myWidth + 7) / 8 : myWidth * myBands * myBytesPerSample;
+        final int[] scale = getScale();
+        final byte[] pooled = BUFFERS.get();
+        final byte[] buffer = rowBytes <= pooled.length ? pooled : new byte[rowBytes];
+        final int rowsPerRead = buffer.length / rowBytes;
+        final byte[] grayRow = isGray() && aPixels instanceof int[] ? new byte[myWidth] : null;
+
+        for (int y = 0; y < myHeight; y += rowsPerRead) {
+            final int rows = Math.min(rowsPerRead, myHeight - y);
+
+            readFully(myStream, buffer, rows * rowBytes);
+
+            for (int row = 0; row < rows; row++) {
+                final int from = row * rowBytes;
+                final int to = aSink == null ? (y + row) * aStride : 0;
+                final boolean valid;
+
+                if (grayRow != null) {
+                    valid = unpackGray(buffer, from, grayRow, 0, scale);
+                    expandGray(grayRow, (int[]) aPixels, to);
+                } else if (isGray()) {
+                    valid = unpackGray(buffer, from, (byte[]) aPixels, to, scale);
+                } else if (myFormat == '6') {
+                    valid = unpackRGB(buffer, from, (int[]) aPixels, to, scale);
+                } else {
+                    valid = unpackBits(buffer, from, (int[]) aPixels, to);
+                }
+
+                if (!valid) {
+                    throw new FormatIOException("PNM row " + (y + row) + " has a sample greater than " + myMaxValue);
+                }
+
+                if (aSink != null && grayRow == null && isGray()) {
+                    aSink.push((byte[]) aPixels);
+                } else if (aSink != null) {
+                    aSink.push((int[]) aPixels);
+                }
+            }
+        }
+    }
+
+    /*
+     * The unpack methods return false if a row has a sample that's greater than the max value. Scale tables map those
+     * samples to -1, so it's enough to OR the row's values together and check the sign once the row's done.
+     */
+
+    private boolean unpackGray(final byte[] aRow, final int aFrom, final byte[] aPixels, final int aTo,
+            final int[] aScale) {
+        int values = 0;
+
+        if (myBytesPerSample == 1 && aScale == null) {
+            System.arraycopy(aRow, aFrom, aPixels, aTo, myWidth);
+        } else if (myBytesPerSample == 1) {
+            for (int x = 0, from = aFrom, to = aTo; x < myWidth; x++) {
+                final int value = aScale[aRow[from++] & 0xff];
+
+                aPixels[to++] = (byte) value;
+                values |= value;
+            }
+        } else {
+            for (int x = 0, from = aFrom, to = aTo; x < myWidth; x++, from += 2) {
+                final int value = sample16(aRow, from, aScale);
+
+                aPixels[to++] = (byte) value;
+                values |= value;
+            }
+        }
+
+        return values >= 0;
+    }
+
+    private boolean unpackRGB(final byte[] aRow, final int aFrom, final int[] aPixels, final int aTo,
+            final int[] aScale) {
+        int values = 0;
+
+        if (myBytesPerSample == 1 && aScale == null) {
+            for (int x = 0, from = aFrom, to = aTo; x < myWidth; x++, from += 3) {
+                aPixels[to++] = (aRow[from] & 0xff) << 16 | (aRow[from + 1] & 0xff) << 8 | aRow[from + 2] & 0xff;
+            }
+        } else if (myBytesPerSample == 1) {
+            for (int x = 0, from = aFrom, to = aTo; x < myWidth; x++, from += 3) {
+                final int value = aScale[aRow[from] & 0xff] << 16 | aScale[aRow[from + 1] & 0xff] << 8 |
+                        aScale[aRow[from + 2] & 0xff];
+
+                aPixels[to++] = value;
+                values |= value;
+            }
+        } else {
+            for (int x = 0, from = aFrom, to = aTo; x < myWidth; x++, from += 6) {
+                final int value = sample16(aRow, from, aScale) << 16 | sample16(aRow, from + 2, aScale) << 8 |
+                        sample16(aRow, from + 4, aScale);
+
+                aPixels[to++] = value;
+                values |= value;
+            }
+        }
+
+        return values >= 0;
+    }
+
+    /**
+     * Copies a row of gray samples into packed int RGB pixels.
+     */
+    private void expandGray(final byte[] aRow, final int[] aPixels, final int aTo) {
+        for (int x = 0, to = aTo; x < myWidth; x++) {
+            aPixels[to++] = (aRow[x] & 0xff) * 0x010101;
+        }
+    }
+
+    private boolean unpackBits(final byte[] aRow, final int aFrom, final int[] aPixels, final int aTo) {
+        for (int x = 0, to = aTo; x < myWidth; x++) {
+            // In a bitmap, a set bit is black
+            aPixels[to++] = (aRow[aFrom + (x >> 3)] & 0x80 >> (x & 7)) != 0 ? 0 : 0xffffff;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a big-endian 16 bit sample and scales it to 8 bits.
+     */
+    private static int sample16(final byte[] aRow, final int aIndex, final int[] aScale) {
+        final int sample = (aRow[aIndex] & 0xff) << 8 | aRow[aIndex + 1] & 0xff;
+
+        return aScale == null ? sample >> 8 : aScale[sample];
+    }
+
+    /**
+     * Gets a table that scales samples to 8 bits, or null if they only need to be shifted. The table has an entry for
+     * every value a sample of the image's depth can hold; those greater than the max value are -1.
+     */
+    private int[] getScale() {
+        if (myMaxValue == 255 || myMaxValue == 65535 || myFormat == '4') {
+            return null;
+        }
+
+        final int[] scale = new int[myBytesPerSample == 1 ? 256 : 65536];
+
+        for (int index = 0; index < scale.length; index++) {
+            scale[index] = index > myMaxValue ? -1 : (index * 255 + myMaxValue / 2) / myMaxValue;
+        }
+
+        return scale;
+    }
+
+    private static void readFully(final InputStream aStream, final byte[] aBuffer, final int aLength)
+            throws IOException {
+        int offset = 0;
+
+        while (offset < aLength) {
+            final int count = aStream.read(aBuffer, offset, aLength - offset);
+
+            if (count < 0) {
+                throw new EOFException("PNM image ended after " + offset + " of " + aLength + " bytes of a read");
+            }
+
+            offset += count;
+        }
+    }
+
+    /**
+     * Reads a decimal number from the header, skipping whitespace and comments before it and consuming the single
+     * whitespace character after it.
+     */
+    private static int readNumber(final InputStream aStream) throws FormatIOException, IOException {
+        int number = 0;
+        int c = aStream.read();
+
+        while (c == '#' || Character.isWhitespace((char) c)) {
+            if (c == '#') {
+                while (c != -1 && c != '\n' && c != '\r') {
+                    c = aStream.read();
+                }
+            }
+
+            c = aStream.read();
+        }
+
+        if (c < '0' || c > '9') {
+            throw new FormatIOException("Bad PNM header: expected a number but found " + c);
+        }
+
+        while (c >= '0' && c <= '9') {
+            number = number * 10 + c - '0';
+            c = aStream.read();
+        }
+
+        return number;
+    }
+}
@@ -22,6 +22,22 @@ public class CacheUtils {
      */
     public static final String getFileName(final String aLevel, final String aScale, final String aRegion,
             final float aRotation) {
+        return getFileName(aLevel, aScale, aRegion, aRotation, null);
+    }
+
+    /**
+     * Return a file name for the cached file based on its characteristics, including the number of quality layers
+     * it was decoded with.
+     * 
+     * @param aLevel A level to be cached
+     * @param aScale A scale to be cached
+     * @param aRegion A region to be cached
+     * @param aRotation A rotation to be cached
+     * @param aLayers The quality layers to be cached (a number or "auto"), or null for all the layers
+     * @return The file name for the cached file
+     */
+    public static final String getFileName(final String aLevel, final String aScale, final String aRegion,
+            final float aRotation, final String aLayers) {
         final StringBuilder cfName = new StringBuilder("image_");
         final String region = isEmpty(aRegion) ? "full" : aRegion.replace(',', '-');
 
@@ -48,6 +64,11 @@ public class CacheUtils {
             cfName.append('_').append((int) aRotation); // djatoka expects int
         }
 
+        // Tiles decoded with all their layers keep the names they've always had
+        if (!isEmpty(aLayers)) {
+            cfName.append("_q").append(aLayers);
+        }
+
         return cfName.append(".jpg").toString();
     }
 
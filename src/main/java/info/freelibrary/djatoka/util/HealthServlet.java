@@ -12,6 +12,13 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
+import gov.lanl.adore.djatoka.openurl.TileCacheManager;
+
+import info.freelibrary.djatoka.view.CacheJanitor;
+import info.freelibrary.djatoka.view.HotTileCache;
+import info.freelibrary.djatoka.view.ImageServlet;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,12 +79,74 @@ public class HealthServlet extends HttpServlet {
             root.appendChild(getMemoryStats(memory, freeMemory, totalMemory));
             root.appendChild(getProcessorStats());
             root.appendChild(getThreadStats());
+
+            final TileCacheManager<String, String> tileCache = OpenURLJP2KService.getTileCache();
+            final HotTileCache hotTiles = ImageServlet.getHotTileCache();
+            final CacheJanitor janitor = ImageServlet.getCacheJanitor();
+
+            if (tileCache != null) {
+                final Element stats = getCacheStats("tileCache", tileCache.size(), tileCache.getWeightedSize(),
+                        tileCache.getMaxBytes(), tileCache.getHitCount(), tileCache.getMissCount(),
+                        tileCache.getEvictionCount());
+
+                stats.getFirstChildElement("size").addAttribute(
+                        new Attribute("max", Integer.toString(tileCache.getMaxSize())));
+                root.appendChild(stats);
+            }
+
+            if (hotTiles != null) {
+                root.appendChild(getCacheStats("hotTileCache", hotTiles.size(), hotTiles.getWeightedSize(),
+                        hotTiles.getMaxBytes(), hotTiles.getHitCount(), hotTiles.getMissCount(),
+                        hotTiles.getEvictionCount()));
+            }
+
+            if (janitor != null) {
+                final Element viewCache = new Element("viewCache");
+                final Element sizeElem = new Element("size");
+                final Element bytesElem = new Element("bytes");
+                final Element evictionsElem = new Element("evictions");
+
+                sizeElem.appendChild(Integer.toString(janitor.getCount()));
+                bytesElem.appendChild(Long.toString(janitor.getSize()));
+                bytesElem.addAttribute(new Attribute("max", Long.toString(janitor.getMaxSize())));
+                evictionsElem.appendChild(Long.toString(janitor.getEvictionCount()));
+
+                viewCache.appendChild(sizeElem);
+                viewCache.appendChild(bytesElem);
+                viewCache.appendChild(evictionsElem);
+                root.appendChild(viewCache);
+            }
         }
 
         serializer.write(response);
         out.close();
     }
 
+    private Element getCacheStats(final String aName, final int aSize, final long aBytes, final long aMaxBytes,
+            final long aHits, final long aMisses, final long aEvictions) {
+        final Element cache = new Element(aName);
+        final Element sizeElem = new Element("size");
+        final Element bytesElem = new Element("bytes");
+        final Element hitsElem = new Element("hits");
+        final Element missesElem = new Element("misses");
+        final Element evictionsElem = new Element("evictions");
+
+        sizeElem.appendChild(Integer.toString(aSize));
+        bytesElem.appendChild(Long.toString(aBytes));
+        bytesElem.addAttribute(new Attribute("max", Long.toString(aMaxBytes)));
+        hitsElem.appendChild(Long.toString(aHits));
+        missesElem.appendChild(Long.toString(aMisses));
+        evictionsElem.appendChild(Long.toString(aEvictions));
+
+        cache.appendChild(sizeElem);
+        cache.appendChild(bytesElem);
+        cache.appendChild(hitsElem);
+        cache.appendChild(missesElem);
+        cache.appendChild(evictionsElem);
+
+        return cache;
+    }
+
     private Element getThreadStats() {
         final Element threads = new Element("threads");
         final ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
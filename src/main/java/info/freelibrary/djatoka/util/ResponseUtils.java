@@ -0,0 +1,109 @@
+package info.freelibrary.djatoka.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Utilities for writing content to a servlet response.
+ */
+public class ResponseUtils {
+
+    /**
+     * The size, in bytes, below which a file is read onto the heap instead of being memory mapped. Mapping a file costs
+     * a system call and a page table update, and the mapping isn't released until the buffer is garbage collected, so
+     * for a typical tile a plain read is cheaper.
+     */
+    public static final int MIN_MAPPED_SIZE = 256 * 1024;
+
+    private ResponseUtils() {
+    }
+
+    /**
+     * Writes the remaining bytes of the supplied buffer to the output stream. The servlet API only takes bytes from a
+     * heap array, so a direct or memory mapped buffer is still copied to the stream, a chunk at a time.
+     *
+     * @param aBuffer The bytes to write
+     * @param aOutStream The output stream to write to
+     * @throws IOException If there is trouble writing the bytes
+     */
+    public static void send(final ByteBuffer aBuffer, final OutputStream aOutStream) throws IOException {
+        final WritableByteChannel channel = Channels.newChannel(aOutStream);
+
+        while (aBuffer.hasRemaining()) {
+            channel.write(aBuffer);
+        }
+    }
+
+    /**
+     * Writes the supplied file to the output stream a chunk at a time, without reading the whole file into memory.
+     *
+     * @param aFile The file to write
+     * @param aOutStream The output stream to write to
+     * @throws IOException If there is trouble reading the file or writing its bytes
+     */
+    public static void send(final File aFile, final OutputStream aOutStream) throws IOException {
+        final FileInputStream inStream = new FileInputStream(aFile);
+
+        try {
+            send(inStream.getChannel(), aOutStream);
+        } finally {
+            inStream.close();
+        }
+    }
+
+    /**
+     * Writes the remainder of the supplied file channel to the output stream, a chunk at a time, without reading the
+     * whole file into memory. The servlet API doesn't expose the response's socket, so this isn't a zero-copy
+     * transfer: the bytes still pass through a small buffer on their way to the stream.
+     *
+     * @param aChannel The channel of the file to write
+     * @param aOutStream The output stream to write to
+     * @throws IOException If there is trouble reading the file or writing its bytes
+     */
+    public static void send(final FileChannel aChannel, final OutputStream aOutStream) throws IOException {
+        final long position = aChannel.position();
+        final long length = aChannel.size() - position;
+        final WritableByteChannel channel = Channels.newChannel(aOutStream);
+        long written = 0;
+
+        while (written < length) {
+            written += aChannel.transferTo(position + written, length - written, channel);
+        }
+    }
+
+    /**
+     * Reads part of a file into a buffer. Parts smaller than {@link #MIN_MAPPED_SIZE} are read into a heap buffer;
+     * larger parts are memory mapped.
+     *
+     * @param aChannel The channel of the file to read
+     * @param aPosition The position in the file at which to start reading
+     * @param aLength The number of bytes to read
+     * @return A read-only buffer holding the requested bytes
+     * @throws IOException If there is trouble reading the file or the file is shorter than expected
+     */
+    public static ByteBuffer read(final FileChannel aChannel, final long aPosition, final long aLength)
+            throws IOException {
+        if (aLength >= MIN_MAPPED_SIZE) {
+            return aChannel.map(FileChannel.MapMode.READ_ONLY, aPosition, aLength);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) aLength);
+
+        while (buffer.hasRemaining()) {
+            if (aChannel.read(buffer, aPosition + buffer.position()) == -1) {
+                throw new EOFException("File ended after " + buffer.position() + " of " + aLength + " bytes");
+            }
+        }
+
+        buffer.flip();
+
+        return buffer.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,464 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.freelibrary.djatoka.cache.TileStore;
+
+/**
+ * Keeps the view cache's tile store within a disk budget. The janitor maintains an index of the size, creation time and
+ * last access time of each cached image. On a background thread, it periodically removes images that haven't been
+ * used within their time-to-live and, if the cache is over budget, the least recently used images. Request threads
+ * only update the in-memory index, so they never wait on the janitor. The index is saved in the cache directory so
+ * access history survives a restart; on startup it's reconciled with what's actually on disk.
+ */
+public class CacheJanitor implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheJanitor.class);
+
+    private static final String INDEX_FILE = "cache-index.txt";
+
+    /* How far below its budget the cache is pruned, so it isn't pruned again on the next run */
+    private static final double LOW_WATER_MARK = 0.9;
+
+    /* How often, in milliseconds, the index is saved just to record access times */
+    private static final long ACCESS_SAVE_INTERVAL = 60 * 60 * 1000;
+
+    private final ConcurrentMap<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicLong myEvictionCount = new AtomicLong();
+
+    private final TileStore myStore;
+
+    private final HotTileCache myHotTiles;
+
+    private final File myCacheDir;
+
+    private final File myIndexFile;
+
+    private final long myMaxSize;
+
+    private final long myTTL;
+
+    private ScheduledExecutorService myExecutor;
+
+    private volatile boolean isIndexed;
+
+    private volatile boolean isChanged;
+
+    private long myLastSave;
+
+    /**
+     * Creates a janitor for the supplied tile store.
+     *
+     * @param aStore The view cache's tile store
+     * @param aCacheDir The view cache directory, in which the index is kept
+     * @param aMaxSize The maximum number of bytes the cached images may take up, or zero for no limit
+     * @param aTTL The longest time, in milliseconds, a cached image may go unused, or zero for no limit
+     */
+    public CacheJanitor(final TileStore aStore, final File aCacheDir, final long aMaxSize, final long aTTL) {
+        this(aStore, null, aCacheDir, aMaxSize, aTTL);
+    }
+
+    /**
+     * Creates a janitor for the supplied tile store that also drops the images it removes from the hot tile cache.
+     *
+     * @param aStore The view cache's tile store
+     * @param aHotTiles The hot tile cache in front of the tile store, or null if there isn't one
+     * @param aCacheDir The view cache directory, in which the index is kept
+     * @param aMaxSize The maximum number of bytes the cached images may take up, or zero for no limit
+     * @param aTTL The longest time, in milliseconds, a cached image may go unused, or zero for no limit
+     */
+    public CacheJanitor(final TileStore aStore, final HotTileCache aHotTiles, final File aCacheDir,
+            final long aMaxSize, final long aTTL) {
+        myStore = aStore;
+        myHotTiles = aHotTiles;
+        myCacheDir = aCacheDir;
+        myIndexFile = new File(aCacheDir, INDEX_FILE);
+        myMaxSize = aMaxSize;
+        myTTL = aTTL;
+    }
+
+    /**
+     * Starts cleaning the cache on a background thread.
+     *
+     * @param aInterval The number of seconds between cleanings
+     */
+    public synchronized void start(final long aInterval) {
+        if (myExecutor == null) {
+            myExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable aRunnable) {
+                    final Thread thread = new Thread(aRunnable, "view-cache-janitor");
+
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+
+                    return thread;
+                }
+            });
+
+            myExecutor.scheduleWithFixedDelay(this, 0, aInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops cleaning the cache and saves the index.
+     */
+    public synchronized void stop() {
+        if (myExecutor != null) {
+            myExecutor.shutdownNow();
+            myExecutor = null;
+
+            saveIndex();
+        }
+    }
+
+    /**
+     * Records an access of an image that's in the tile store, adding it to the index if it's not already there.
+     *
+     * @param aID The identifier of the image's source
+     * @param aName The name of the cached image
+     * @param aStat The stats of the cached image
+     */
+    public void record(final String aID, final String aName, final TileStore.Stat aStat) {
+        final long now = System.currentTimeMillis();
+        final Entry entry = myEntries.get(getKey(aID, aName));
+
+        // Access times alone are saved with the next structural change or periodically, not after every hit
+        if (entry != null) {
+            entry.myAccessed = now;
+        } else {
+            myEntries.put(getKey(aID, aName), new Entry(aID, aName, aStat.getLength(), aStat.getLastModified(), now));
+            isChanged = true;
+        }
+    }
+
+    /**
+     * Records an access of an image that was served without touching the tile store (e.g., from memory).
+     *
+     * @param aID The identifier of the image's source
+     * @param aName The name of the cached image
+     */
+    public void touch(final String aID, final String aName) {
+        final Entry entry = myEntries.get(getKey(aID, aName));
+
+        if (entry != null) {
+            entry.myAccessed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Gets the number of images in the cache index.
+     *
+     * @return The number of indexed images
+     */
+    public int getCount() {
+        return myEntries.size();
+    }
+
+    /**
+     * Gets the number of bytes the indexed images take up.
+     *
+     * @return The size of the cache
+     */
+    public long getSize() {
+        long size = 0;
+
+        for (final Entry entry : myEntries.values()) {
+            size += entry.mySize;
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the maximum number of bytes the cached images may take up.
+     *
+     * @return The cache's byte budget, or zero if it has none
+     */
+    public long getMaxSize() {
+        return myMaxSize;
+    }
+
+    /**
+     * Gets the number of images the janitor has removed from the cache.
+     *
+     * @return The number of evictions
+     */
+    public long getEvictionCount() {
+        return myEvictionCount.get();
+    }
+
+    /**
+     * Cleans the cache, building the index first if that hasn't been done yet.
+     */
+    @Override
+    public void run() {
+        try {
+            if (!isIndexed) {
+                loadIndex();
+                scanCache();
+                isIndexed = true;
+            }
+
+            if (myTTL > 0) {
+                expire();
+            }
+
+            if (myMaxSize > 0) {
+                prune();
+            }
+
+            if (isChanged || System.currentTimeMillis() - myLastSave > ACCESS_SAVE_INTERVAL) {
+                saveIndex();
+            }
+        } catch (final Throwable details) {
+            // Don't let a problem cancel future cleanings
+            LOGGER.error("View cache cleaning failed: {}", details.getMessage(), details);
+        }
+    }
+
+    private void expire() {
+        final long oldest = System.currentTimeMillis() - myTTL;
+        final Iterator<Entry> iterator = myEntries.values().iterator();
+
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+
+            if (entry.myAccessed < oldest) {
+                evict(entry);
+            }
+        }
+    }
+
+    private void prune() {
+        long size = getSize();
+
+        if (size > myMaxSize) {
+            final long target = (long) (myMaxSize * LOW_WATER_MARK);
+            final List<Entry> entries = new ArrayList<Entry>(myEntries.values());
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("View cache is over budget ({} > {} bytes); pruning", size, myMaxSize);
+            }
+
+            Collections.sort(entries, new Comparator<Entry>() {
+
+                @Override
+                public int compare(final Entry aFirst, final Entry aSecond) {
+                    return Long.compare(aFirst.myAccessed, aSecond.myAccessed);
+                }
+            });
+
+            for (int index = 0; index < entries.size() && size > target; index++) {
+                if (evict(entries.get(index))) {
+                    size -= entries.get(index).mySize;
+                }
+            }
+        }
+    }
+
+    private boolean evict(final Entry aEntry) {
+        if (!myEntries.remove(getKey(aEntry.myID, aEntry.myName), aEntry)) {
+            return false;
+        }
+
+        if (myHotTiles != null) {
+            myHotTiles.invalidate(aEntry.myID, aEntry.myName);
+        }
+
+        try {
+            if (myStore.delete(aEntry.myID, aEntry.myName) && LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Removed cached image {} for {}", aEntry.myName, aEntry.myID);
+            }
+        } catch (final IOException details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to remove cached image {} for {}: {}", aEntry.myName, aEntry.myID, details
+                        .getMessage());
+            }
+        }
+
+        myEvictionCount.incrementAndGet();
+        isChanged = true;
+
+        return true;
+    }
+
+    private void scanCache() throws IOException {
+        final long scanStart = System.currentTimeMillis();
+        final ConcurrentMap<String, Boolean> found = new ConcurrentHashMap<String, Boolean>();
+
+        myStore.list(new TileStore.Visitor() {
+
+            @Override
+            public void visit(final String aID, final String aName, final TileStore.Stat aStat) {
+                final String key = getKey(aID, aName);
+                final Entry entry = myEntries.get(key);
+                final long modified = aStat.getLastModified();
+
+                if (entry == null) {
+                    myEntries.putIfAbsent(key, new Entry(aID, aName, aStat.getLength(), modified, modified));
+                } else {
+                    entry.mySize = aStat.getLength();
+                }
+
+                found.put(key, Boolean.TRUE);
+            }
+        });
+
+        // Forget indexed images that are no longer stored (but not ones that were just added)
+        final Iterator<java.util.Map.Entry<String, Entry>> iterator = myEntries.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final java.util.Map.Entry<String, Entry> mapEntry = iterator.next();
+
+            if (!found.containsKey(mapEntry.getKey()) && mapEntry.getValue().myAccessed < scanStart) {
+                iterator.remove();
+            }
+        }
+
+        isChanged = true;
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("Indexed {} cached images ({} bytes)", myEntries.size(), getSize());
+        }
+    }
+
+    private void loadIndex() {
+        if (!myIndexFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(myIndexFile), "UTF-8"));
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", 5);
+
+                if (parts.length == 5) {
+                    try {
+                        final long size = Long.parseLong(parts[0]);
+                        final long created = Long.parseLong(parts[1]);
+                        final long accessed = Long.parseLong(parts[2]);
+
+                        myEntries.putIfAbsent(getKey(parts[4], parts[3]), new Entry(parts[4], parts[3], size,
+                                created, accessed));
+                    } catch (final NumberFormatException details) {
+                        if (LOGGER.isWarnEnabled()) {
+                            LOGGER.warn("Skipping malformed cache index line: {}", line);
+                        }
+                    }
+                }
+            }
+        } catch (final IOException details) {
+            LOGGER.error("Unable to read cache index {}: {}", myIndexFile, details.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException details) {
+                    LOGGER.warn(details.getMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized void saveIndex() {
+        final File tmpFile = new File(myCacheDir, INDEX_FILE + ".tmp");
+        BufferedWriter writer = null;
+
+        isChanged = false;
+
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+
+            for (final Entry entry : myEntries.values()) {
+                if (entry.myID.indexOf('\n') == -1) {
+                    writer.write(Long.toString(entry.mySize));
+                    writer.write('\t');
+                    writer.write(Long.toString(entry.myCreated));
+                    writer.write('\t');
+                    writer.write(Long.toString(entry.myAccessed));
+                    writer.write('\t');
+                    writer.write(entry.myName);
+                    writer.write('\t');
+                    writer.write(entry.myID);
+                    writer.newLine();
+                }
+            }
+
+            writer.close();
+            writer = null;
+
+            Files.move(tmpFile.toPath(), myIndexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            myLastSave = System.currentTimeMillis();
+        } catch (final IOException details) {
+            LOGGER.error("Unable to save cache index {}: {}", myIndexFile, details.getMessage());
+            isChanged = true;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException details) {
+                    LOGGER.warn(details.getMessage());
+                }
+            }
+        }
+    }
+
+    private static String getKey(final String aID, final String aName) {
+        return aID + "_" + aName;
+    }
+
+    private static class Entry {
+
+        private final String myID;
+
+        private final String myName;
+
+        private final long myCreated;
+
+        private volatile long mySize;
+
+        private volatile long myAccessed;
+
+        private Entry(final String aID, final String aName, final long aSize, final long aCreated,
+                final long aAccessed) {
+            myID = aID;
+            myName = aName;
+            mySize = aSize;
+            myCreated = aCreated;
+            myAccessed = aAccessed;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import info.freelibrary.djatoka.cache.TileStore;
+import info.freelibrary.djatoka.util.CacheUtils;
+
+/**
+ * Warms the view cache on startup with the tiles that were requested most often before the server was restarted.
+ * While the server runs, the warmer counts the requests for each tile and periodically saves the top tiles to a file
+ * in the cache directory. On startup, the saved tiles that aren't already in the tile store are rendered on a small
+ * pool of low-priority threads, so the hot set is ready before traffic ramps up.
+ */
+public class CacheWarmer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheWarmer.class);
+
+    private static final String WARMUP_FILE = "warmup.txt";
+
+    /* How many more tiles than will be saved that we keep counting, so newly popular tiles can work their way up */
+    private static final int TRACKING_FACTOR = 4;
+
+    private final ConcurrentMap<String, AtomicLong> myCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicInteger myWarmedCount = new AtomicInteger();
+
+    private final TileStore myStore;
+
+    private final File myWarmupFile;
+
+    private final int mySize;
+
+    private ScheduledExecutorService myScheduler;
+
+    private ThreadPoolExecutor myRenderer;
+
+    /**
+     * Creates a cache warmer.
+     *
+     * @param aStore The view cache's tile store
+     * @param aCacheDir The view cache directory, in which the list of top tiles is kept
+     * @param aSize The number of top tiles to save and warm
+     */
+    public CacheWarmer(final TileStore aStore, final File aCacheDir, final int aSize) {
+        myStore = aStore;
+        myWarmupFile = new File(aCacheDir, WARMUP_FILE);
+        mySize = aSize;
+    }
+
+    /**
+     * Starts warming the cache from the saved list of top tiles and starts saving the top tiles periodically.
+     *
+     * @param aInterval The number of seconds between saves of the top tiles
+     * @param aThreads The number of threads to render tiles with during warm-up
+     */
+    public synchronized void start(final long aInterval, final int aThreads) {
+        if (myScheduler != null) {
+            return;
+        }
+
+        final List<String[]> tiles = load();
+
+        myScheduler = Executors.newSingleThreadScheduledExecutor(getThreadFactory("cache-warmer"));
+        myScheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    save();
+                } catch (final Throwable details) {
+                    LOGGER.error("Unable to save top tiles: {}", details.getMessage(), details);
+                }
+            }
+        }, aInterval, aInterval, TimeUnit.SECONDS);
+
+        if (!tiles.isEmpty()) {
+            // The queue holds every saved tile, so submissions never block or get rejected
+            myRenderer = new ThreadPoolExecutor(aThreads, aThreads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(tiles.size()), getThreadFactory("cache-warmup"));
+
+            for (final String[] tile : tiles) {
+                myRenderer.execute(new Warmup(tile));
+            }
+
+            myRenderer.shutdown();
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Warming the view cache with {} tiles", tiles.size());
+            }
+        }
+    }
+
+    /**
+     * Stops warming the cache and saves the current top tiles.
+     */
+    public synchronized void stop() {
+        if (myRenderer != null) {
+            myRenderer.shutdownNow();
+            myRenderer = null;
+        }
+
+        if (myScheduler != null) {
+            myScheduler.shutdownNow();
+            myScheduler = null;
+
+            save();
+        }
+    }
+
+    /**
+     * Counts a request for a tile.
+     *
+     * @param aID The identifier of the tile's source image
+     * @param aLevel The requested level, or null
+     * @param aScale The requested scale, or null
+     * @param aRegion The requested region
+     * @param aRotation The requested rotation
+     * @param aLayers The requested quality layers, or null
+     */
+    public void record(final String aID, final String aLevel, final String aScale, final String aRegion,
+            final float aRotation, final String aLayers) {
+        final String key = toKey(new String[] { aID, aLevel, aScale, aRegion, Integer.toString((int) aRotation),
+            aLayers });
+        final AtomicLong count = myCounts.get(key);
+
+        if (count != null) {
+            count.incrementAndGet();
+        } else if (myCounts.size() < mySize * TRACKING_FACTOR * 2) {
+            // Between saves, new tiles are only tracked up to a bound so the counts can't grow without limit
+            final AtomicLong existing = myCounts.putIfAbsent(key, new AtomicLong(1));
+
+            if (existing != null) {
+                existing.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of tiles rendered during warm-up.
+     *
+     * @return The number of warmed tiles
+     */
+    public int getWarmedCount() {
+        return myWarmedCount.get();
+    }
+
+    /**
+     * Saves the most requested tiles. Only the most requested tiles stay tracked afterwards, and their counts are
+     * halved so that tiles that have stopped being popular age out.
+     */
+    public synchronized void save() {
+        final List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(myCounts
+                .entrySet());
+        final File tmpFile = new File(myWarmupFile.getParentFile(), WARMUP_FILE + ".tmp");
+        BufferedWriter writer = null;
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+
+            @Override
+            public int compare(final Map.Entry<String, AtomicLong> aFirst,
+                    final Map.Entry<String, AtomicLong> aSecond) {
+                return Long.compare(aSecond.getValue().get(), aFirst.getValue().get());
+            }
+        });
+
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+
+            for (int index = 0; index < entries.size() && index < mySize; index++) {
+                writer.write(entries.get(index).getKey());
+                writer.newLine();
+            }
+
+            writer.close();
+            writer = null;
+
+            Files.move(tmpFile.toPath(), myWarmupFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException details) {
+            LOGGER.error("Unable to save top tiles to {}: {}", myWarmupFile, details.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException details) {
+                    LOGGER.warn(details.getMessage());
+                }
+            }
+        }
+
+        for (int index = 0; index < entries.size(); index++) {
+            final Map.Entry<String, AtomicLong> entry = entries.get(index);
+
+            if (index < mySize * TRACKING_FACTOR) {
+                entry.getValue().set(entry.getValue().get() / 2);
+            } else {
+                myCounts.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private List<String[]> load() {
+        final List<String[]> tiles = new ArrayList<String[]>();
+        BufferedReader reader = null;
+
+        if (!myWarmupFile.exists()) {
+            return tiles;
+        }
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(myWarmupFile), "UTF-8"));
+            String line;
+
+            while ((line = reader.readLine()) != null && tiles.size() < mySize) {
+                final String[] tile = fromKey(line);
+
+                if (tile != null) {
+                    tiles.add(tile);
+                }
+            }
+        } catch (final IOException details) {
+            LOGGER.error("Unable to read top tiles from {}: {}", myWarmupFile, details.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException details) {
+                    LOGGER.warn(details.getMessage());
+                }
+            }
+        }
+
+        return tiles;
+    }
+
+    private static String toKey(final String[] aTile) {
+        final StringBuilder key = new StringBuilder();
+
+        // The identifier goes last since it's the only part that could contain a tab
+        for (int index = aTile.length - 1; index >= 0; index--) {
+            key.append(aTile[index] == null ? "" : aTile[index]);
+
+            if (index > 0) {
+                key.append('\t');
+            }
+        }
+
+        return key.toString();
+    }
+
+    static String[] fromKey(final String aKey) {
+        final String[] parts = aKey.split("\t", 6);
+        final String[] tile = new String[6];
+
+        if (parts.length != tile.length) {
+            return null;
+        }
+
+        for (int index = 0; index < parts.length; index++) {
+            tile[parts.length - 1 - index] = parts[index].isEmpty() ? null : parts[index];
+        }
+
+        return tile;
+    }
+
+    private static ThreadFactory getThreadFactory(final String aName) {
+        return new ThreadFactory() {
+
+            private final AtomicInteger myCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable aRunnable) {
+                final Thread thread = new Thread(aRunnable, aName + "-" + myCount.incrementAndGet());
+
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+
+                return thread;
+            }
+        };
+    }
+
+    private class Warmup implements Runnable {
+
+        private final String[] myTile;
+
+        private Warmup(final String[] aTile) {
+            myTile = aTile;
+        }
+
+        @Override
+        public void run() {
+            final String id = myTile[0];
+            final String level = myTile[1];
+            final String scale = myTile[2];
+            final String region = myTile[3] == null ? "" : myTile[3];
+            final String layers = myTile[5];
+            final float rotation;
+
+            try {
+                rotation = Float.parseFloat(myTile[4]);
+            } catch (final NumberFormatException details) {
+                return;
+            }
+
+            final String name = CacheUtils.getFileName(level, scale, region, rotation, layers);
+
+            try {
+                if (myStore.stat(id, name) == null && ImageServlet.renderImage(id, level, region, scale, rotation,
+                        layers, name)) {
+                    myWarmedCount.incrementAndGet();
+
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Warmed {} for {}", name, id);
+                    }
+                }
+            } catch (final IOException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to warm {} for {}: {}", name, id, details.getMessage());
+                }
+            }
+        }
+    }
+}
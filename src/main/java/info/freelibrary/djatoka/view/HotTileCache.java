@@ -0,0 +1,351 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A byte-budgeted, in-memory cache of encoded tiles that sits in front of the Pairtree view cache. Tile bytes are
+ * kept off the heap in direct buffers, along with the metadata needed to answer a request, so serving a hot tile
+ * doesn't touch the file system. Eviction uses the CLOCK (second chance) approximation of LRU, which lets lookups
+ * proceed without taking a lock. A key sits on the clock at most once; keys whose tiles have been invalidated are
+ * dropped from the clock lazily, when the hand reaches them.
+ */
+public class HotTileCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HotTileCache.class);
+
+    private final ConcurrentMap<String, Tile> myTiles = new ConcurrentHashMap<String, Tile>();
+
+    private final Queue<String> myClock = new ConcurrentLinkedQueue<String>();
+
+    private final Set<String> myQueued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong mySize = new AtomicLong();
+
+    private final AtomicLong myHitCount = new AtomicLong();
+
+    private final AtomicLong myMissCount = new AtomicLong();
+
+    private final AtomicLong myEvictionCount = new AtomicLong();
+
+    private final long myMaxSize;
+
+    private final int myMaxTileSize;
+
+    /**
+     * Creates a new hot tile cache.
+     *
+     * @param aMaxSize The maximum number of bytes to keep in memory
+     * @param aMaxTileSize The largest tile, in bytes, that will be cached
+     */
+    public HotTileCache(final long aMaxSize, final int aMaxTileSize) {
+        myMaxSize = aMaxSize;
+        myMaxTileSize = aMaxTileSize;
+    }
+
+    /**
+     * Gets the tile with the supplied key.
+     *
+     * @param aKey A tile key: an identifier and the tile's cache file name
+     * @return The cached tile or null if it's not in the cache
+     */
+    public Tile get(final String aKey) {
+        final Tile tile = myTiles.get(aKey);
+
+        if (tile == null) {
+            myMissCount.incrementAndGet();
+            return null;
+        }
+
+        tile.myReferenced = true;
+        myHitCount.incrementAndGet();
+
+        return tile;
+    }
+
+    /**
+     * Loads the supplied tile file into the cache. Files that are larger than the maximum tile size aren't cached.
+     *
+     * @param aKey A tile key: an identifier and the tile's cache file name
+     * @param aFile The encoded tile
+     * @param aContentType The content type of the encoded tile
+     * @return The cached tile or null if the tile is too large to be cached
+     * @throws IOException If the tile file can't be read
+     */
+    public Tile put(final String aKey, final File aFile, final String aContentType) throws IOException {
+        final long length = aFile.length();
+
+        if (length == 0 || length > myMaxTileSize || length > myMaxSize) {
+            return null;
+        }
+
+        final FileInputStream inStream = new FileInputStream(aFile);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+
+        try {
+            final FileChannel channel = inStream.getChannel();
+
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // Keep reading until the buffer is full or the file is done
+            }
+        } finally {
+            inStream.close();
+        }
+
+        buffer.flip();
+
+        return add(aKey, buffer, aFile.lastModified(), aContentType);
+    }
+
+    /**
+     * Copies the supplied tile bytes into the cache. Tiles that are larger than the maximum tile size aren't cached.
+     *
+     * @param aKey A tile key: an identifier and the tile's cache file name
+     * @param aContent The encoded tile; its position isn't changed
+     * @param aLastModified The time the tile was last modified
+     * @param aContentType The content type of the encoded tile
+     * @return The cached tile or null if the tile is too large to be cached
+     */
+    public Tile put(final String aKey, final ByteBuffer aContent, final long aLastModified,
+            final String aContentType) {
+        final int length = aContent.remaining();
+
+        if (length == 0 || length > myMaxTileSize || length > myMaxSize) {
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+
+        buffer.put(aContent.duplicate()).flip();
+
+        return add(aKey, buffer, aLastModified, aContentType);
+    }
+
+    private Tile add(final String aKey, final ByteBuffer aBuffer, final long aLastModified,
+            final String aContentType) {
+        final Tile tile = new Tile(aBuffer.asReadOnlyBuffer(), aContentType, aLastModified);
+        final Tile existing = myTiles.putIfAbsent(aKey, tile);
+
+        if (existing != null) {
+            return existing;
+        }
+
+        enqueue(aKey);
+
+        if (mySize.addAndGet(tile.getLength()) > myMaxSize) {
+            evict();
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Loaded {} ({} bytes) into the hot tile cache", aKey, tile.getLength());
+        }
+
+        return tile;
+    }
+
+    /**
+     * Removes the tile with the supplied key from the cache, e.g. because the tile it was loaded from has been deleted
+     * or has gone stale.
+     *
+     * @param aKey A tile key
+     */
+    public void invalidate(final String aKey) {
+        final Tile tile = myTiles.remove(aKey);
+
+        if (tile != null) {
+            mySize.addAndGet(-tile.getLength());
+        }
+    }
+
+    /**
+     * Removes the tile with the supplied identifier and cache file name from the cache.
+     *
+     * @param aID An image identifier
+     * @param aName The tile's cache file name
+     */
+    public void invalidate(final String aID, final String aName) {
+        invalidate(getKey(aID, aName));
+    }
+
+    /**
+     * Gets the key of the tile with the supplied identifier and cache file name.
+     *
+     * @param aID An image identifier
+     * @param aName The tile's cache file name
+     * @return The tile key
+     */
+    public static String getKey(final String aID, final String aName) {
+        return aID + "_" + aName;
+    }
+
+    /**
+     * Gets the number of tiles in the cache.
+     *
+     * @return The number of cached tiles
+     */
+    public int size() {
+        return myTiles.size();
+    }
+
+    /**
+     * Gets the number of bytes the cached tiles take up.
+     *
+     * @return The number of bytes in the cache
+     */
+    public long getWeightedSize() {
+        return mySize.get();
+    }
+
+    /**
+     * Gets the maximum number of bytes that will be kept in the cache.
+     *
+     * @return The maximum size of the cache
+     */
+    public long getMaxBytes() {
+        return myMaxSize;
+    }
+
+    /**
+     * Gets the number of lookups that found a tile in the cache.
+     *
+     * @return The number of cache hits
+     */
+    public long getHitCount() {
+        return myHitCount.get();
+    }
+
+    /**
+     * Gets the number of lookups that didn't find a tile in the cache.
+     *
+     * @return The number of cache misses
+     */
+    public long getMissCount() {
+        return myMissCount.get();
+    }
+
+    /**
+     * Gets the number of tiles evicted to keep the cache within its byte budget.
+     *
+     * @return The number of cache evictions
+     */
+    public long getEvictionCount() {
+        return myEvictionCount.get();
+    }
+
+    private void evict() {
+        String key;
+
+        while (mySize.get() > myMaxSize && (key = myClock.poll()) != null) {
+            final Tile tile = myTiles.get(key);
+
+            if (tile == null) {
+                dequeue(key); // Already invalidated
+            } else if (tile.myReferenced) {
+                // Recently used tiles get a second chance
+                tile.myReferenced = false;
+                myClock.offer(key);
+            } else if (myTiles.remove(key, tile)) {
+                mySize.addAndGet(-tile.getLength());
+                myEvictionCount.incrementAndGet();
+                dequeue(key);
+            }
+        }
+    }
+
+    private void enqueue(final String aKey) {
+        if (myQueued.add(aKey)) {
+            myClock.offer(aKey);
+        }
+    }
+
+    private void dequeue(final String aKey) {
+        myQueued.remove(aKey);
+
+        // A put that raced with us may have skipped its offer because the key was still queued
+        if (myTiles.containsKey(aKey)) {
+            enqueue(aKey);
+        }
+    }
+
+    /**
+     * An encoded tile and the metadata needed to serve it.
+     */
+    public static class Tile {
+
+        private final ByteBuffer myContent;
+
+        private final String myContentType;
+
+        private final long myLastModified;
+
+        private final String myETag;
+
+        private volatile boolean myReferenced;
+
+        private Tile(final ByteBuffer aContent, final String aContentType, final long aLastModified) {
+            myContent = aContent;
+            myContentType = aContentType;
+            myLastModified = aLastModified;
+            myETag = SourceValidator.getETag(aContent.remaining(), aLastModified);
+        }
+
+        /**
+         * Gets a read-only view of the tile's bytes. Each call returns a view with its own position.
+         *
+         * @return The tile's bytes
+         */
+        public ByteBuffer getContent() {
+            return myContent.duplicate();
+        }
+
+        /**
+         * Gets the length of the tile in bytes.
+         *
+         * @return The length of the tile
+         */
+        public int getLength() {
+            return myContent.limit();
+        }
+
+        /**
+         * Gets the tile's content type.
+         *
+         * @return The content type
+         */
+        public String getContentType() {
+            return myContentType;
+        }
+
+        /**
+         * Gets the time the tile was last modified.
+         *
+         * @return The last modified time in milliseconds
+         */
+        public long getLastModified() {
+            return myLastModified;
+        }
+
+        /**
+         * Gets the tile's entity tag, for use when the tile's source can't be checked.
+         *
+         * @return The quoted entity tag
+         */
+        public String getETag() {
+            return myETag;
+        }
+    }
+}
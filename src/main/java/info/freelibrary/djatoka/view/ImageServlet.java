@@ -11,6 +11,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.Properties;
 
 import javax.imageio.IIOException;
@@ -21,7 +22,6 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import nu.xom.Attribute;
 import nu.xom.Builder;
@@ -37,13 +37,19 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.io.FormatConstants;
 import gov.lanl.adore.djatoka.openurl.OpenURLJP2KService;
+import gov.lanl.adore.djatoka.openurl.ResolverException;
 
 import info.freelibrary.djatoka.Constants;
+import info.freelibrary.djatoka.cache.TileStore;
+import info.freelibrary.djatoka.cache.TileStoreFactory;
 import info.freelibrary.djatoka.iiif.IIIFRequest;
 import info.freelibrary.djatoka.iiif.ImageRequest;
 import info.freelibrary.djatoka.iiif.Region;
 import info.freelibrary.djatoka.util.CacheUtils;
+import info.freelibrary.djatoka.util.ResponseUtils;
 import info.freelibrary.util.IOUtils;
 import info.freelibrary.util.PairtreeObject;
 import info.freelibrary.util.PairtreeRoot;
@@ -76,14 +82,34 @@ public class ImageServlet extends HttpServlet implements Constants {
 
     private static final String CHARSET = "UTF-8";
 
+    private static final long SOURCE_CHECK_INTERVAL = 60000;
+
+    /* The request parameter that asks for a quick preview of an uncached tile */
+    private static final String PROGRESSIVE_PARAM = "progressive";
+
     private static String myFormatExt;
 
     private static String myCache;
 
+    private static HotTileCache myHotTiles;
+
+    private static TileStore myTileStore;
+
+    private static CacheJanitor myJanitor;
+
+    private static CacheWarmer myWarmer;
+
+    private static TileRefiner myRefiner;
+
+    private static String myPreviewLayers;
+
+    private static final SourceValidator VALIDATOR = new SourceValidator(SOURCE_CHECK_INTERVAL);
+
     @Override
     protected void doGet(final HttpServletRequest aRequest, final HttpServletResponse aResponse)
             throws ServletException, IOException {
         String level = getServletConfig().getInitParameter("level");
+        final String layers = getServletConfig().getInitParameter("layers");
         final IIIFRequest iiif = (IIIFRequest) aRequest.getAttribute(IIIFRequest.KEY);
         final String reqURI = aRequest.getRequestURI();
         final String servletPath = aRequest.getServletPath();
@@ -91,6 +117,29 @@ public class ImageServlet extends HttpServlet implements Constants {
         final String id = getID(path);
 
         if (reqURI.endsWith("/info.xml") || reqURI.endsWith("/info.json")) {
+            final SourceValidator.Source source = VALIDATOR.getSource(id);
+
+            if (source != null) {
+                final String variant;
+
+                // The JSON version of the info includes the service's URL
+                if (reqURI.endsWith("/info.xml")) {
+                    variant = "info.xml";
+                } else {
+                    variant = "info.json|" + aRequest.getScheme() + "://" + aRequest.getServerName() + ":" +
+                            aRequest.getServerPort() + "|" + (iiif != null ? iiif.getServicePrefix() : "");
+                }
+
+                final String etag = source.getETag(variant);
+
+                if (SourceValidator.matches(aRequest.getHeader("If-None-Match"), etag)) {
+                    sendNotModified(etag, source, aResponse);
+                    return;
+                }
+
+                aResponse.setHeader("ETag", etag);
+            }
+
             try {
                 final int[] config = getHeightWidthAndLevels(aRequest, aResponse);
                 final ImageInfo info = new ImageInfo(id, config[0], config[1], config[2]);
@@ -144,13 +193,13 @@ public class ImageServlet extends HttpServlet implements Constants {
             }
 
             if (myCache != null) {
-                checkImageCache(id, level, size, region, rotation, aRequest, aResponse);
+                checkImageCache(id, level, size, region, rotation, layers, aRequest, aResponse);
             } else {
                 if (LOGGER.isWarnEnabled()) {
                     LOGGER.warn("Cache isn't configured correctly");
                 }
 
-                serveNewImage(id, level, region, size, rotation, aRequest, aResponse);
+                serveNewImage(id, level, region, size, rotation, layers, aRequest, aResponse);
             }
         } else {
             // We are using the now deprecated FreeLib-Djatoka djtilesource.js
@@ -188,14 +237,14 @@ public class ImageServlet extends HttpServlet implements Constants {
 
             if (myCache != null) {
                 // Older freelib-djatoka didn't support rotations; use 0.0f
-                checkImageCache(id, level, scale, region, 0.0f, aRequest, aResponse);
+                checkImageCache(id, level, scale, region, 0.0f, layers, aRequest, aResponse);
             } else {
                 if (LOGGER.isWarnEnabled()) {
                     LOGGER.warn("Cache isn't configured correctly");
                 }
 
                 // Older freelib-djatoka didn't support rotations; use 0.0f
-                serveNewImage(id, level, region, scale, 0.0f, aRequest, aResponse);
+                serveNewImage(id, level, region, scale, 0.0f, layers, aRequest, aResponse);
             }
         }
     }
@@ -222,6 +271,82 @@ public class ImageServlet extends HttpServlet implements Constants {
                     LOGGER.debug("Cache directory set to {}", myCache);
                 }
 
+                synchronized (ImageServlet.class) {
+                    if (myHotTiles == null) {
+                        final String size = props.getProperty(VIEW_MEMCACHE_SIZE);
+                        final String tileSize = props.getProperty(VIEW_MEMCACHE_TILE_SIZE);
+                        final long maxSize = size != null ? Long.parseLong(size) : DEFAULT_MEMCACHE_SIZE;
+                        final int maxTileSize =
+                                tileSize != null ? Integer.parseInt(tileSize) : DEFAULT_MEMCACHE_TILE_SIZE;
+
+                        if (maxSize > 0) {
+                            myHotTiles = new HotTileCache(maxSize, maxTileSize);
+
+                            if (LOGGER.isDebugEnabled()) {
+                                LOGGER.debug("Hot tile cache set to {} bytes", maxSize);
+                            }
+                        }
+                    }
+
+                    if (myTileStore == null) {
+                        myTileStore = TileStoreFactory.getTileStore(props);
+                    }
+
+                    if (myJanitor == null) {
+                        final long maxSize = Long.parseLong(props.getProperty(VIEW_CACHE_MAX_SIZE, "0"));
+                        final long ttl = Long.parseLong(props.getProperty(VIEW_CACHE_TTL, "0"));
+                        final String interval = props.getProperty(VIEW_CACHE_JANITOR_INTERVAL);
+
+                        if (maxSize > 0 || ttl > 0) {
+                            myJanitor = new CacheJanitor(myTileStore, myHotTiles, new File(myCache), maxSize,
+                                    ttl * 1000);
+                            myJanitor.start(interval != null ? Long.parseLong(interval)
+                                    : DEFAULT_CACHE_JANITOR_INTERVAL);
+
+                            if (LOGGER.isDebugEnabled()) {
+                                LOGGER.debug("View cache limited to {} bytes and {} seconds", maxSize, ttl);
+                            }
+                        }
+                    }
+                }
+
+                // Tiles missing from our cache are rendered straight into it
+                try {
+                    OpenURLJP2KService.init(props);
+                } catch (final ResolverException details) {
+                    if (LOGGER.isWarnEnabled()) {
+                        LOGGER.warn("Unable to initialize image rendering: {}", details.getMessage());
+                    }
+                }
+
+                synchronized (ImageServlet.class) {
+                    final int warmupSize = Integer.parseInt(props.getProperty(VIEW_WARMUP_SIZE, "0"));
+
+                    if (myWarmer == null && myTileStore != null && warmupSize > 0) {
+                        final String interval = props.getProperty(VIEW_WARMUP_INTERVAL);
+                        final String threads = props.getProperty(VIEW_WARMUP_THREADS);
+
+                        myWarmer = new CacheWarmer(myTileStore, new File(myCache), warmupSize);
+                        myWarmer.start(interval != null ? Long.parseLong(interval) : DEFAULT_WARMUP_INTERVAL,
+                                threads != null ? Integer.parseInt(threads) : DEFAULT_WARMUP_THREADS);
+                    }
+
+                    final int refiners = Integer.parseInt(props.getProperty(VIEW_PROGRESSIVE_THREADS, Integer
+                            .toString(DEFAULT_PROGRESSIVE_THREADS)));
+
+                    if (myRefiner == null && myTileStore != null && refiners > 0) {
+                        final String queueSize = props.getProperty(VIEW_PROGRESSIVE_QUEUE_SIZE);
+
+                        myPreviewLayers = props.getProperty(VIEW_PROGRESSIVE_LAYERS, DEFAULT_PROGRESSIVE_LAYERS);
+                        myRefiner = new TileRefiner(refiners, queueSize != null ? Integer.parseInt(queueSize)
+                                : DEFAULT_PROGRESSIVE_QUEUE_SIZE);
+
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Progressive tiles previewed with {} quality layers", myPreviewLayers);
+                        }
+                    }
+                }
+
                 if (props.containsKey(VIEW_FORMAT_EXT)) {
                     myFormatExt = props.getProperty(VIEW_FORMAT_EXT, DEFAULT_VIEW_EXT);
 
@@ -239,6 +364,42 @@ public class ImageServlet extends HttpServlet implements Constants {
         }
     }
 
+    /**
+     * Stops the view cache's background threads, so they don't outlive the web application, and closes its tile store.
+     */
+    @Override
+    public void destroy() {
+        synchronized (ImageServlet.class) {
+            if (myRefiner != null) {
+                myRefiner.stop();
+                myRefiner = null;
+            }
+
+            if (myWarmer != null) {
+                myWarmer.stop();
+                myWarmer = null;
+            }
+
+            if (myJanitor != null) {
+                myJanitor.stop();
+                myJanitor = null;
+            }
+
+            // The tile store goes last, once nothing else is using it
+            if (myTileStore != null) {
+                try {
+                    myTileStore.close();
+                } catch (final IOException details) {
+                    LOGGER.error("Unable to close the view cache's tile store: {}", details.getMessage(), details);
+                }
+
+                myTileStore = null;
+            }
+        }
+
+        super.destroy();
+    }
+
     @Override
     protected void doHead(final HttpServletRequest aRequest, final HttpServletResponse aResponse)
             throws ServletException, IOException {
@@ -257,10 +418,18 @@ public class ImageServlet extends HttpServlet implements Constants {
         }
     }
 
+    /**
+     * Returns the last modified time of the requested image's source JP2. Everything this servlet serves is derived
+     * from the source, so this lets the container answer <code>If-Modified-Since</code> requests. This is called on
+     * every GET, so it only uses a source that's already been checked; it never resolves the identifier itself.
+     */
     @Override
     protected long getLastModified(final HttpServletRequest aRequest) {
-        // TODO: really implement this using our cached files?
-        return super.getLastModified(aRequest);
+        final String reqURI = aRequest.getRequestURI();
+        final String id = getID(reqURI.substring(aRequest.getServletPath().length()));
+        final SourceValidator.Source source = id.isEmpty() ? null : VALIDATOR.getCachedSource(id);
+
+        return source != null ? source.getLastModified() : -1;
     }
 
     private int[] getHeightWidthAndLevels(final HttpServletRequest aRequest, final HttpServletResponse aResponse)
@@ -397,39 +566,302 @@ public class ImageServlet extends HttpServlet implements Constants {
     }
 
     private void checkImageCache(final String aID, final String aLevel, final String aScale, final String aRegion,
-            final float aRotation, final HttpServletRequest aRequest, final HttpServletResponse aResponse)
-            throws IOException, ServletException {
-        final PairtreeRoot cacheDir = new PairtreeRoot(new File(myCache));
-        final PairtreeObject cacheObject = cacheDir.getObject(aID);
-        final String fileName = CacheUtils.getFileName(aLevel, aScale, aRegion, aRotation);
-        final File imageFile = new File(cacheObject, fileName);
+            final float aRotation, final String aLayers, final HttpServletRequest aRequest,
+            final HttpServletResponse aResponse) throws IOException, ServletException {
+        final String fileName = CacheUtils.getFileName(aLevel, aScale, aRegion, aRotation, aLayers);
+        final String tileKey = HotTileCache.getKey(aID, fileName);
+        final SourceValidator.Source source = VALIDATOR.getSource(aID);
+        final String etag = source != null ? source.getETag(fileName) : null;
+        HotTileCache.Tile tile;
+
+        if (myWarmer != null) {
+            myWarmer.record(aID, aLevel, aScale, aRegion, aRotation, aLayers);
+        }
 
-        if (imageFile.exists()) {
-            final ServletOutputStream outStream = aResponse.getOutputStream();
+        if (SourceValidator.matches(aRequest.getHeader("If-None-Match"), etag)) {
+            sendNotModified(etag, source, aResponse);
 
-            aResponse.setHeader("Content-Length", "" + imageFile.length());
-            aResponse.setHeader("Cache-Control", "public, max-age=4838400");
-            aResponse.setContentType("image/jpg");
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("{} not modified", tileKey);
+            }
 
-            IOUtils.copyStream(imageFile, outStream);
-            IOUtils.closeQuietly(outStream);
+            return;
+        }
+
+        tile = myHotTiles != null ? myHotTiles.get(tileKey) : null;
 
+        // A derivative that's older than its source JP2 is stale
+        if (tile != null && source != null && tile.getLastModified() < source.getLastModified()) {
+            myHotTiles.invalidate(tileKey);
+            tile = null;
+        }
+
+        if (tile != null) {
+            serveHotTile(tile, etag, source, aResponse);
+
+            if (myJanitor != null) {
+                myJanitor.touch(aID, fileName);
+            }
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("{} served from hot tile cache", tileKey);
+            }
+
+            return;
+        }
+
+        TileStore.Stat stat = myTileStore != null ? myTileStore.stat(aID, fileName) : null;
+
+        if (stat != null && source != null && stat.getLastModified() < source.getLastModified()) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("{} is older than its source; removing it", tileKey);
+            }
+
+            if (!myTileStore.delete(aID, fileName) && LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Tile not deleted: {}", tileKey);
+            }
+
+            if (myHotTiles != null) {
+                myHotTiles.invalidate(tileKey);
+            }
+
+            stat = null;
+        }
+
+        if (stat != null && serveCachedImage(aID, fileName, stat, etag, source, aResponse)) {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("{} served from Pairtree cache", imageFile);
+                LOGGER.debug("{} served from tile store", tileKey);
             }
         } else {
             if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("{} not found in cache", imageFile);
+                LOGGER.debug("{} not found in cache", tileKey);
             }
 
-            serveNewImage(aID, aLevel, aRegion, aScale, aRotation, aRequest, aResponse);
-            cacheNewImage(aRequest, aID + "_" + fileName, imageFile);
+            // A progressive request gets a quick preview now and the full tile once it's been rendered
+            if (myRefiner != null && "true".equals(aRequest.getParameter(PROGRESSIVE_PARAM)) &&
+                    servePreview(aID, aLevel, aRegion, aScale, aRotation, aLayers, fileName, aResponse)) {
+                return;
+            }
+
+            if (!renderImage(aID, aLevel, aRegion, aScale, aRotation, aLayers, fileName) ||
+                    (stat = myTileStore.stat(aID, fileName)) == null ||
+                    !serveCachedImage(aID, fileName, stat, etag, source, aResponse)) {
+                // Let the OpenURL layer serve (and report problems with) images we don't cache
+                serveNewImage(aID, aLevel, aRegion, aScale, aRotation, aLayers, aRequest, aResponse);
+            }
         }
     }
 
+    /**
+     * Serves a preview of an uncached tile that's decoded with only a few quality layers, and queues the rendering of
+     * the full tile into the view cache. The preview must not be cached by the client, so the next request for the
+     * tile gets the full one.
+     */
+    private boolean servePreview(final String aID, final String aLevel, final String aRegion, final String aScale,
+            final float aRotation, final String aLayers, final String aName, final HttpServletResponse aResponse)
+            throws IOException {
+        final byte[] preview;
+
+        try {
+            preview = OpenURLJP2KService.renderImage(aID, getDecodeParams(aLevel, aRegion, aScale, aRotation,
+                    myPreviewLayers), DEFAULT_VIEW_FORMAT);
+        } catch (final Exception details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to render a preview of {} for {}: {}", aName, aID, details.getMessage());
+            }
+
+            return false;
+        }
+
+        if (preview == null || preview.length == 0) {
+            return false;
+        }
+
+        myRefiner.refine(aID + "_" + aName, new Runnable() {
+
+            @Override
+            public void run() {
+                renderImage(aID, aLevel, aRegion, aScale, aRotation, aLayers, aName);
+            }
+        });
+
+        final ServletOutputStream outStream = aResponse.getOutputStream();
+
+        aResponse.setHeader("Content-Length", Integer.toString(preview.length));
+        aResponse.setHeader("Cache-Control", "no-store");
+        aResponse.setContentType(FormatConstants.FORMAT_MIMEYPE_JPEG);
+
+        try {
+            outStream.write(preview);
+        } finally {
+            IOUtils.closeQuietly(outStream);
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("{} for {} served as a preview", aName, aID);
+        }
+
+        return true;
+    }
+
+    private boolean serveCachedImage(final String aID, final String aName, final TileStore.Stat aStat,
+            final String aETag, final SourceValidator.Source aSource, final HttpServletResponse aResponse)
+            throws IOException {
+        final ByteBuffer content = myTileStore.get(aID, aName);
+        final HotTileCache.Tile tile;
+
+        // It may have been evicted since it was found
+        if (content == null) {
+            return false;
+        }
+
+        if (myJanitor != null) {
+            myJanitor.record(aID, aName, aStat);
+        }
+
+        if (myHotTiles != null && (tile = myHotTiles.put(HotTileCache.getKey(aID, aName), content, aStat
+                .getLastModified(), FormatConstants.FORMAT_MIMEYPE_JPEG)) != null) {
+            serveHotTile(tile, aETag, aSource, aResponse);
+        } else {
+            final ServletOutputStream outStream = aResponse.getOutputStream();
+
+            aResponse.setHeader("Content-Length", Integer.toString(content.remaining()));
+            aResponse.setHeader("Cache-Control", "public, max-age=4838400");
+            setValidators(aETag != null ? aETag : SourceValidator.getETag(content.remaining(), aStat
+                    .getLastModified()), aSource, aStat.getLastModified(), aResponse);
+            aResponse.setContentType(FormatConstants.FORMAT_MIMEYPE_JPEG);
+
+            try {
+                ResponseUtils.send(content, outStream);
+            } finally {
+                IOUtils.closeQuietly(outStream);
+            }
+        }
+
+        return true;
+    }
+
+    private void sendNotModified(final String aETag, final SourceValidator.Source aSource,
+            final HttpServletResponse aResponse) {
+        aResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        aResponse.setHeader("Cache-Control", "public, max-age=4838400");
+        setValidators(aETag, aSource, -1, aResponse);
+    }
+
+    private void setValidators(final String aETag, final SourceValidator.Source aSource, final long aLastModified,
+            final HttpServletResponse aResponse) {
+        if (aETag != null) {
+            aResponse.setHeader("ETag", aETag);
+        }
+
+        if (aSource != null) {
+            aResponse.setDateHeader("Last-Modified", aSource.getLastModified());
+        } else if (aLastModified > 0) {
+            aResponse.setDateHeader("Last-Modified", aLastModified);
+        }
+    }
+
+    /**
+     * Renders an image into the view cache's tile store with the parameters that serveNewImage would pass to the
+     * OpenURL layer.
+     *
+     * @param aID The identifier of the image's source
+     * @param aLevel The requested level, or null
+     * @param aRegion The requested region
+     * @param aScale The requested scale, or null
+     * @param aRotation The requested rotation
+     * @param aLayers The number of quality layers to decode (a number or "auto"), or null for all of them
+     * @param aName The name to store the rendered image under
+     * @return True if the image was rendered into the tile store; else, false
+     */
+    static boolean renderImage(final String aID, final String aLevel, final String aRegion, final String aScale,
+            final float aRotation, final String aLayers, final String aName) {
+        if (myTileStore == null) {
+            return false;
+        }
+
+        try {
+            if (!OpenURLJP2KService.renderImage(aID, getDecodeParams(aLevel, aRegion, aScale, aRotation, aLayers),
+                    DEFAULT_VIEW_FORMAT, myTileStore, aName)) {
+                return false;
+            }
+        } catch (final Exception details) {
+            if (LOGGER.isWarnEnabled()) {
+                LOGGER.warn("Unable to render {} for {}: {}", aName, aID, details.getMessage());
+            }
+
+            return false;
+        }
+
+        // Tiles rendered by the warmer or the refiner aren't served, so index them here to bring them under the
+        // janitor's size budget and time to live
+        if (myJanitor != null) {
+            try {
+                final TileStore.Stat stat = myTileStore.stat(aID, aName);
+
+                if (stat != null) {
+                    myJanitor.record(aID, aName, stat);
+                }
+            } catch (final IOException details) {
+                if (LOGGER.isWarnEnabled()) {
+                    LOGGER.warn("Unable to index {} for {}: {}", aName, aID, details.getMessage());
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the decode parameters that mirror the parameters serveNewImage would pass to the OpenURL layer.
+     */
+    private static DjatokaDecodeParam getDecodeParams(final String aLevel, final String aRegion, final String aScale,
+            final float aRotation, final String aLayers) {
+        if (aScale == null) {
+            return OpenURLJP2KService.getDecodeParams(aLevel, null, null, (int) aRotation, aLayers);
+        } else {
+            final String scale = aScale.equals("full") ? "1.0" : aScale;
+            return OpenURLJP2KService.getDecodeParams(null, aRegion, scale, (int) aRotation, aLayers);
+        }
+    }
+
+    private void serveHotTile(final HotTileCache.Tile aTile, final String aETag, final SourceValidator.Source aSource,
+            final HttpServletResponse aResponse) throws IOException {
+        final ServletOutputStream outStream = aResponse.getOutputStream();
+
+        aResponse.setHeader("Content-Length", Integer.toString(aTile.getLength()));
+        aResponse.setHeader("Cache-Control", "public, max-age=4838400");
+        setValidators(aETag != null ? aETag : aTile.getETag(), aSource, aTile.getLastModified(), aResponse);
+        aResponse.setContentType(aTile.getContentType());
+
+        try {
+            ResponseUtils.send(aTile.getContent(), outStream);
+        } finally {
+            IOUtils.closeQuietly(outStream);
+        }
+    }
+
+    /**
+     * Returns the in-memory cache of hot tiles, or null if it's disabled or the servlet hasn't been initialized yet.
+     *
+     * @return The hot tile cache
+     */
+    public static HotTileCache getHotTileCache() {
+        return myHotTiles;
+    }
+
+    /**
+     * Gets the janitor that keeps the view cache's tile store within its limits.
+     *
+     * @return The view cache janitor or null if the view cache isn't limited
+     */
+    public static CacheJanitor getCacheJanitor() {
+        return myJanitor;
+    }
+
     private void serveNewImage(final String aID, final String aLevel, final String aRegion, final String aScale,
-            final float aRotation, final HttpServletRequest aRequest, final HttpServletResponse aResponse)
-            throws IOException, ServletException {
+            final float aRotation, final String aLayers, final HttpServletRequest aRequest,
+            final HttpServletResponse aResponse) throws IOException, ServletException {
         final String id = URLEncoder.encode(aID, CHARSET);
         RequestDispatcher dispatcher;
         String[] values;
@@ -446,6 +878,10 @@ public class ImageServlet extends HttpServlet implements Constants {
             url = StringUtils.format(REGION_URL, values);
         }
 
+        if (aLayers != null && !aLayers.isEmpty()) {
+            url = url + "&svc.layers=" + aLayers;
+        }
+
         // Right now we just let the OpenURL interface do the work
         dispatcher = aRequest.getRequestDispatcher(url);
 
@@ -456,43 +892,6 @@ public class ImageServlet extends HttpServlet implements Constants {
         dispatcher.forward(aRequest, aResponse);
     }
 
-    private void cacheNewImage(final HttpServletRequest aRequest, final String aKey, final File aDestFile) {
-        final HttpSession session = aRequest.getSession();
-        final String fileName = (String) session.getAttribute(aKey);
-
-        if (fileName != null) {
-            final String cacheName = (String) session.getAttribute(fileName);
-            final File cachedFile = new File(fileName);
-
-            // This moves the newly created file from the adore-djatoka cache
-            // to the freelib-djatoka cache (which is pure-FS/Pairtree-based)
-            if (cachedFile.exists() && aDestFile != null) {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Renaming cache file from {} to {}", cachedFile, aDestFile);
-                }
-
-                if (!cachedFile.renameTo(aDestFile) && LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Unable to move cache file: {}", cachedFile);
-                } else {
-                    // This is the temp file cache used by the OpenURL layer
-                    if (!OpenURLJP2KService.removeFromTileCache(cacheName) && LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Unable to remove OpenURL cache file link: {}", fileName);
-                    } else {
-                        session.removeAttribute(aKey);
-                        session.removeAttribute(fileName);
-                    }
-                }
-            } else if (LOGGER.isWarnEnabled() && !cachedFile.exists()) {
-                LOGGER.warn("Session had a cache file ({}), but it didn't exist", cachedFile.getAbsoluteFile());
-            } else if (LOGGER.isWarnEnabled()) {
-                LOGGER.warn("Location for destination cache file was null");
-            }
-        } else if (LOGGER.isWarnEnabled()) {
-            LOGGER.warn("Couldn't cache ({} = {}); session lacked new image information", aKey, aDestFile
-                    .getAbsolutePath());
-        }
-    }
-
     private String getID(final String aPath) {
         String path;
 
@@ -0,0 +1,235 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gov.lanl.adore.djatoka.openurl.ReferentManager;
+import gov.lanl.adore.djatoka.openurl.ResolverException;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+/**
+ * Supplies the validators (entity tags and last modified times) for images derived from a source JP2. Validators are
+ * built from the identity of the source JP2 (its path, size and last modified time) so they stay the same no matter
+ * which cache, if any, a derivative image is served from. Source identities are remembered for a short time so that
+ * revalidating a hot tile doesn't need to resolve and stat its JP2 on every request. Derivatives whose source can't be
+ * checked get an entity tag built the same way from the derivative's own size and last modified time.
+ */
+public class SourceValidator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SourceValidator.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int MAX_SOURCES = 10000;
+
+    private final ConcurrentMap<String, Source> mySources = new ConcurrentHashMap<String, Source>();
+
+    private final long myTTL;
+
+    /**
+     * Creates a source validator.
+     *
+     * @param aTTL How long, in milliseconds, a source JP2's identity is remembered before it's checked again
+     */
+    public SourceValidator(final long aTTL) {
+        myTTL = aTTL;
+    }
+
+    /**
+     * Gets the source JP2 of the image with the supplied identifier.
+     *
+     * @param aID An image identifier
+     * @return The image's source or null if the image can't be resolved to a local JP2
+     */
+    public Source getSource(final String aID) {
+        final long now = System.currentTimeMillis();
+        Source source = mySources.get(aID);
+
+        if (source != null && now - source.myCheckTime < myTTL) {
+            return source;
+        }
+
+        try {
+            final File jp2 = getFile(aID);
+
+            if (jp2 == null || !jp2.exists()) {
+                return null;
+            }
+
+            source = new Source(jp2.getAbsolutePath(), jp2.length(), jp2.lastModified(), now);
+
+            // A simple bound; this is just a cache of file system checks
+            if (mySources.size() >= MAX_SOURCES) {
+                mySources.clear();
+            }
+
+            mySources.put(aID, source);
+            return source;
+        } catch (final ResolverException details) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to resolve source for {}: {}", aID, details.getMessage());
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Gets the source JP2 of the image with the supplied identifier, but only if it's already been checked within the
+     * check interval. This never resolves the identifier, so it's cheap enough to call on every request.
+     *
+     * @param aID An image identifier
+     * @return The image's source or null if it isn't known or is due to be checked again
+     */
+    public Source getCachedSource(final String aID) {
+        final Source source = mySources.get(aID);
+
+        if (source != null && System.currentTimeMillis() - source.myCheckTime < myTTL) {
+            return source;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the local JP2 file of the image with the supplied identifier.
+     *
+     * @param aID An image identifier
+     * @return The image's JP2 file or null if the identifier can't be resolved to a local file
+     * @throws ResolverException If there is trouble resolving the identifier
+     */
+    protected File getFile(final String aID) throws ResolverException {
+        if (!ReferentManager.isInit()) {
+            return null;
+        }
+
+        final ImageRecord record = ReferentManager.getImageRecord(aID);
+
+        return record != null && record.getImageFile() != null ? new File(record.getImageFile()) : null;
+    }
+
+    /**
+     * Gets an entity tag for a derivative image whose source can't be checked, from the derivative's own length and
+     * last modified time.
+     *
+     * @param aLength The length of the derivative image in bytes
+     * @param aLastModified The time the derivative image was last modified
+     * @return A quoted entity tag
+     */
+    public static String getETag(final long aLength, final long aLastModified) {
+        return getETag(Long.toString(aLength) + '|' + aLastModified);
+    }
+
+    /**
+     * Returns true if the supplied <code>If-None-Match</code> header value matches the entity tag. As the header calls
+     * for, tags are compared weakly: a <code>W/</code> prefix on either tag is ignored. A <code>*</code> matches any
+     * entity tag.
+     *
+     * @param aHeader The value of an <code>If-None-Match</code> header, or null if there wasn't one
+     * @param aETag A quoted entity tag, or null if the requested image doesn't have one
+     * @return True if the header matches the entity tag; else, false
+     */
+    public static boolean matches(final String aHeader, final String aETag) {
+        if (aHeader == null || aETag == null) {
+            return false;
+        }
+
+        final String etag = stripWeakPrefix(aETag.trim());
+        int index = 0;
+
+        while (index < aHeader.length()) {
+            final char c = aHeader.charAt(index);
+
+            if (c == ',' || Character.isWhitespace(c)) {
+                index++;
+            } else if (c == '*') {
+                return true;
+            } else {
+                // Entity tags are quoted and may contain commas, so find the closing quote rather than splitting
+                final int start = aHeader.startsWith("W/", index) ? index + 2 : index;
+                final int end = aHeader.indexOf('"', start + 1);
+
+                if (start >= aHeader.length() || aHeader.charAt(start) != '"' || end == -1) {
+                    return false; // Not a list of entity tags
+                }
+
+                if (aHeader.regionMatches(start, etag, 0, etag.length()) && end + 1 - start == etag.length()) {
+                    return true;
+                }
+
+                index = end + 1;
+            }
+        }
+
+        return false;
+    }
+
+    private static String stripWeakPrefix(final String aETag) {
+        return aETag.startsWith("W/") ? aETag.substring(2) : aETag;
+    }
+
+    private static String getETag(final String aIdentity) {
+        final StringBuilder etag = new StringBuilder("\"");
+
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(aIdentity.getBytes("UTF-8"));
+
+            for (final byte b : digest) {
+                etag.append(HEX[b >> 4 & 0xf]).append(HEX[b & 0xf]);
+            }
+        } catch (final NoSuchAlgorithmException | UnsupportedEncodingException details) {
+            // Never happens, all JVMs are required to support SHA-1 and UTF-8
+            throw new RuntimeException(details);
+        }
+
+        return etag.append('"').toString();
+    }
+
+    /**
+     * The identity of a source JP2.
+     */
+    public static class Source {
+
+        private final String myPath;
+
+        private final long myLength;
+
+        private final long myLastModified;
+
+        private final long myCheckTime;
+
+        private Source(final String aPath, final long aLength, final long aLastModified, final long aCheckTime) {
+            myPath = aPath;
+            myLength = aLength;
+            myLastModified = aLastModified;
+            myCheckTime = aCheckTime;
+        }
+
+        /**
+         * Gets the last modified time of the source JP2.
+         *
+         * @return The last modified time in milliseconds
+         */
+        public long getLastModified() {
+            return myLastModified;
+        }
+
+        /**
+         * Gets a strong entity tag for a variant (e.g., a particular region, size and rotation) of this source.
+         *
+         * @param aVariant A string that identifies the variant
+         * @return A quoted entity tag
+         */
+        public String getETag(final String aVariant) {
+            return SourceValidator.getETag(myPath + '|' + myLength + '|' + myLastModified + '|' + aVariant);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+
+package info.freelibrary.djatoka.view;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders full quality tiles in the background for progressive requests, which are answered right away with a
+ * preview of the tile. Each tile is only queued once at a time, and the queue is bounded so a burst of progressive
+ * requests can't build up an unbounded backlog; tiles that don't fit are simply rendered by the next request for
+ * them.
+ */
+public class TileRefiner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileRefiner.class);
+
+    private final Set<String> myPending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ThreadPoolExecutor myRenderer;
+
+    /**
+     * Creates a tile refiner.
+     *
+     * @param aThreads The number of threads to render full quality tiles with
+     * @param aQueueSize The number of tiles that may wait to be rendered
+     */
+    public TileRefiner(final int aThreads, final int aQueueSize) {
+        myRenderer = new ThreadPoolExecutor(aThreads, aThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(aQueueSize), new ThreadFactory() {
+
+                    private final AtomicInteger myCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable aRunnable) {
+                        final Thread thread = new Thread(aRunnable, "tile-refiner-" + myCount.incrementAndGet());
+
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queues the rendering of a full quality tile, unless it's already queued or the queue is full.
+     *
+     * @param aKey A key that identifies the tile
+     * @param aRender Renders the tile into the view cache
+     * @return True if the tile is queued to be rendered; else, false
+     */
+    public boolean refine(final String aKey, final Runnable aRender) {
+        if (!myPending.add(aKey)) {
+            return true;
+        }
+
+        try {
+            myRenderer.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        aRender.run();
+                    } catch (final Throwable details) {
+                        LOGGER.error("Unable to refine {}: {}", aKey, details.getMessage(), details);
+                    } finally {
+                        myPending.remove(aKey);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException details) {
+            myPending.remove(aKey);
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Refinement queue is full; not queueing {}", aKey);
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the number of tiles that are queued or being rendered.
+     *
+     * @return The number of pending tiles
+     */
+    public int getPendingCount() {
+        return myPending.size();
+    }
+
+    /**
+     * Stops rendering tiles; queued tiles are dropped.
+     */
+    public void stop() {
+        myRenderer.shutdownNow();
+        myPending.clear();
+    }
+}
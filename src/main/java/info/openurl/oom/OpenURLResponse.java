@@ -144,6 +144,21 @@ public class OpenURLResponse {
         this.sessionMap = sessionMap;
     }
 
+    /**
+     * @param status
+     * @param contentType
+     * @param is
+     * @param sessionMap
+     * @param headerMap
+     */
+    public OpenURLResponse(int status, String contentType, InputStream is, Map sessionMap, Map headerMap) {
+        this.status = status;
+        this.contentType = contentType;
+        this.is = is;
+        this.sessionMap = sessionMap;
+        this.headerMap = headerMap;
+    }
+
     /**
      * @param status
      * @param contentType
@@ -0,0 +1,58 @@
+package gov.lanl.adore.djatoka.io.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.plugin.TextWatermark;
+import gov.lanl.adore.djatoka.plugin.TransformException;
+
+public class PNMReaderTest {
+
+    /**
+     * Tests that a graymap is read as an RGB image, so a colored watermark drawn on it keeps its color.
+     */
+    @Test
+    public void testColorTransformOnGraymap() throws FormatIOException, TransformException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] header = "P5\n200 100\n255\n".getBytes();
+        final TextWatermark watermark = new TextWatermark();
+        final Properties props = new Properties();
+        boolean isRed = false;
+
+        out.write(header, 0, header.length);
+        out.write(new byte[200 * 100], 0, 200 * 100);
+
+        props.setProperty(TextWatermark.PROP_WATERMARK_COPYRIGHT, "WWWWWWWW");
+        props.setProperty(TextWatermark.PROP_WATERMARK_ALLOWED, "example.org");
+        props.setProperty(TextWatermark.PROP_WATERMARK_FONTSIZE, "40");
+        props.setProperty(TextWatermark.PROP_WATERMARK_FONTCOLOR, "255,0,0,255");
+        watermark.setup(props);
+        watermark.setInstanceProps(new HashMap<String, String>());
+
+        final BufferedImage image = new PNMReader().open(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+
+        final BufferedImage marked = watermark.run(image);
+
+        for (int y = 0; y < marked.getHeight() && !isRed; y++) {
+            for (int x = 0; x < marked.getWidth() && !isRed; x++) {
+                final int rgb = marked.getRGB(x, y);
+
+                // The watermark is drawn half opaque over black
+                isRed = (rgb >> 16 & 0xff) > 64 && (rgb & 0xffff) == 0;
+            }
+        }
+
+        assertTrue(isRed);
+    }
+}
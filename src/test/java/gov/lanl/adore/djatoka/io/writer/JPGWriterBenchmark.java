@@ -0,0 +1,107 @@
+
+package gov.lanl.adore.djatoka.io.writer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.io.IWriter;
+
+/**
+ * Compares writing tiles and larger regions as JPEGs with {@link JPGWriter} against {@link TurboJPGWriter}. Run it
+ * from the test classpath with <code>java gov.lanl.adore.djatoka.io.writer.JPGWriterBenchmark</code>; to measure
+ * libjpeg-turbo, put its <code>turbojpeg.jar</code> on the classpath ahead of the test classes, which have a stub
+ * <code>TJCompressor</code>, and its native library on <code>java.library.path</code>, or else the TurboJPGWriter
+ * numbers are JPGWriter's.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JPGWriterBenchmark {
+
+    @Param({ "256-rgb", "256-gray", "1024-rgb" })
+    private String myImage;
+
+    private BufferedImage myBufferedImage;
+
+    private IWriter myImageIO;
+
+    private IWriter myTurbo;
+
+    /**
+     * Creates a noisy gradient of the benchmarked size and type, which compresses like a photograph.
+     */
+    @Setup
+    public void setup() {
+        final String[] image = myImage.split("-");
+        final int size = Integer.parseInt(image[0]);
+        final Random random = new Random(size);
+
+        myBufferedImage = new BufferedImage(size, size, "gray".equals(image[1]) ? BufferedImage.TYPE_BYTE_GRAY
+                : BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                final int noise = random.nextInt(24);
+
+                myBufferedImage.setRGB(x, y, (x + noise & 0xff) << 16 | (y + noise & 0xff) << 8 | (x ^ y) & 0xff);
+            }
+        }
+
+        myImageIO = new JPGWriter();
+        myTurbo = new TurboJPGWriter();
+    }
+
+    /**
+     * Writes the image with ImageIO.
+     */
+    @Benchmark
+    public int imageIO() throws FormatIOException {
+        return write(myImageIO);
+    }
+
+    /**
+     * Writes the image with libjpeg-turbo, if it's available.
+     */
+    @Benchmark
+    public int turbo() throws FormatIOException {
+        return write(myTurbo);
+    }
+
+    private int write(final IWriter aWriter) throws FormatIOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+        aWriter.write(myBufferedImage, out);
+        return out.size();
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param aArgs Unused
+     * @throws RunnerException If the benchmark fails
+     */
+    public static void main(final String[] aArgs) throws RunnerException {
+        new Runner(new OptionsBuilder().include(JPGWriterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
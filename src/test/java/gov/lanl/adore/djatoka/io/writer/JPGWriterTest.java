@@ -0,0 +1,62 @@
+
+package gov.lanl.adore.djatoka.io.writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+
+public class JPGWriterTest {
+
+    /**
+     * Tests that reused writers give the same bytes each time and pick up each instance's quality level.
+     */
+    @Test
+    public void testWrite() throws FormatIOException, IOException {
+        final BufferedImage image = new BufferedImage(120, 80, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, x * 2 << 16 | y * 3 << 8 | (x ^ y) & 0xff);
+            }
+        }
+
+        final byte[] first = write(image, null);
+        final byte[] second = write(image, null);
+        final byte[] low = write(image, "20");
+
+        assertArrayEquals(first, second);
+        assertTrue(low.length < first.length);
+
+        final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(low));
+
+        assertEquals(120, decoded.getWidth());
+        assertEquals(80, decoded.getHeight());
+    }
+
+    private static byte[] write(final BufferedImage aImage, final String aQuality) throws FormatIOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JPGWriter writer = new JPGWriter();
+
+        if (aQuality != null) {
+            final Properties props = new Properties();
+
+            props.setProperty("JPGWriter.quality_level", aQuality);
+            writer.setWriterProperties(props);
+        }
+
+        writer.write(aImage, out);
+        return out.toByteArray();
+    }
+}
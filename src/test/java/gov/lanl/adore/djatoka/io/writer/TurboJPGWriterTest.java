@@ -0,0 +1,105 @@
+
+package gov.lanl.adore.djatoka.io.writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import org.libjpegturbo.turbojpeg.TJCompressor;
+
+import gov.lanl.adore.djatoka.io.FormatFactory;
+import gov.lanl.adore.djatoka.io.FormatIOException;
+
+public class TurboJPGWriterTest {
+
+    /**
+     * Tests that a JPEG writer configured in the properties replaces the default one for just its format.
+     */
+    @Test
+    public void testFormatMap() {
+        final Properties props = new Properties();
+
+        props.setProperty("jpeg_writer", TurboJPGWriter.class.getName());
+
+        final FormatFactory factory = new FormatFactory(FormatFactory.getFormatMap(props));
+
+        assertTrue(factory.getWriter("image/jpeg") instanceof TurboJPGWriter);
+        assertTrue(factory.getWriter("image/jpg") instanceof JPGWriter);
+        assertTrue(factory.getWriter("image/png") instanceof PNGWriter);
+    }
+
+    /**
+     * Tests that images are written as JPEGs, and as JPGWriter writes them when libjpeg-turbo isn't available. The
+     * stub compressor in the tests encodes with JPGWriter, so the bytes match either way.
+     */
+    @Test
+    public void testWrite() throws FormatIOException, IOException {
+        final BufferedImage image = new BufferedImage(120, 80, BufferedImage.TYPE_INT_RGB);
+        final ByteArrayOutputStream turbo = new ByteArrayOutputStream();
+        final ByteArrayOutputStream imageIO = new ByteArrayOutputStream();
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, x * 2 << 16 | y * 3 << 8 | (x ^ y) & 0xff);
+            }
+        }
+
+        new TurboJPGWriter().write(image, turbo);
+        new JPGWriter().write(image, imageIO);
+
+        final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(turbo.toByteArray()));
+
+        assertEquals(120, decoded.getWidth());
+        assertEquals(80, decoded.getHeight());
+
+        assertArrayEquals(imageIO.toByteArray(), turbo.toByteArray());
+    }
+
+    /**
+     * Tests that the compressor is given the whole image, the default quality and 4:2:0 subsampling for color, and
+     * that it's closed afterwards.
+     */
+    @Test
+    public void testCompressRGB() throws FormatIOException {
+        final BufferedImage image = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+
+        assertTrue(TurboJPGWriter.isAvailable());
+
+        new TurboJPGWriter().write(image, new ByteArrayOutputStream());
+
+        final TJCompressor compressor = TJCompressor.getLast();
+
+        assertSame(image, compressor.getSourceImage());
+        assertArrayEquals(new int[] { 0, 0, 30, 20 }, compressor.getSourceBounds());
+        assertEquals(2, compressor.getSubsamp());
+        assertEquals(90, compressor.getJPEGQuality());
+        assertTrue(compressor.isClosed());
+    }
+
+    /**
+     * Tests that gray images are compressed as gray and that the configured quality is used.
+     */
+    @Test
+    public void testCompressGray() throws FormatIOException {
+        final BufferedImage image = new BufferedImage(30, 20, BufferedImage.TYPE_BYTE_GRAY);
+        final TurboJPGWriter writer = new TurboJPGWriter();
+        final Properties props = new Properties();
+
+        props.setProperty("JPGWriter.quality_level", "75");
+        writer.setWriterProperties(props);
+        writer.write(image, new ByteArrayOutputStream());
+
+        assertEquals(3, TJCompressor.getLast().getSubsamp());
+        assertEquals(75, TJCompressor.getLast().getJPEGQuality());
+    }
+}
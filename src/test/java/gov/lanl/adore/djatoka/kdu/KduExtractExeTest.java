@@ -0,0 +1,139 @@
+package gov.lanl.adore.djatoka.kdu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.util.ImageProcessingUtils;
+import gov.lanl.adore.djatoka.util.ImageRecord;
+
+public class KduExtractExeTest {
+
+    private static final String JP2 = "src/test/resources/images/iiif-test/67352ccc-d1b0-11e1-89ae-279075081939.jp2";
+
+    /**
+     * Tests that the stripe unit is a tile when tiles divide evenly at the reduced resolution, or else two
+     * code-blocks' worth of rows, and that it's always a whole number of rows at each reduce level.
+     */
+    @Test
+    public void testGetStripeUnit() {
+        final ImageRecord tiled = getRecord(4000, 500, 32);
+        final ImageRecord untiled = getRecord(4000, 0, 0);
+
+        assertEquals(500, KduExtractExe.getStripeUnit(tiled, 0));
+        assertEquals(500, KduExtractExe.getStripeUnit(tiled, 2));
+        assertEquals(64 << 3, KduExtractExe.getStripeUnit(tiled, 3));
+        assertEquals(128, KduExtractExe.getStripeUnit(untiled, 0));
+        assertEquals(128 << 4, KduExtractExe.getStripeUnit(untiled, 4));
+
+        for (int reduce = 0; reduce <= 5; reduce++) {
+            assertEquals(0, KduExtractExe.getStripeUnit(tiled, reduce) % (1 << reduce));
+            assertEquals(0, KduExtractExe.getStripeUnit(untiled, reduce) % (1 << reduce));
+        }
+    }
+
+    /**
+     * Tests that a region is split on stripe units, with partial first and last stripes where the region doesn't
+     * start or end on one.
+     */
+    @Test
+    public void testGetStripes() {
+        final KduExtractExe extractor = new KduExtractExe(4, 0);
+        final ImageRecord record = getRecord(1000, 0, 64);
+
+        assertArrayEquals(new int[] { 0, 256, 512, 768, 1000 }, extractor.getStripes(record, new ArrayList<Double>(),
+                getParams(0)));
+        assertArrayEquals(new int[] { 100, 128, 256, 384, 600 }, extractor.getStripes(record, new ArrayList<Double>(
+                Arrays.asList(0.1, 0.0, 0.5, 1.0)), getParams(0)));
+
+        // At a reduce level, breaks fall on the level's larger units
+        assertArrayEquals(new int[] { 0, 512, 1000 }, extractor.getStripes(record, new ArrayList<Double>(),
+                getParams(2)));
+    }
+
+    /**
+     * Tests that a region with fewer decoded pixels than the striping minimum isn't split.
+     */
+    @Test
+    public void testGetStripesSmallRegion() {
+        final KduExtractExe extractor = new KduExtractExe(4, 300000);
+        final ImageRecord record = getRecord(1000, 0, 64);
+
+        assertEquals(5, extractor.getStripes(record, new ArrayList<Double>(), getParams(0)).length);
+        assertNull(extractor.getStripes(record, new ArrayList<Double>(), getParams(1)));
+        assertNull(extractor.getStripes(record, new ArrayList<Double>(Arrays.asList(0.0, 0.0, 0.5, 0.5)),
+                getParams(0)));
+    }
+
+    /**
+     * Tests that a region decoded in stripes is stitched back together in order, matching a single decode of it.
+     */
+    @Test
+    public void testProcessStripes() throws Exception {
+        assumeTrue(new File(System.getProperty("kakadu.home"), KduExtractExe.KDU_EXPAND_EXE).exists());
+
+        final BufferedImage expected = new KduExtractExe().process(JP2, getParams(0));
+        final BufferedImage image = new KduExtractExe(4, 0).process(JP2, getParams(0));
+
+        assertPixelsEqual(expected, image);
+    }
+
+    /**
+     * Tests that a region decoded in stripes is rotated once, whether it's resampled to an arbitrary angle or turned
+     * by a right angle.
+     */
+    @Test
+    public void testProcessStripesRotated() throws Exception {
+        assumeTrue(new File(System.getProperty("kakadu.home"), KduExtractExe.KDU_EXPAND_EXE).exists());
+
+        final BufferedImage image = new KduExtractExe().process(JP2, getParams(0));
+        final DjatokaDecodeParam angle = getParams(0);
+        final DjatokaDecodeParam rightAngle = getParams(0);
+
+        angle.setRotationDegree(30);
+        rightAngle.setRotationDegree(90);
+
+        assertPixelsEqual(new KduExtractExe().process(JP2, angle), new KduExtractExe(4, 0).process(JP2, angle));
+
+        // kdu_expand turns a whole region as it decodes it, which can round differently, so compare with the image
+        assertPixelsEqual(ImageProcessingUtils.rotate(image, 90), new KduExtractExe(4, 0).process(JP2, rightAngle));
+    }
+
+    private static void assertPixelsEqual(final BufferedImage aExpected, final BufferedImage aImage) {
+        assertEquals(aExpected.getWidth(), aImage.getWidth());
+        assertEquals(aExpected.getHeight(), aImage.getHeight());
+
+        for (int y = 0; y < aExpected.getHeight(); y++) {
+            for (int x = 0; x < aExpected.getWidth(); x++) {
+                assertEquals(aExpected.getRGB(x, y), aImage.getRGB(x, y));
+            }
+        }
+    }
+
+    private static ImageRecord getRecord(final int aSize, final int aTileHeight, final int aCodeBlockHeight) {
+        final ImageRecord record = new ImageRecord();
+
+        record.setWidth(aSize);
+        record.setHeight(aSize);
+        record.setTileHeight(aTileHeight);
+        record.setCodeBlockHeight(aCodeBlockHeight);
+
+        return record;
+    }
+
+    private static DjatokaDecodeParam getParams(final int aReduce) {
+        final DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        params.setLevelReductionFactor(aReduce);
+        return params;
+    }
+}
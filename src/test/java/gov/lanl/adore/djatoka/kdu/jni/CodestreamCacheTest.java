@@ -0,0 +1,147 @@
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the cache of opened codestreams. These tests need the Kakadu JNI library on the
+ * <code>java.library.path</code> and are skipped without it.
+ */
+public class CodestreamCacheTest {
+
+    @Before
+    public void checkLibrary() {
+        assumeTrue(KduExtractPooledJNI.isAvailable());
+    }
+
+    /**
+     * Tests that a released handle is leased again for the same file and that concurrent leases get their own
+     * handles.
+     */
+    @Test
+    public void testLeaseAndRelease() throws Exception {
+        final CodestreamCache cache = new CodestreamCache(8, Long.MAX_VALUE);
+        final CodestreamCache.Handle first = cache.acquire(KduExtractPooledJNITest.JP2);
+        final CodestreamCache.Handle second = cache.acquire(KduExtractPooledJNITest.JP2);
+
+        assertNotSame(first, second);
+        assertEquals(1000, first.getWidth());
+        assertEquals(2, cache.getMissCount());
+
+        cache.release(first, false);
+        cache.release(second, false);
+
+        assertEquals(2, cache.size());
+        assertSame(second, cache.acquire(KduExtractPooledJNITest.JP2));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Tests that a handle can only be released once per lease.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseTwice() throws Exception {
+        final CodestreamCache cache = new CodestreamCache(8, Long.MAX_VALUE);
+        final CodestreamCache.Handle handle = cache.acquire(KduExtractPooledJNITest.JP2);
+
+        cache.release(handle, false);
+        cache.release(handle, false);
+    }
+
+    /**
+     * Tests that discarded handles, and handles whose file has changed, aren't reused.
+     */
+    @Test
+    public void testDiscard() throws Exception {
+        final File jp2 = copy(KduExtractPooledJNITest.JP2);
+        final CodestreamCache cache = new CodestreamCache(8, Long.MAX_VALUE);
+
+        cache.release(cache.acquire(jp2.getPath()), true);
+        assertEquals(0, cache.size());
+
+        cache.release(cache.acquire(jp2.getPath()), false);
+        assertEquals(1, cache.size());
+        assertTrue(jp2.setLastModified(jp2.lastModified() - 10000));
+
+        cache.release(cache.acquire(jp2.getPath()), false);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Tests that idle handles are evicted least recently used first when there are too many of them.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        final File first = copy(KduExtractPooledJNITest.JP2);
+        final File second = copy(KduExtractPooledJNITest.JP2);
+        final CodestreamCache cache = new CodestreamCache(1, Long.MAX_VALUE);
+        final CodestreamCache.Handle secondHandle = cache.acquire(second.getPath());
+
+        cache.release(cache.acquire(first.getPath()), false);
+        cache.release(secondHandle, false);
+
+        assertEquals(1, cache.size());
+        assertSame(secondHandle, cache.acquire(second.getPath()));
+        assertEquals(0, cache.size());
+
+        // The first file's handle was evicted
+        cache.acquire(first.getPath());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    /**
+     * Tests that the memory held by leased handles counts against the limit, so idle handles are evicted to make room
+     * for them, and that closing the cache destroys idle handles.
+     */
+    @Test
+    public void testMemoryBound() throws Exception {
+        final File first = copy(KduExtractPooledJNITest.JP2);
+        final File second = copy(KduExtractPooledJNITest.JP2);
+        final KduExtractPooledJNI extractor = new KduExtractPooledJNI(1, 8, Long.MAX_VALUE);
+        final CodestreamCache cache = extractor.getCodestreamCache();
+
+        // A codestream only holds memory once it's been decoded from
+        extractor.process(first.getPath(), KduExtractPooledJNITest.getParams("{0,0,256,256}"));
+        extractor.process(second.getPath(), KduExtractPooledJNITest.getParams("{0,0,256,256}"));
+
+        final long memory = cache.getMemory();
+        final CodestreamCache.Handle handle = cache.acquire(second.getPath());
+
+        assertEquals(1, cache.size());
+        assertTrue(cache.getMemory() > 0 && cache.getMemory() < memory);
+
+        // Only the leased handle fits within the limit
+        cache.trim(8, memory - cache.getMemory());
+        assertEquals(0, cache.size());
+
+        cache.release(handle, false);
+        assertEquals(1, cache.size());
+
+        cache.close();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMemory());
+    }
+
+    private static File copy(final String aPath) throws IOException {
+        final File copy = File.createTempFile("codestream-", ".jp2");
+
+        copy.deleteOnExit();
+        Files.copy(new File(aPath).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        return copy;
+    }
+}
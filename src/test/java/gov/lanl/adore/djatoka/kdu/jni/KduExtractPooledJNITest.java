@@ -0,0 +1,135 @@
+package gov.lanl.adore.djatoka.kdu.jni;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+import gov.lanl.adore.djatoka.kdu.KduExtractExe;
+
+/**
+ * Tests the in-process extractor. These tests need the Kakadu JNI library on the <code>java.library.path</code> and
+ * are skipped without it.
+ */
+public class KduExtractPooledJNITest {
+
+    static final String JP2 = "src/test/resources/images/iiif-test/67352ccc-d1b0-11e1-89ae-279075081939.jp2";
+
+    private static final String GRAY_JP2 = "src/test/resources/images/gray.jp2";
+
+    @Before
+    public void checkLibrary() {
+        assumeTrue(KduExtractPooledJNI.isAvailable());
+    }
+
+    /**
+     * Tests that a region decoded in-process matches the same region extracted with <code>kdu_expand</code>.
+     */
+    @Test
+    public void testProcess() throws Exception {
+        assumeTrue(new File(System.getProperty("kakadu.home"), KduExtractExe.KDU_EXPAND_EXE).exists());
+
+        final BufferedImage image = new KduExtractPooledJNI(1).process(JP2, getParams("{100,200,256,128}"));
+        final BufferedImage expected = new KduExtractExe().process(JP2, getParams("{100,200,256,128}"));
+
+        assertEquals(128, image.getWidth());
+        assertEquals(256, image.getHeight());
+        assertEquals(expected.getWidth(), image.getWidth());
+        assertEquals(expected.getHeight(), image.getHeight());
+
+        for (int y = 0; y < image.getHeight(); y += 5) {
+            for (int x = 0; x < image.getWidth(); x += 5) {
+                assertEquals(expected.getRGB(x, y) & 0xffffff, image.getRGB(x, y) & 0xffffff);
+            }
+        }
+    }
+
+    /**
+     * Tests that decodes of the same image reuse its opened codestream and that closing the extractor closes it.
+     */
+    @Test
+    public void testCodestreamReuse() throws Exception {
+        final KduExtractPooledJNI extractor = new KduExtractPooledJNI(1);
+        final CodestreamCache cache = extractor.getCodestreamCache();
+
+        extractor.process(JP2, getParams("{0,0,256,256}"));
+        extractor.process(JP2, getParams("{256,256,256,256}"));
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+
+        extractor.close();
+
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that a region decoded straight into its image has the same pixels as when it's decoded in increments.
+     */
+    @Test
+    public void testDirectAndIncrements() throws Exception {
+        final KduExtractPooledJNI direct = new KduExtractPooledJNI(1, 1, Long.MAX_VALUE, Integer.MAX_VALUE);
+        final KduExtractPooledJNI increments = new KduExtractPooledJNI(1, 1, Long.MAX_VALUE, 0);
+        final BufferedImage expected = direct.process(JP2, getParams("{100,200,256,128}"));
+        final BufferedImage image = increments.process(JP2, getParams("{100,200,256,128}"));
+
+        assertEquals(expected.getType(), image.getType());
+        assertEquals(expected.getWidth(), image.getWidth());
+        assertEquals(expected.getHeight(), image.getHeight());
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), image.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Tests that a region that's partly outside the image is clipped to it.
+     */
+    @Test
+    public void testProcessEdge() throws Exception {
+        final BufferedImage image = new KduExtractPooledJNI(1).process(JP2, getParams("{900,900,256,256}"));
+
+        assertEquals(100, image.getWidth());
+        assertEquals(100, image.getHeight());
+        assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+    }
+
+    /**
+     * Tests that a graymap is returned as an RGB image, decoded directly or in increments, with its gray levels in
+     * each color. The test image is a lossless 96x64 ramp whose pixels are <code>(3x + 5y) % 256</code>.
+     */
+    @Test
+    public void testProcessGray() throws Exception {
+        final KduExtractPooledJNI direct = new KduExtractPooledJNI(1, 1, Long.MAX_VALUE, Integer.MAX_VALUE);
+        final KduExtractPooledJNI increments = new KduExtractPooledJNI(1, 1, Long.MAX_VALUE, 0);
+
+        for (final KduExtractPooledJNI extractor : new KduExtractPooledJNI[] { direct, increments }) {
+            final BufferedImage image = extractor.process(GRAY_JP2, new DjatokaDecodeParam());
+
+            assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+            assertEquals(96, image.getWidth());
+            assertEquals(64, image.getHeight());
+
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    assertEquals(((3 * x + 5 * y) & 0xff) * 0x010101, image.getRGB(x, y) & 0xffffff);
+                }
+            }
+        }
+    }
+
+    static DjatokaDecodeParam getParams(final String aRegion) {
+        final DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        params.setRegion(aRegion);
+        return params;
+    }
+}
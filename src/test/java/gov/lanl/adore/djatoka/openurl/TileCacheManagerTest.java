@@ -0,0 +1,104 @@
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.freelibrary.djatoka.cache.TileFixtures;
+
+public class TileCacheManagerTest {
+
+    @Rule
+    public final TemporaryFolder myFolder = new TemporaryFolder();
+
+    /**
+     * Tests that the least recently used entry is the one evicted when the cache is full.
+     */
+    @Test
+    public void testEntryBound() {
+        final TileCacheManager<String, Integer> cache = new TileCacheManager<String, Integer>(3);
+
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        cache.get("a");
+        cache.put("d", 4);
+
+        assertEquals(3, cache.size());
+        assertTrue(cache.containsKey("a"));
+        assertFalse(cache.containsKey("b"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    /**
+     * Tests that an entry that's been requested again survives a scan of entries that are only requested once.
+     */
+    @Test
+    public void testScanResistance() {
+        final TileCacheManager<String, Integer> cache = new TileCacheManager<String, Integer>(4);
+
+        cache.put("hot", 0);
+        cache.get("hot");
+
+        for (int index = 1; index <= 10; index++) {
+            cache.put("scan" + index, index);
+        }
+
+        assertEquals(4, cache.size());
+        assertTrue(cache.containsKey("hot"));
+        assertTrue(cache.containsKey("scan10"));
+        assertFalse(cache.containsKey("scan1"));
+    }
+
+    /**
+     * Tests that the cache stays within its byte budget and deletes the files it evicts.
+     */
+    @Test
+    public void testByteBound() throws IOException {
+        final TileCacheManager<String, String> cache = new TileCacheManager<String, String>(8, 250);
+        final File first = TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 0);
+        final File second = TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 0);
+        final File third = TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 0);
+
+        cache.put("first", first.getAbsolutePath());
+        cache.put("second", second.getAbsolutePath());
+        cache.put("third", third.getAbsolutePath());
+
+        assertEquals(2, cache.size());
+        assertEquals(200, cache.getWeightedSize());
+        assertNull(cache.get("first"));
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+
+        cache.remove("second");
+        cache.remove("third");
+
+        assertFalse(second.exists());
+        assertFalse(third.exists());
+    }
+
+    /**
+     * Tests the cache's hit and miss counters.
+     */
+    @Test
+    public void testStatistics() {
+        final TileCacheManager<String, String> cache = new TileCacheManager<String, String>(1000);
+
+        cache.put("key", "value");
+        cache.get("key");
+        cache.get("key");
+        cache.get("missing");
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+}
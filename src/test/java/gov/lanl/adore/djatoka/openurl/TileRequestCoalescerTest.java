@@ -0,0 +1,103 @@
+package gov.lanl.adore.djatoka.openurl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TileRequestCoalescerTest {
+
+    /**
+     * Tests that concurrent requests for the same key share a single execution of the task.
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        final CountDownLatch joined = new CountDownLatch(3);
+        final TileRequestCoalescer<String, Integer> coalescer = new TileRequestCoalescer<String, Integer>() {
+
+            @Override
+            protected void joined(final String aKey) {
+                joined.countDown();
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+        try {
+            for (int index = 0; index < 4; index++) {
+                results.add(executor.submit(new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() throws Exception {
+                        return coalescer.execute("tile", new Callable<Integer>() {
+
+                            @Override
+                            public Integer call() throws Exception {
+                                release.await(5, TimeUnit.SECONDS);
+                                return runs.incrementAndGet();
+                            }
+                        });
+                    }
+                }));
+            }
+
+            // The leader can't finish until it's released, so the other three requests must all join it
+            assertTrue(joined.await(5, TimeUnit.SECONDS));
+            assertEquals(3, coalescer.getCoalescedCount());
+
+            release.countDown();
+
+            for (final Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(1), result.get());
+            }
+
+            assertEquals(1, runs.get());
+            assertEquals(0, coalescer.getInFlightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that a failed task's exception is passed to the caller and doesn't stick around for later requests.
+     */
+    @Test
+    public void testFailure() throws Exception {
+        final TileRequestCoalescer<String, String> coalescer = new TileRequestCoalescer<String, String>();
+
+        try {
+            coalescer.execute("tile", new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    throw new IllegalStateException("decode failed");
+                }
+            });
+
+            fail("Expected the task's exception to be thrown");
+        } catch (final IllegalStateException details) {
+            assertEquals("decode failed", details.getMessage());
+        }
+
+        assertEquals("ok", coalescer.execute("tile", new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+                return "ok";
+            }
+        }));
+    }
+}
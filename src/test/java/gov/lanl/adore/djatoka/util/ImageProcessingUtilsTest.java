@@ -0,0 +1,66 @@
+package gov.lanl.adore.djatoka.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import gov.lanl.adore.djatoka.DjatokaDecodeParam;
+
+public class ImageProcessingUtilsTest {
+
+    /**
+     * Tests that a scaled request is reduced to the smallest resolution that's at least the requested size.
+     */
+    @Test
+    public void testSetScalingReduction() {
+        final DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        params.setScalingDimensions(new int[] { 100, 0 });
+        ImageProcessingUtils.setScalingReduction(params, 1000, 800, 5);
+        assertEquals(3, params.getLevelReductionFactor());
+
+        // Reduction past the image's DWT levels isn't possible
+        params.setLevelReductionFactor(0);
+        ImageProcessingUtils.setScalingReduction(params, 1000, 800, 2);
+        assertEquals(2, params.getLevelReductionFactor());
+
+        // The long side is constrained
+        params.setLevelReductionFactor(0);
+        params.setScalingDimensions(new int[] { -1, 260 });
+        ImageProcessingUtils.setScalingReduction(params, 800, 1000, 5);
+        assertEquals(1, params.getLevelReductionFactor());
+    }
+
+    /**
+     * Tests that a scaling factor is converted to dimensions of the requested level's region.
+     */
+    @Test
+    public void testSetScalingReductionFactor() {
+        final DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        params.setLevelReductionFactor(1);
+        params.setScalingFactor(0.2);
+        ImageProcessingUtils.setScalingReduction(params, 500, 400, 5);
+
+        assertEquals(1.0, params.getScalingFactor(), 0.0);
+        assertArrayEquals(new int[] { 100, 80 }, params.getScalingDimensions());
+        assertEquals(3, params.getLevelReductionFactor());
+    }
+
+    /**
+     * Tests that a scaling factor is converted to the same dimensions the factor scales the image to.
+     */
+    @Test
+    public void testSetScalingReductionRounding() {
+        final DjatokaDecodeParam factor = new DjatokaDecodeParam();
+        final DjatokaDecodeParam params = new DjatokaDecodeParam();
+
+        factor.setScalingFactor(0.3);
+        params.setScalingFactor(0.3);
+        ImageProcessingUtils.setScalingReduction(params, 1001, 801, 5);
+
+        assertArrayEquals(new int[] { 301, 241 }, params.getScalingDimensions());
+        assertArrayEquals(ImageProcessingUtils.getScaledSize(1001, 801, factor), params.getScalingDimensions());
+    }
+}
@@ -0,0 +1,136 @@
+package gov.lanl.adore.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ImageRotatorTest {
+
+    /**
+     * Tests that right angle rotations of packed RGB, gray and other images move every pixel where a clockwise
+     * rotation puts it.
+     */
+    @Test
+    public void testRotateRightAngles() {
+        final int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR };
+
+        for (final int type : types) {
+            final BufferedImage image = getImage(130, 70, type);
+
+            for (final int degrees : new int[] { 90, 180, 270 }) {
+                final BufferedImage rotated = ImageRotator.rotate(image, degrees);
+                final boolean swap = degrees != 180;
+
+                assertEquals(swap ? 70 : 130, rotated.getWidth());
+                assertEquals(swap ? 130 : 70, rotated.getHeight());
+
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        final int expected = image.getRaster().getSample(x, y, 0);
+
+                        if (degrees == 90) {
+                            assertEquals(expected, rotated.getRaster().getSample(69 - y, x, 0));
+                        } else if (degrees == 180) {
+                            assertEquals(expected, rotated.getRaster().getSample(129 - x, 69 - y, 0));
+                        } else {
+                            assertEquals(expected, rotated.getRaster().getSample(y, 129 - x, 0));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that rotations are normalized to less than a full turn.
+     */
+    @Test
+    public void testRotateFullTurns() {
+        final BufferedImage image = getImage(20, 10, BufferedImage.TYPE_INT_RGB);
+
+        assertSame(image, ImageRotator.rotate(image, 360));
+        assertEquals(image.getRGB(0, 9), ImageRotator.rotate(image, 450).getRGB(0, 0));
+        assertEquals(image.getRGB(0, 9), ImageRotator.rotate(image, -270).getRGB(0, 0));
+    }
+
+    /**
+     * Tests that other angles are resampled onto the rotated bounding box, with white corners.
+     */
+    @Test
+    public void testRotateAngle() {
+        final BufferedImage image = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0x336699);
+            }
+        }
+
+        final BufferedImage rotated = ImageRotator.rotate(image, 30);
+
+        // 100 * cos(30) + 50 * sin(30) by 100 * sin(30) + 50 * cos(30)
+        assertEquals(112, rotated.getWidth());
+        assertEquals(94, rotated.getHeight());
+        assertEquals(0xffffff, rotated.getRGB(0, 0) & 0xffffff);
+        assertEquals(0xffffff, rotated.getRGB(111, 93) & 0xffffff);
+        assertEquals(0x336699, rotated.getRGB(56, 47) & 0xffffff);
+
+        final BufferedImage gray = ImageRotator.rotate(getImage(100, 50, BufferedImage.TYPE_BYTE_GRAY), 30);
+
+        assertEquals(112, gray.getWidth());
+        assertEquals(255, gray.getRaster().getSample(0, 0, 0));
+    }
+
+    /**
+     * Tests that the bytes of packed pixels are interpolated and rounded like gray samples, so colors aren't darkened.
+     */
+    @Test
+    public void testRotateAngleRounding() {
+        final BufferedImage gray = getImage(100, 50, BufferedImage.TYPE_BYTE_GRAY);
+        final BufferedImage rgb = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+        long difference = 0;
+
+        for (int y = 0; y < gray.getHeight(); y++) {
+            for (int x = 0; x < gray.getWidth(); x++) {
+                rgb.setRGB(x, y, gray.getRaster().getSample(x, y, 0) * 0x010101);
+            }
+        }
+
+        final BufferedImage rotatedGray = ImageRotator.rotate(gray, 30);
+        final BufferedImage rotatedRGB = ImageRotator.rotate(rgb, 30);
+
+        for (int y = 0; y < rotatedGray.getHeight(); y++) {
+            for (int x = 0; x < rotatedGray.getWidth(); x++) {
+                final int expected = rotatedGray.getRaster().getSample(x, y, 0);
+
+                for (int band = 0; band < 3; band++) {
+                    final int sample = rotatedRGB.getRaster().getSample(x, y, band);
+
+                    assertTrue(Math.abs(sample - expected) <= 1);
+                    difference += sample - expected;
+                }
+            }
+        }
+
+        // Truncating would make most samples a little darker
+        assertTrue(Math.abs(difference) < rotatedGray.getWidth() * rotatedGray.getHeight() / 10);
+    }
+
+    private static BufferedImage getImage(final int aWidth, final int aHeight, final int aType) {
+        final BufferedImage image = new BufferedImage(aWidth, aHeight, aType);
+        final Random random = new Random(aWidth * aHeight);
+
+        for (int y = 0; y < aHeight; y++) {
+            for (int x = 0; x < aWidth; x++) {
+                image.getRaster().setSample(x, y, 0, random.nextInt(256));
+            }
+        }
+
+        return image;
+    }
+}
@@ -0,0 +1,130 @@
+package gov.lanl.adore.djatoka.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+public class ImageScalerTest {
+
+    /**
+     * Tests that each preset scales to the requested size up and down, and that flat areas stay flat.
+     */
+    @Test
+    public void testScaleFlat() {
+        final BufferedImage image = getImage(1000, 600, BufferedImage.TYPE_INT_RGB, 0x336699, 0x336699);
+
+        for (final ImageScaler.Quality quality : ImageScaler.Quality.values()) {
+            final BufferedImage reduced = ImageScaler.scale(image, 123, 74, quality);
+            final BufferedImage enlarged = ImageScaler.scale(reduced, 300, 180, quality);
+
+            assertEquals(123, reduced.getWidth());
+            assertEquals(74, reduced.getHeight());
+            assertEquals(300, enlarged.getWidth());
+            assertEquals(180, enlarged.getHeight());
+
+            for (final BufferedImage scaled : new BufferedImage[] { reduced, enlarged }) {
+                assertEquals(0x336699, scaled.getRGB(0, 0) & 0xffffff);
+                assertEquals(0x336699, scaled.getRGB(scaled.getWidth() / 2, scaled.getHeight() / 2) & 0xffffff);
+                assertEquals(0x336699, scaled.getRGB(scaled.getWidth() - 1, scaled.getHeight() - 1) & 0xffffff);
+            }
+        }
+    }
+
+    /**
+     * Tests that reducing fine detail averages it rather than aliasing it.
+     */
+    @Test
+    public void testScaleDetail() {
+        final int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY };
+
+        for (final int type : types) {
+            final BufferedImage image = getImage(900, 700, type, 0x000000, 0xffffff);
+
+            for (final ImageScaler.Quality quality : ImageScaler.Quality.values()) {
+                final BufferedImage scaled = ImageScaler.scale(image, 97, 71, quality);
+
+                for (int y = 0; y < scaled.getHeight(); y += 7) {
+                    for (int x = 0; x < scaled.getWidth(); x += 7) {
+                        final int gray = scaled.getRaster().getSample(x, y, 0);
+
+                        assertTrue(quality + " " + gray, Math.abs(gray - 128) < 8);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests that a scaling factor doesn't round up floating point error in the scaled size.
+     */
+    @Test
+    public void testScaleFactor() {
+        final BufferedImage image = getImage(4000, 30, BufferedImage.TYPE_INT_RGB, 0, 0);
+
+        assertEquals(200, ImageProcessingUtils.scale(image, 0.05).getWidth());
+        assertEquals(2, ImageProcessingUtils.scale(image, 0.05).getHeight());
+    }
+
+    /**
+     * Tests that scaling rows as they're pushed gives the same pixels as scaling the whole image.
+     */
+    @Test
+    public void testRowScaler() {
+        final int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY };
+        final int[][] sizes = { { 97, 71 }, { 250, 175 }, { 503, 349 }, { 640, 480 } };
+
+        for (final int type : types) {
+            final BufferedImage image = getImage(503, 349, type, 0x3080c0, 0xf0a010);
+
+            for (int y = 0; y < image.getHeight(); y += 5) {
+                image.setRGB((y * 7) % image.getWidth(), y, 0x000000);
+            }
+
+            for (final ImageScaler.Quality quality : ImageScaler.Quality.values()) {
+                for (final int[] size : sizes) {
+                    final BufferedImage expected = ImageScaler.scale(image, size[0], size[1], quality);
+                    final ImageScaler.RowScaler scaler = new ImageScaler.RowScaler(image.getWidth(), image
+                            .getHeight(), type, size[0], size[1], quality);
+
+                    for (int y = 0; y < image.getHeight(); y++) {
+                        if (type == BufferedImage.TYPE_BYTE_GRAY) {
+                            scaler.push((byte[]) image.getRaster().getDataElements(0, y, image.getWidth(), 1, null));
+                        } else {
+                            scaler.push((int[]) image.getRaster().getDataElements(0, y, image.getWidth(), 1, null));
+                        }
+                    }
+
+                    final BufferedImage scaled = scaler.getImage();
+
+                    assertEquals(expected.getWidth(), scaled.getWidth());
+                    assertEquals(expected.getHeight(), scaled.getHeight());
+
+                    for (int y = 0; y < scaled.getHeight(); y++) {
+                        for (int x = 0; x < scaled.getWidth(); x++) {
+                            assertEquals(quality + " " + size[0], expected.getRGB(x, y), scaled.getRGB(x, y));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a checkerboard of single pixels in the two supplied colors.
+     */
+    private static BufferedImage getImage(final int aWidth, final int aHeight, final int aType, final int aColor1,
+            final int aColor2) {
+        final BufferedImage image = new BufferedImage(aWidth, aHeight, aType);
+
+        for (int y = 0; y < aHeight; y++) {
+            for (int x = 0; x < aWidth; x++) {
+                image.setRGB(x, y, (x + y) % 2 == 0 ? aColor1 : aColor2);
+            }
+        }
+
+        return image;
+    }
+}
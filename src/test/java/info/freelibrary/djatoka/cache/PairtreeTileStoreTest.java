@@ -0,0 +1,152 @@
+package info.freelibrary.djatoka.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.freelibrary.djatoka.util.ResponseUtils;
+
+public class PairtreeTileStoreTest {
+
+    @Rule
+    public final TemporaryFolder myFolder = new TemporaryFolder();
+
+    /**
+     * Tests that stored tiles, small and large, can be read back and listed, and that a deleted tile can't.
+     */
+    @Test
+    public void testPutGetDelete() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        final PairtreeTileStore store = open(cacheDir);
+        final int largeSize = ResponseUtils.MIN_MAPPED_SIZE + 10;
+        final List<String> names = new ArrayList<String>();
+
+        try {
+            store.put("ark:/1234", "image_1.jpg", TileFixtures.createTile(store, 100, (byte) 1));
+            store.put("ark:/1234", "image_2.jpg", TileFixtures.createTile(store, largeSize, (byte) 2));
+
+            assertEquals(100, store.get("ark:/1234", "image_1.jpg").remaining());
+            assertEquals(1, store.get("ark:/1234", "image_1.jpg").get(99));
+            assertEquals(largeSize, store.get("ark:/1234", "image_2.jpg").remaining());
+            assertEquals(2, store.get("ark:/1234", "image_2.jpg").get(largeSize - 1));
+            assertEquals(100, store.stat("ark:/1234", "image_1.jpg").getLength());
+
+            final InputStream stream = store.getStream("ark:/1234", "image_1.jpg");
+
+            try {
+                assertEquals(1, stream.read());
+            } finally {
+                stream.close();
+            }
+
+            store.list(new TileStore.Visitor() {
+
+                @Override
+                public void visit(final String aID, final String aName, final TileStore.Stat aStat) {
+                    names.add(aID + " " + aName);
+                }
+            });
+
+            assertEquals(2, names.size());
+            assertTrue(names.contains("ark:/1234 image_1.jpg"));
+            assertTrue(names.contains("ark:/1234 image_2.jpg"));
+            assertTrue(store.delete("ark:/1234", "image_1.jpg"));
+            assertNull(store.get("ark:/1234", "image_1.jpg"));
+            assertFalse(store.delete("ark:/1234", "image_1.jpg"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Tests that looking up a tile that was never stored finds nothing.
+     */
+    @Test
+    public void testMissing() throws IOException {
+        final PairtreeTileStore store = open(myFolder.newFolder());
+
+        try {
+            assertNull(store.stat("ark:/1234", "image_1.jpg"));
+            assertNull(store.get("ark:/1234", "image_1.jpg"));
+            assertNull(store.getStream("ark:/1234", "image_1.jpg"));
+            assertFalse(store.delete("ark:/1234", "image_1.jpg"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Tests that concurrent puts of the same tile leave one complete copy of it in the store.
+     */
+    @Test
+    public void testConcurrentPut() throws Exception {
+        final PairtreeTileStore store = open(myFolder.newFolder());
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Void>> puts = new ArrayList<Future<Void>>();
+
+        try {
+            for (int index = 0; index < threads; index++) {
+                final File tile = TileFixtures.createTile(store, 1000 + index, (byte) index);
+
+                puts.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        store.put("ark:/1234", "image_1.jpg", tile);
+                        return null;
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            for (final Future<Void> put : puts) {
+                put.get(10, TimeUnit.SECONDS);
+            }
+
+            final ByteBuffer tile = store.get("ark:/1234", "image_1.jpg");
+            final int value = tile.remaining() - 1000;
+
+            assertTrue(value >= 0 && value < threads);
+
+            // Every byte came from the same put
+            while (tile.hasRemaining()) {
+                assertEquals(value, tile.get());
+            }
+
+            assertEquals(0, store.getScratchDir().list().length);
+        } finally {
+            executor.shutdownNow();
+            store.close();
+        }
+    }
+
+    private PairtreeTileStore open(final File aCacheDir) throws IOException {
+        final PairtreeTileStore store = new PairtreeTileStore();
+
+        store.setProperties(TileFixtures.getProperties(aCacheDir));
+
+        return store;
+    }
+}
@@ -0,0 +1,239 @@
+package info.freelibrary.djatoka.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.freelibrary.djatoka.Constants;
+
+public class SegmentTileStoreTest {
+
+    @Rule
+    public final TemporaryFolder myFolder = new TemporaryFolder();
+
+    /**
+     * Tests that a stored tile can be read back and that a deleted tile can't.
+     */
+    @Test
+    public void testPutGetDelete() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        final SegmentTileStore store = open(cacheDir, 4096);
+
+        try {
+            store.put("ark:/1234", "image_3.jpg", TileFixtures.createTile(store, 100, (byte) 3));
+
+            final ByteBuffer tile = store.get("ark:/1234", "image_3.jpg");
+
+            assertEquals(100, tile.remaining());
+            assertEquals(3, tile.get(99));
+            assertEquals(100, store.stat("ark:/1234", "image_3.jpg").getLength());
+            assertTrue(store.delete("ark:/1234", "image_3.jpg"));
+            assertNull(store.get("ark:/1234", "image_3.jpg"));
+            assertFalse(store.delete("ark:/1234", "image_3.jpg"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Tests that the index is rebuilt from the segments when the store is reopened.
+     */
+    @Test
+    public void testReopen() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        SegmentTileStore store = open(cacheDir, 4096);
+
+        store.put("ark:/1234", "image_1.jpg", TileFixtures.createTile(store, 100, (byte) 1));
+        store.put("ark:/1234", "image_2.jpg", TileFixtures.createTile(store, 100, (byte) 2));
+        store.put("ark:/1234", "image_1.jpg", TileFixtures.createTile(store, 50, (byte) 5));
+        store.delete("ark:/1234", "image_2.jpg");
+        store.close();
+
+        store = open(cacheDir, 4096);
+
+        try {
+            assertEquals(50, store.get("ark:/1234", "image_1.jpg").remaining());
+            assertEquals(5, store.get("ark:/1234", "image_1.jpg").get(0));
+            assertNull(store.stat("ark:/1234", "image_2.jpg"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Tests that compaction removes mostly dead segments without losing live tiles.
+     */
+    @Test
+    public void testCompact() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        final SegmentTileStore store = open(cacheDir, 1024);
+
+        try {
+            for (int index = 0; index < 8; index++) {
+                store.put("ark:/1234", "image_" + index + ".jpg", TileFixtures.createTile(store, 200, (byte) index));
+            }
+
+            for (int index = 0; index < 7; index++) {
+                store.delete("ark:/1234", "image_" + index + ".jpg");
+            }
+
+            final int segments = store.getSegmentCount();
+
+            store.compact();
+
+            assertTrue(store.getSegmentCount() < segments);
+            assertNotNull(store.get("ark:/1234", "image_7.jpg"));
+            assertEquals(7, store.get("ark:/1234", "image_7.jpg").get(199));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Tests that a record damaged by a crash, and anything after it in its segment, is ignored when the store is
+     * reopened.
+     */
+    @Test
+    public void testDamagedRecord() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        SegmentTileStore store = open(cacheDir, 4096);
+
+        store.put("ark:/1234", "image_1.jpg", TileFixtures.createTile(store, 100, (byte) 1));
+        store.put("ark:/1234", "image_2.jpg", TileFixtures.createTile(store, 100, (byte) 2));
+        store.put("ark:/1234", "image_3.jpg", TileFixtures.createTile(store, 100, (byte) 3));
+        store.close();
+
+        // Flip a byte in the middle of the second tile's data
+        final RandomAccessFile segment = new RandomAccessFile(new File(cacheDir, "segments/segment-00000001.dat"),
+                "rw");
+
+        try {
+            final byte[] bytes = new byte[(int) segment.length()];
+            int index = 0;
+
+            segment.readFully(bytes);
+
+            // The tile's data is the only run of 100 twos in the segment
+            for (int run = 0; run < 100; index++) {
+                run = bytes[index] == 2 ? run + 1 : 0;
+            }
+
+            segment.seek(index - 50);
+            segment.write(9);
+        } finally {
+            segment.close();
+        }
+
+        store = open(cacheDir, 4096);
+
+        try {
+            assertEquals(1, store.get("ark:/1234", "image_1.jpg").get(99));
+            assertNull(store.get("ark:/1234", "image_2.jpg"));
+            assertNull(store.get("ark:/1234", "image_3.jpg"));
+
+            // New tiles are written over the damaged record
+            store.put("ark:/1234", "image_4.jpg", TileFixtures.createTile(store, 100, (byte) 4));
+            assertEquals(4, store.get("ark:/1234", "image_4.jpg").get(0));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Tests that concurrent puts and deletes of the same tile leave the index agreeing with the log.
+     */
+    @Test
+    public void testConcurrentPutAndDelete() throws Exception {
+        final File cacheDir = myFolder.newFolder();
+        final SegmentTileStore store = open(cacheDir, 64 * 1024);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final int rounds = 200;
+        final boolean stored;
+
+        try {
+            final Future<?> puts = executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+
+                    for (int index = 0; index < rounds; index++) {
+                        store.put("ark:/1234", "image_1.jpg", TileFixtures.createTile(store, 10, (byte) 1));
+                    }
+
+                    return null;
+                }
+            });
+            final Future<?> deletes = executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+
+                    for (int index = 0; index < rounds; index++) {
+                        store.delete("ark:/1234", "image_1.jpg");
+                    }
+
+                    return null;
+                }
+            });
+
+            start.countDown();
+            puts.get(30, TimeUnit.SECONDS);
+            deletes.get(30, TimeUnit.SECONDS);
+            stored = store.stat("ark:/1234", "image_1.jpg") != null;
+        } finally {
+            executor.shutdownNow();
+            store.close();
+        }
+
+        final SegmentTileStore reopened = open(cacheDir, 64 * 1024);
+
+        try {
+            assertEquals(stored, reopened.stat("ark:/1234", "image_1.jpg") != null);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Tests that a segment size that can't be addressed with int offsets is refused.
+     */
+    @Test(expected = IOException.class)
+    public void testSegmentSizeLimit() throws IOException {
+        final SegmentTileStore store = new SegmentTileStore();
+        final Properties props = TileFixtures.getProperties(myFolder.newFolder());
+
+        props.setProperty(Constants.VIEW_CACHE_SEGMENT_SIZE, Long.toString(4L * 1024 * 1024 * 1024));
+        store.setProperties(props);
+    }
+
+    private SegmentTileStore open(final File aCacheDir, final int aSegmentSize) throws IOException {
+        final SegmentTileStore store = new SegmentTileStore();
+        final Properties props = TileFixtures.getProperties(aCacheDir);
+
+        props.setProperty(Constants.VIEW_CACHE_SEGMENT_SIZE, Integer.toString(aSegmentSize));
+        store.setProperties(props);
+
+        return store;
+    }
+}
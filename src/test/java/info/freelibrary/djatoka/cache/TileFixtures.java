@@ -0,0 +1,63 @@
+package info.freelibrary.djatoka.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+
+import info.freelibrary.djatoka.Constants;
+
+/**
+ * Fixtures shared by the tests of the view cache's tile stores and of the caches in front of them.
+ */
+public final class TileFixtures {
+
+    private TileFixtures() {
+    }
+
+    /**
+     * Gets the properties that point a tile store at the supplied cache directory.
+     *
+     * @param aCacheDir The directory the store should keep its tiles in
+     * @return The store's properties
+     */
+    public static Properties getProperties(final File aCacheDir) {
+        final Properties props = new Properties();
+
+        props.setProperty(Constants.VIEW_CACHE_DIR, aCacheDir.getAbsolutePath());
+        return props;
+    }
+
+    /**
+     * Creates a tile file in the supplied store's scratch directory, ready to be put into the store.
+     *
+     * @param aStore The store the tile is for
+     * @param aSize The size of the tile in bytes
+     * @param aValue The value of each of the tile's bytes
+     * @return The new tile file
+     * @throws IOException If the tile can't be written
+     */
+    public static File createTile(final TileStore aStore, final int aSize, final byte aValue) throws IOException {
+        return createTile(aStore.getScratchDir(), aSize, aValue);
+    }
+
+    /**
+     * Creates a tile file in the supplied directory, with every byte set to the supplied value.
+     *
+     * @param aDir The directory in which to create the tile
+     * @param aSize The size of the tile in bytes
+     * @param aValue The value of each of the tile's bytes
+     * @return The new tile file
+     * @throws IOException If the tile can't be written
+     */
+    public static File createTile(final File aDir, final int aSize, final byte aValue) throws IOException {
+        final File file = File.createTempFile("tile-", ".jpg", aDir);
+        final byte[] bytes = new byte[aSize];
+
+        Arrays.fill(bytes, aValue);
+        Files.write(file.toPath(), bytes);
+
+        return file;
+    }
+}
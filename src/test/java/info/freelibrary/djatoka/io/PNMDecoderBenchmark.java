@@ -0,0 +1,77 @@
+package info.freelibrary.djatoka.io;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+
+/**
+ * Compares decoding PNM images with {@link PNMDecoder} against the per-pixel {@link PNMImage}. Run it from the test
+ * classpath with <code>java info.freelibrary.djatoka.io.PNMDecoderBenchmark</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PNMDecoderBenchmark {
+
+    @Param({ "P6-8", "P5-8", "P6-16" })
+    private String myFormat;
+
+    private byte[] myPNM;
+
+    /**
+     * Creates a 2048x2048 image in the benchmarked format.
+     */
+    @Setup
+    public void setup() {
+        final String[] format = myFormat.split("-");
+
+        myPNM = PNMDecoderTest.createPNM(format[0].charAt(1), 2048, 2048, "16".equals(format[1]) ? 65535 : 255);
+    }
+
+    /**
+     * Decodes the image with the bulk decoder.
+     */
+    @Benchmark
+    public BufferedImage decoder() throws IOException, FormatIOException {
+        return new PNMDecoder(new ByteArrayInputStream(myPNM)).decode();
+    }
+
+    /**
+     * Decodes the image with the per-pixel decoder.
+     */
+    @Benchmark
+    public BufferedImage pnmImage() throws IOException, FormatIOException {
+        return new PNMImage(new ByteArrayInputStream(myPNM)).getBufferedImage();
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param aArgs Unused
+     * @throws RunnerException If the benchmark fails
+     */
+    public static void main(final String[] aArgs) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PNMDecoderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,227 @@
+package info.freelibrary.djatoka.io;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.util.RowSink;
+
+public class PNMDecoderTest {
+
+    /**
+     * Tests that an 8 bit pixmap decodes to the same pixels as with PNMImage.
+     */
+    @Test
+    public void testDecodeRGB() throws IOException, FormatIOException {
+        final byte[] pnm = createPNM('6', 37, 23, 255);
+        final BufferedImage expected = new PNMImage(new ByteArrayInputStream(pnm)).getBufferedImage();
+        final BufferedImage image = new PNMDecoder(new ByteArrayInputStream(pnm)).decode();
+
+        assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+        assertPixelsEqual(expected, image);
+    }
+
+    /**
+     * Tests that 8 and 16 bit graymaps decode to gray images with the same pixels.
+     */
+    @Test
+    public void testDecodeGray() throws IOException, FormatIOException {
+        final BufferedImage expected = new PNMImage(new ByteArrayInputStream(createPNM('5', 37, 23, 255)))
+                .getBufferedImage();
+        final BufferedImage image8 = new PNMDecoder(new ByteArrayInputStream(createPNM('5', 37, 23, 255))).decode();
+        final BufferedImage image16 = new PNMDecoder(new ByteArrayInputStream(createPNM('5', 37, 23, 65535)))
+                .decode();
+
+        assertEquals(BufferedImage.TYPE_INT_RGB, image8.getType());
+        assertEquals(expected.getRGB(5, 7) & 0xff, image8.getRaster().getSample(5, 7, 0));
+        assertEquals(expected.getRGB(36, 22) & 0xff, image16.getRaster().getSample(36, 22, 0));
+        assertEquals(image8.getRaster().getSample(11, 3, 0), image16.getRaster().getSample(11, 3, 0));
+    }
+
+    /**
+     * Tests that a 16 bit pixmap decodes to the same pixels as the 8 bit one.
+     */
+    @Test
+    public void testDecodeRGB16() throws IOException, FormatIOException {
+        final BufferedImage expected = new PNMDecoder(new ByteArrayInputStream(createPNM('6', 300, 5, 255)))
+                .decode();
+        final BufferedImage image = new PNMDecoder(new ByteArrayInputStream(createPNM('6', 300, 5, 65535)))
+                .decode();
+
+        assertPixelsEqual(expected, image);
+    }
+
+    /**
+     * Tests that rows pushed to a sink are the rows of the decoded image.
+     */
+    @Test
+    public void testDecodeRows() throws IOException, FormatIOException {
+        final byte[] pnm = createPNM('6', 37, 23, 255);
+        final BufferedImage expected = new PNMDecoder(new ByteArrayInputStream(pnm)).decode();
+        final BufferedImage image = new BufferedImage(37, 23, BufferedImage.TYPE_INT_RGB);
+
+        new PNMDecoder(new ByteArrayInputStream(pnm)).decode(new RowSink() {
+
+            private int myRow;
+
+            @Override
+            public void push(final byte[] aRow) {
+                throw new AssertionError("A pixmap's rows should be pushed as packed ints");
+            }
+
+            @Override
+            public void push(final int[] aRow) {
+                image.setRGB(0, myRow++, aRow.length, 1, aRow, 0, aRow.length);
+            }
+        });
+
+        assertPixelsEqual(expected, image);
+    }
+
+    /**
+     * Tests that a bitmap decodes set bits to black and clear bits to white, including in a row's last partial byte.
+     */
+    @Test
+    public void testDecodeBitmap() throws IOException, FormatIOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] header = "P4\n10 2\n".getBytes();
+
+        out.write(header, 0, header.length);
+        out.write(new byte[] { (byte) 0xa5, (byte) 0x80, (byte) 0x0f, (byte) 0x40 }, 0, 4);
+
+        final BufferedImage image = new PNMDecoder(new ByteArrayInputStream(out.toByteArray())).decode();
+        final int[] expected = { 0, 1, 0, 1, 1, 0, 1, 0, 0, 1, 1, 1, 1, 1, 0, 0, 0, 0, 1, 0 };
+
+        assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+
+        for (int index = 0; index < expected.length; index++) {
+            assertEquals(expected[index] == 0 ? 0 : 0xffffff, image.getRGB(index % 10, index / 10) & 0xffffff);
+        }
+    }
+
+    /**
+     * Tests that samples of images whose max value isn't 255 or 65535 are scaled to 8 bits through the lookup table.
+     */
+    @Test
+    public void testDecodeMaxValue() throws IOException, FormatIOException {
+        final BufferedImage gray = new PNMDecoder(new ByteArrayInputStream(createRamp('5', 101, 100, 0)))
+                .decode();
+        final BufferedImage rgb = new PNMDecoder(new ByteArrayInputStream(createRamp('6', 101, 4095, 0)))
+                .decode();
+
+        for (int x = 0; x < 101; x++) {
+            assertEquals((x * 255 + 50) / 100, gray.getRaster().getSample(x, 0, 0));
+            assertEquals((x * 255 + 2047) / 4095, rgb.getRaster().getSample(x, 0, 0));
+            assertEquals(((x + 202) * 255 + 2047) / 4095, rgb.getRaster().getSample(x, 1, 2));
+        }
+    }
+
+    /**
+     * Tests that an 8 bit sample greater than the max value is a format error.
+     */
+    @Test(expected = FormatIOException.class)
+    public void testDecodeSampleTooLarge() throws IOException, FormatIOException {
+        new PNMDecoder(new ByteArrayInputStream(createRamp('5', 102, 100, 0))).decode();
+    }
+
+    /**
+     * Tests that a 16 bit sample greater than the max value is a format error.
+     */
+    @Test(expected = FormatIOException.class)
+    public void testDecodeSampleTooLarge16() throws IOException, FormatIOException {
+        new PNMDecoder(new ByteArrayInputStream(createRamp('6', 40, 4095, 4000))).decode();
+    }
+
+    /**
+     * Tests that an image larger than the pooled buffer, read from a stream that returns rows in pieces, decodes to the
+     * same pixels as with PNMImage.
+     */
+    @Test
+    public void testDecodeShortReads() throws IOException, FormatIOException {
+        final byte[] pnm = createPNM('6', 1000, 50, 255);
+        final BufferedImage expected = new PNMImage(new ByteArrayInputStream(pnm)).getBufferedImage();
+        final InputStream stream = new FilterInputStream(new ByteArrayInputStream(pnm)) {
+
+            @Override
+            public int read(final byte[] aBuffer, final int aOffset, final int aLength) throws IOException {
+                return super.read(aBuffer, aOffset, Math.min(aLength, 1999));
+            }
+        };
+
+        assertPixelsEqual(expected, new PNMDecoder(stream).decode());
+    }
+
+    private static void assertPixelsEqual(final BufferedImage aExpected, final BufferedImage aImage) {
+        assertEquals(aExpected.getWidth(), aImage.getWidth());
+        assertEquals(aExpected.getHeight(), aImage.getHeight());
+
+        for (int y = 0; y < aExpected.getHeight(); y++) {
+            for (int x = 0; x < aExpected.getWidth(); x++) {
+                assertEquals(aExpected.getRGB(x, y), aImage.getRGB(x, y));
+            }
+        }
+    }
+
+    /**
+     * Creates a PNM image with a pattern of 8 bit sample values, written out at the depth of the supplied max value.
+     */
+    static byte[] createPNM(final char aFormat, final int aWidth, final int aHeight, final int aMaxValue) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int bands = aFormat == '6' ? 3 : 1;
+        final byte[] header = ("P" + aFormat + "\n# test\n" + aWidth + " " + aHeight + "\n" + aMaxValue + "\n")
+                .getBytes();
+
+        out.write(header, 0, header.length);
+
+        for (int y = 0; y < aHeight; y++) {
+            for (int x = 0; x < aWidth; x++) {
+                for (int band = 0; band < bands; band++) {
+                    final int sample = (x * 7 + y * 13 + band * 101) & 0xff;
+
+                    if (aMaxValue > 255) {
+                        out.write(sample);
+                    }
+
+                    out.write(sample);
+                }
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a PNM image whose samples count up from the supplied first sample along each row, band after band.
+     */
+    private static byte[] createRamp(final char aFormat, final int aWidth, final int aMaxValue, final int aFirst) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int bands = aFormat == '6' ? 3 : 1;
+        final byte[] header = ("P" + aFormat + "\n" + aWidth + " 2\n" + aMaxValue + "\n").getBytes();
+
+        out.write(header, 0, header.length);
+
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < aWidth; x++) {
+                for (int band = 0; band < bands; band++) {
+                    final int sample = aFirst + x + band * aWidth;
+
+                    if (aMaxValue > 255) {
+                        out.write(sample >> 8);
+                    }
+
+                    out.write(sample);
+                }
+            }
+        }
+
+        return out.toByteArray();
+    }
+}
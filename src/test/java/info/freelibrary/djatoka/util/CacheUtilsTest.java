@@ -21,6 +21,8 @@ public class CacheUtilsTest {
     public void testGetFileName() {
         String scale = Integer.toString(CacheUtils.getScale(10));
         assertEquals("image_1024_0-0-1023-1023_1.jpg", CacheUtils.getFileName(null, scale, "0,0,1023,1023", 1.0f));
+        assertEquals("image_1_q2.jpg", CacheUtils.getFileName("1", null, null, 0.0f, "2"));
+        assertEquals("image_1.jpg", CacheUtils.getFileName("1", null, null, 0.0f, null));
 
         // TODO: should this class throw an exception if level AND scale/region
         // are passed to it?
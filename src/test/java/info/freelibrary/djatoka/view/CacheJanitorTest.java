@@ -0,0 +1,103 @@
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.freelibrary.djatoka.cache.PairtreeTileStore;
+import info.freelibrary.djatoka.cache.TileFixtures;
+import info.freelibrary.djatoka.cache.TileStore;
+import info.freelibrary.util.PairtreeObject;
+import info.freelibrary.util.PairtreeRoot;
+
+public class CacheJanitorTest {
+
+    @Rule
+    public final TemporaryFolder myFolder = new TemporaryFolder();
+
+    /**
+     * Tests that the janitor indexes an existing cache and evicts the least recently used images when it's over budget.
+     */
+    @Test
+    public void testPrune() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        final File first = createImage(cacheDir, "ark:/1234", "image_1.jpg", 100, 1000);
+        final File second = createImage(cacheDir, "ark:/1234", "image_2.jpg", 100, 2000);
+        final File third = createImage(cacheDir, "ark:/5678", "image_1.jpg", 100, 3000);
+        final CacheJanitor janitor = new CacheJanitor(getStore(cacheDir), cacheDir, 250, 0);
+
+        janitor.run();
+
+        assertEquals(2, janitor.getCount());
+        assertEquals(1, janitor.getEvictionCount());
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+        assertTrue(third.exists());
+        assertTrue(new File(cacheDir, "cache-index.txt").exists());
+    }
+
+    /**
+     * Tests that images older than the time-to-live are removed.
+     */
+    @Test
+    public void testExpire() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        final long now = System.currentTimeMillis();
+        final File old = createImage(cacheDir, "ark:/1234", "image_1.jpg", 100, now - 60000);
+        final File young = createImage(cacheDir, "ark:/1234", "image_2.jpg", 100, now);
+        final CacheJanitor janitor = new CacheJanitor(getStore(cacheDir), cacheDir, 0, 30000);
+
+        janitor.run();
+
+        assertFalse(old.exists());
+        assertTrue(young.exists());
+        assertEquals(1, janitor.getCount());
+    }
+
+    /**
+     * Tests that the time-to-live runs from an image's last access and that expired images leave the hot tile cache.
+     */
+    @Test
+    public void testExpireAfterAccess() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        final long now = System.currentTimeMillis();
+        final File used = createImage(cacheDir, "ark:/1234", "image_1.jpg", 100, now - 60000);
+        final File unused = createImage(cacheDir, "ark:/1234", "image_2.jpg", 100, now - 60000);
+        final HotTileCache hotTiles = new HotTileCache(1024, 1024);
+        final CacheJanitor janitor = new CacheJanitor(getStore(cacheDir), hotTiles, cacheDir, 0, 30000);
+
+        hotTiles.put(HotTileCache.getKey("ark:/1234", "image_2.jpg"), unused, "image/jpeg");
+        janitor.record("ark:/1234", "image_1.jpg", new TileStore.Stat(100, now - 60000));
+        janitor.run();
+
+        assertTrue(used.exists());
+        assertFalse(unused.exists());
+        assertEquals(0, hotTiles.size());
+    }
+
+    private TileStore getStore(final File aCacheDir) throws IOException {
+        final TileStore store = new PairtreeTileStore();
+
+        store.setProperties(TileFixtures.getProperties(aCacheDir));
+
+        return store;
+    }
+
+    private File createImage(final File aCacheDir, final String aID, final String aName, final int aSize,
+            final long aLastModified) throws IOException {
+        final PairtreeObject object = new PairtreeRoot(aCacheDir).getObject(aID);
+        final File file = new File(object, aName);
+
+        Files.write(file.toPath(), new byte[aSize]);
+        file.setLastModified(aLastModified);
+        return file;
+    }
+}
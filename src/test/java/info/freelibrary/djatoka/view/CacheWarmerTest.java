@@ -0,0 +1,56 @@
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheWarmerTest {
+
+    @Rule
+    public final TemporaryFolder myFolder = new TemporaryFolder();
+
+    /**
+     * Tests that the most requested tiles are saved, most requested first.
+     */
+    @Test
+    public void testSave() throws IOException {
+        final File cacheDir = myFolder.newFolder();
+        final CacheWarmer warmer = new CacheWarmer(null, cacheDir, 2);
+
+        warmer.record("ark:/1234", "3", null, "", 0.0f, null);
+        warmer.record("ark:/1234", null, "256", "0,0,256,256", 90.0f, null);
+        warmer.record("ark:/1234", null, "256", "0,0,256,256", 90.0f, null);
+        warmer.record("ark:/5678", "3", null, "", 0.0f, null);
+        warmer.record("ark:/5678", "3", null, "", 0.0f, null);
+        warmer.record("ark:/5678", "3", null, "", 0.0f, null);
+        warmer.save();
+
+        final List<String> lines = Files.readAllLines(new File(cacheDir, "warmup.txt").toPath(), Charset
+                .forName("UTF-8"));
+
+        assertEquals(2, lines.size());
+        assertEquals("\t0\t\t\t3\tark:/5678", lines.get(0));
+        assertEquals("\t90\t0,0,256,256\t256\t\tark:/1234", lines.get(1));
+    }
+
+    /**
+     * Tests that a saved tile is read back with its identifier intact, even if the identifier has a tab in it, and that
+     * a line without all six fields is skipped.
+     */
+    @Test
+    public void testFromKey() {
+        assertArrayEquals(new String[] { "ark:/12\t34", null, "256", "0,0,256,256", "90", null }, CacheWarmer
+                .fromKey("\t90\t0,0,256,256\t256\t\tark:/12\t34"));
+        assertNull(CacheWarmer.fromKey("0\t\t\t3\tark:/5678"));
+    }
+}
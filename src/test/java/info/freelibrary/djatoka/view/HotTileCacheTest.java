@@ -0,0 +1,95 @@
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import info.freelibrary.djatoka.cache.TileFixtures;
+
+public class HotTileCacheTest {
+
+    @Rule
+    public final TemporaryFolder myFolder = new TemporaryFolder();
+
+    /**
+     * Tests that a cached tile holds the bytes of the file it was loaded from.
+     */
+    @Test
+    public void testPutAndGet() throws IOException {
+        final HotTileCache cache = new HotTileCache(1024, 512);
+        final File file = TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 7);
+        final HotTileCache.Tile tile = cache.put("id_image_1.jpg", file, "image/jpg");
+        final ByteBuffer content = cache.get("id_image_1.jpg").getContent();
+
+        assertNotNull(tile);
+        assertEquals(100, content.remaining());
+        assertEquals(7, content.get(99));
+        assertEquals("image/jpg", tile.getContentType());
+        assertEquals(1, cache.getHitCount());
+        assertNull(cache.get("id_image_2.jpg"));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * Tests that tiles larger than the maximum tile size aren't cached.
+     */
+    @Test
+    public void testMaxTileSize() throws IOException {
+        final HotTileCache cache = new HotTileCache(1024, 50);
+        final File file = TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 1);
+
+        assertNull(cache.put("id_image_1.jpg", file, "image/jpg"));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that the cache stays within its byte budget and gives recently used tiles a second chance.
+     */
+    @Test
+    public void testEviction() throws IOException {
+        final HotTileCache cache = new HotTileCache(300, 512);
+
+        cache.put("a", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 1), "image/jpg");
+        cache.put("b", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 2), "image/jpg");
+        cache.put("c", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 3), "image/jpg");
+        cache.get("a");
+        cache.put("d", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 4), "image/jpg");
+
+        assertEquals(300, cache.getWeightedSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    /**
+     * Tests that a tile that's invalidated and loaded again is only on the clock once, so it keeps its second chance.
+     */
+    @Test
+    public void testInvalidate() throws IOException {
+        final HotTileCache cache = new HotTileCache(300, 512);
+
+        cache.put("a", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 1), "image/jpg");
+        cache.invalidate("a");
+
+        assertEquals(0, cache.getWeightedSize());
+        assertNull(cache.get("a"));
+
+        cache.put("a", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 1), "image/jpg");
+        cache.put("b", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 2), "image/jpg");
+        cache.put("c", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 3), "image/jpg");
+        cache.get("a");
+        cache.put("d", TileFixtures.createTile(myFolder.getRoot(), 100, (byte) 4), "image/jpg");
+
+        assertEquals(300, cache.getWeightedSize());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+}
@@ -0,0 +1,89 @@
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class SourceValidatorTest {
+
+    private static final String ETAG = "\"abc123\"";
+
+    /**
+     * Tests matching strong, weak and wildcard <code>If-None-Match</code> values.
+     */
+    @Test
+    public void testMatches() {
+        assertTrue(SourceValidator.matches(ETAG, ETAG));
+        assertTrue(SourceValidator.matches("W/" + ETAG, ETAG));
+        assertTrue(SourceValidator.matches(ETAG, "W/" + ETAG));
+        assertTrue(SourceValidator.matches("\"other\", W/\"abc123\"", ETAG));
+        assertTrue(SourceValidator.matches("*", ETAG));
+        assertFalse(SourceValidator.matches("\"abc1234\"", ETAG));
+        assertFalse(SourceValidator.matches("\"a,b\", \"abc\"", ETAG));
+        assertFalse(SourceValidator.matches("W/", ETAG));
+        assertFalse(SourceValidator.matches("*", null));
+        assertFalse(SourceValidator.matches(null, ETAG));
+    }
+
+    /**
+     * Tests that a source is remembered within the check interval and checked again once the interval has passed.
+     */
+    @Test
+    public void testCheckInterval() throws IOException {
+        final File jp2 = File.createTempFile("source-", ".jp2");
+        final CountingValidator remembering = new CountingValidator(jp2, 60000);
+        final CountingValidator forgetting = new CountingValidator(jp2, 0);
+
+        jp2.deleteOnExit();
+
+        assertNull(remembering.getCachedSource("id"));
+        assertNotNull(remembering.getSource("id"));
+        assertSame(remembering.getSource("id"), remembering.getCachedSource("id"));
+        assertEquals(1, remembering.myLookups);
+
+        assertNotNull(forgetting.getSource("id"));
+        assertNotNull(forgetting.getSource("id"));
+        assertNull(forgetting.getCachedSource("id"));
+        assertEquals(2, forgetting.myLookups);
+    }
+
+    /**
+     * Tests that a tile's entity tag is the same however the tile is served.
+     */
+    @Test
+    public void testTileETag() {
+        final HotTileCache cache = new HotTileCache(1024, 1024);
+        final HotTileCache.Tile tile = cache.put("id_image.jpg", ByteBuffer.wrap(new byte[10]), 1000L,
+                "image/jpeg");
+
+        assertEquals(SourceValidator.getETag(10, 1000L), tile.getETag());
+        assertFalse(SourceValidator.getETag(10, 1000L).equals(SourceValidator.getETag(10, 1001L)));
+    }
+
+    private static class CountingValidator extends SourceValidator {
+
+        private final File myFile;
+
+        private int myLookups;
+
+        private CountingValidator(final File aFile, final long aTTL) {
+            super(aTTL);
+            myFile = aFile;
+        }
+
+        @Override
+        protected File getFile(final String aID) {
+            myLookups++;
+            return myFile;
+        }
+    }
+}
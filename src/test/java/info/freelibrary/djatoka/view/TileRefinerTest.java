@@ -0,0 +1,70 @@
+package info.freelibrary.djatoka.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TileRefinerTest {
+
+    /**
+     * Tests that a tile that's already pending isn't queued again, that tiles are dropped when the queue is full, and
+     * that a tile can be queued again once it's been rendered.
+     */
+    @Test
+    public void testRefine() throws InterruptedException {
+        final TileRefiner refiner = new TileRefiner(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(2);
+        final CountDownLatch refined = new CountDownLatch(1);
+        final AtomicInteger renders = new AtomicInteger();
+        final Runnable render = new Runnable() {
+
+            @Override
+            public void run() {
+                renders.incrementAndGet();
+                started.countDown();
+
+                try {
+                    release.await();
+                } catch (final InterruptedException details) {
+                    Thread.currentThread().interrupt();
+                }
+
+                finished.countDown();
+            }
+        };
+
+        try {
+            assertTrue(refiner.refine("ark:/1234_image_1.jpg", render));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(refiner.refine("ark:/1234_image_1.jpg", render));
+            assertTrue(refiner.refine("ark:/1234_image_2.jpg", render));
+            assertFalse(refiner.refine("ark:/1234_image_3.jpg", render));
+            assertEquals(2, refiner.getPendingCount());
+
+            release.countDown();
+
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            assertEquals(2, renders.get());
+
+            // Renders run one at a time, so the first tile stopped pending before the second was rendered
+            assertTrue(refiner.refine("ark:/1234_image_1.jpg", new Runnable() {
+
+                @Override
+                public void run() {
+                    refined.countDown();
+                }
+            }));
+            assertTrue(refined.await(5, TimeUnit.SECONDS));
+        } finally {
+            refiner.stop();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.libjpegturbo.turbojpeg;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import gov.lanl.adore.djatoka.io.FormatIOException;
+import gov.lanl.adore.djatoka.io.writer.JPGWriter;
+
+/**
+ * A stand-in for the TurboJPEG Java binding's compressor, with the methods <code>TurboJPGWriter</code> calls. It
+ * remembers the arguments it was given, so tests can check them, and encodes with <code>JPGWriter</code>. Like the
+ * real compressor, it returns a buffer that may be larger than the JPEG in it.
+ */
+public class TJCompressor {
+
+    private static volatile TJCompressor myLast;
+
+    private BufferedImage myImage;
+
+    private int[] myBounds;
+
+    private int mySubsamp = -1;
+
+    private int myQuality = -1;
+
+    private int myCompressedSize;
+
+    private boolean isClosed;
+
+    /**
+     * Creates a compressor, which is remembered as the last one created.
+     */
+    public TJCompressor() {
+        myLast = this;
+    }
+
+    /**
+     * Gets the last compressor that was created.
+     *
+     * @return The last compressor
+     */
+    public static TJCompressor getLast() {
+        return myLast;
+    }
+
+    public void setSourceImage(final BufferedImage aImage, final int aX, final int aY, final int aWidth,
+            final int aHeight) {
+        myImage = aImage;
+        myBounds = new int[] { aX, aY, aWidth, aHeight };
+    }
+
+    public void setSubsamp(final int aSubsamp) {
+        mySubsamp = aSubsamp;
+    }
+
+    public void setJPEGQuality(final int aQuality) {
+        myQuality = aQuality;
+    }
+
+    public byte[] compress(final int aFlags) throws FormatIOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JPGWriter writer = new JPGWriter();
+        final Properties props = new Properties();
+
+        props.setProperty("JPGWriter.quality_level", Integer.toString(myQuality));
+        writer.setWriterProperties(props);
+        writer.write(myImage.getSubimage(myBounds[0], myBounds[1], myBounds[2], myBounds[3]), out);
+
+        myCompressedSize = out.size();
+        return Arrays.copyOf(out.toByteArray(), myCompressedSize + 100);
+    }
+
+    public int getCompressedSize() {
+        return myCompressedSize;
+    }
+
+    public void close() {
+        isClosed = true;
+    }
+
+    public BufferedImage getSourceImage() {
+        return myImage;
+    }
+
+    public int[] getSourceBounds() {
+        return myBounds;
+    }
+
+    public int getSubsamp() {
+        return mySubsamp;
+    }
+
+    public int getJPEGQuality() {
+        return myQuality;
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+}